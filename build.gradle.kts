@@ -1,6 +1,7 @@
 plugins {
     java
     id("io.freefair.lombok") version "5.3.3.3"
+    id("me.champeau.gradle.jmh") version "0.5.3"
 }
 
 group = "ca.menglish"
@@ -17,4 +18,43 @@ dependencies {
 
 configure<JavaPluginConvention> {
     sourceCompatibility = JavaVersion.VERSION_11
+}
+
+// Classes in src/main/java21 replace their Java 11 counterparts on Java 21 and later through a
+// multi-release JAR. They are only compiled when a JDK 21 is given with `-Pjdk21Home=<path>`,
+// without it the JAR holds the Java 11 classes alone.
+(findProperty("jdk21Home") as String?)?.let { jdk21Home ->
+    val java21 by sourceSets.creating {
+        java.srcDir("src/main/java21")
+        compileClasspath += sourceSets["main"].output + sourceSets["main"].compileClasspath
+    }
+
+    tasks.named<JavaCompile>(java21.compileJavaTaskName) {
+        sourceCompatibility = "21"
+        targetCompatibility = "21"
+        options.isFork = true
+        options.forkOptions.javaHome = file(jdk21Home)
+    }
+
+    tasks.named<Jar>("jar") {
+        into("META-INF/versions/21") {
+            from(java21.output)
+        }
+        manifest {
+            attributes("Multi-Release" to "true")
+        }
+    }
+}
+
+// Benchmarks live in src/jmh/java, run them with `./gradlew jmh`, optionally narrowed down with
+// `-PjmhInclude=<regex>`. Results are written as JSON so runs can be compared by tooling.
+jmh {
+    jmhVersion = "1.34"
+    fork = 1
+    warmupIterations = 3
+    iterations = 5
+    resultFormat = "JSON"
+    resultsFile = file("$buildDir/reports/jmh/results.json")
+    duplicateClassesStrategy = DuplicatesStrategy.EXCLUDE
+    (findProperty("jmhInclude") as String?)?.let { include = listOf(it) }
 }
\ No newline at end of file
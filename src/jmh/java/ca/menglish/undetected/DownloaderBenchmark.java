@@ -0,0 +1,84 @@
+package ca.menglish.undetected;
+
+import com.sun.net.httpserver.HttpServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of downloading and extracting chromedriver, served from an in-process HTTP server so
+ * the network does not dominate the measurement.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DownloaderBenchmark {
+
+    @Param({"STREAMING", "RANDOM_ACCESS"})
+    public Downloader.ExtractionMode extractionMode;
+
+    private HttpServer server;
+    private String downloadUrl;
+    private DownloadEngine downloadEngine;
+    private File extracted;
+
+    @Setup(Level.Trial)
+    public void startServer() throws IOException {
+        byte[] archive = SyntheticBinary.createArchive(SyntheticBinary.REAL_SIZE);
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/chromedriver_linux64.zip", exchange -> {
+            exchange.getResponseHeaders().add("Content-Type", "application/zip");
+            exchange.sendResponseHeaders(200, archive.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(archive);
+            }
+        });
+        server.start();
+
+        downloadUrl = "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/chromedriver_linux64.zip";
+        downloadEngine = new DownloadEngine.Builder().withParallelism(1).build();
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteExtracted() throws IOException {
+        if (extracted != null) {
+            Files.deleteIfExists(extracted.toPath());
+            extracted = null;
+        }
+    }
+
+    @Benchmark
+    public File extract() throws IOException, InterruptedException {
+        extracted = Downloader.downloadChromedriver(downloadUrl, extractionMode, downloadEngine);
+        return extracted;
+    }
+
+    @Benchmark
+    public Downloader.PipelineResult extractAndPatch() throws IOException, InterruptedException {
+        Downloader.PipelineResult result = Downloader.downloadAndPatchChromedriver(
+                downloadUrl, ExecutablePatcher.getReplacementCdc(), extractionMode, downloadEngine);
+        extracted = result.getChromedriver();
+        return result;
+    }
+}
@@ -0,0 +1,67 @@
+package ca.menglish.undetected;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link ExecutablePatcher#patch(java.io.File, String, ExecutablePatcher.PatchMode, int)},
+ * including reading and writing the executable.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PatcherBenchmark {
+
+    /**
+     * 1 MB synthetic binary and a binary the size of a real chromedriver.
+     */
+    @Param({"1048576", "16777216"})
+    public int size;
+
+    @Param({"HEAP", "MAPPED"})
+    public ExecutablePatcher.PatchMode patchMode;
+
+    @Param({"1", "4"})
+    public int parallelism;
+
+    private byte[] binary;
+    private Path file;
+
+    @Setup(Level.Trial)
+    public void createBinary() throws IOException {
+        binary = SyntheticBinary.create(size);
+        file = SyntheticBinary.write(binary);
+    }
+
+    /**
+     * Patching replaces the signatures in place, so every invocation starts from the unpatched
+     * binary again.
+     */
+    @Setup(Level.Invocation)
+    public void restoreBinary() throws IOException {
+        Files.write(file, binary);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteBinary() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public ExecutablePatcher.PatchResult patch() throws IOException {
+        return ExecutablePatcher.patch(file.toFile(), ExecutablePatcher.getReplacementCdc(), patchMode, parallelism);
+    }
+}
@@ -0,0 +1,60 @@
+package ca.menglish.undetected;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to copy a {@link ProfileTemplate} by each {@link ProfileTemplate.CopyMode}, on a synthetic
+ * profile shaped like a warmed Chrome profile: a few thousand files, most of them small. On file
+ * systems without reflinks {@code AUTO} measures the parallel copy.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ProfileCopyBenchmark {
+
+    @Param({"AUTO", "HARDLINK", "COPY"})
+    public ProfileTemplate.CopyMode copyMode;
+
+    @Param({"1", "4"})
+    public int parallelism;
+
+    private Path directory;
+    private ProfileTemplate template;
+    private Path copy;
+
+    @Setup(Level.Trial)
+    public void createTemplate() throws IOException {
+        directory = ProfileFiles.createSynthetic();
+        template = new ProfileTemplate(directory, copyMode, parallelism);
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteCopy() {
+        ProfileTemplate.deleteCopy(copy);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteTemplate() throws IOException {
+        ProfileFiles.delete(directory);
+    }
+
+    @Benchmark
+    public Path copy() throws IOException {
+        copy = template.newCopy();
+        return copy;
+    }
+}
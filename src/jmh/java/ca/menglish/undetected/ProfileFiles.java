@@ -0,0 +1,51 @@
+package ca.menglish.undetected;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Profile directories for the profile benchmarks.
+ */
+final class ProfileFiles {
+
+    private ProfileFiles() {
+    }
+
+    /**
+     * @return A profile-like directory: 2000 files of 1 to 16 KB in 40 directories, plus a few
+     * larger database-sized files.
+     */
+    static Path createSynthetic() throws IOException {
+        Random random = new Random(42);
+        Path directory = Files.createTempDirectory("profile-synthetic");
+        for (int i = 0; i < 40; i++) {
+            Path cache = Files.createDirectories(directory.resolve("Default").resolve("Cache" + i));
+            for (int j = 0; j < 50; j++) {
+                byte[] bytes = new byte[1024 + random.nextInt(15 * 1024)];
+                random.nextBytes(bytes);
+                Files.write(cache.resolve("f_" + j), bytes);
+            }
+        }
+        for (int i = 0; i < 4; i++) {
+            byte[] bytes = new byte[4 * 1024 * 1024];
+            random.nextBytes(bytes);
+            Files.write(directory.resolve("Default").resolve("Database" + i), bytes);
+        }
+        return directory;
+    }
+
+    static void delete(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            List<Path> sorted = paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+            for (Path path : sorted) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package ca.menglish.undetected;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openqa.selenium.chrome.ChromeOptions;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to launch a browser and create its session on an empty profile compared to a copy of a
+ * {@link ProfileTemplate}, the copy being made outside the measurement. Unlike the other
+ * benchmarks this one needs Chrome installed, without it the benchmark fails in its setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ProfileLaunchBenchmark {
+
+    @Param({"EMPTY", "TEMPLATE"})
+    public String profile;
+
+    private Path templateDirectory;
+    private ProfileTemplate template;
+    private Path emptyProfile;
+    private ChromeOptions options;
+    private StealthyChromiumDriver driver;
+
+    @Setup(Level.Trial)
+    public void createTemplate() throws IOException {
+        if ("TEMPLATE".equals(profile)) {
+            templateDirectory = Files.createTempDirectory("profile-template");
+            template = ProfileTemplate.create(templateDirectory, newOptions(), Duration.ofSeconds(10));
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void prepareProfile() throws IOException {
+        options = newOptions();
+        if (template != null) {
+            template.applyTo(options);
+        }
+        else {
+            emptyProfile = Files.createTempDirectory("profile-empty");
+            options.addArguments("--user-data-dir=" + emptyProfile);
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void quit() throws IOException {
+        driver.quit();
+        if (emptyProfile != null) {
+            ProfileFiles.delete(emptyProfile);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteTemplate() throws IOException {
+        if (templateDirectory != null) {
+            ProfileFiles.delete(templateDirectory);
+        }
+    }
+
+    @Benchmark
+    public StealthyChromiumDriver launch() {
+        driver = new StealthyChromiumDriver(options);
+        return driver;
+    }
+
+    private static ChromeOptions newOptions() {
+        return new ChromeOptions().addArguments("--headless", "--no-first-run");
+    }
+}
@@ -0,0 +1,38 @@
+package ca.menglish.undetected;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openqa.selenium.chrome.ChromeDriverLogLevel;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of building the chromedriver command line, paid on every service creation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ServiceArgsBenchmark {
+
+    private StealthyChromiumDriverService.Builder builder;
+
+    @Setup
+    public void createBuilder() {
+        builder = new StealthyChromiumDriverService.Builder()
+                .withLogLevel(ChromeDriverLogLevel.INFO)
+                .withWhitelistedIps("127.0.0.1")
+                .withAppendLog(true)
+                .usingPort(9515);
+    }
+
+    @Benchmark
+    public List<String> createArgs() {
+        return builder.createArgs();
+    }
+}
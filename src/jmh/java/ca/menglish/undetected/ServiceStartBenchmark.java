@@ -0,0 +1,64 @@
+package ca.menglish.undetected;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openqa.selenium.net.PortProber;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time from starting a service until it is ready, against {@link StubChromedriver} launched in a
+ * separate JVM. The stub's own JVM startup is part of every measurement, so compare the readiness
+ * modes with each other rather than with a real chromedriver.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ServiceStartBenchmark {
+
+    @Param({"LOG_LINE", "POLLING"})
+    public StealthyChromiumDriverService.Readiness readiness;
+
+    private StealthyChromiumDriverService service;
+
+    @Setup(Level.Invocation)
+    public void createService() throws IOException {
+        File java = Paths.get(System.getProperty("java.home"), "bin", "java").toFile();
+        int port = PortProber.findFreePort();
+        List<String> args = Arrays.asList(
+                "-XX:TieredStopAtLevel=1",
+                "-cp", System.getProperty("java.class.path"),
+                StubChromedriver.class.getName(),
+                "--port=" + port);
+
+        service = new StealthyChromiumDriverService(java, port, Duration.ofSeconds(20), args, Collections.emptyMap(), readiness);
+        service.sendOutputTo(new ByteArrayOutputStream());
+    }
+
+    @TearDown(Level.Invocation)
+    public void stopService() {
+        service.stop();
+    }
+
+    @Benchmark
+    public StealthyChromiumDriverService startToReady() throws IOException {
+        service.start();
+        return service;
+    }
+}
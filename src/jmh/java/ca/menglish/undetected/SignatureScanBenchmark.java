@@ -0,0 +1,53 @@
+package ca.menglish.undetected;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the signature matchers alone, on a binary already in memory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SignatureScanBenchmark {
+
+    /**
+     * 1 MB synthetic binary and a binary the size of a real chromedriver.
+     */
+    @Param({"1048576", "16777216"})
+    public int size;
+
+    private ByteBuffer buffer;
+    private SignatureMatcher allSignatures;
+    private SignatureMatcher cdcOnly;
+
+    @Setup
+    public void createBinary() {
+        buffer = ByteBuffer.wrap(SyntheticBinary.create(size));
+        List<Signature> signatures = ExecutablePatcher.getSignatures(ExecutablePatcher.getReplacementCdc());
+        allSignatures = SignatureMatcher.compile(signatures);
+        cdcOnly = SignatureMatcher.compile(Collections.singletonList(signatures.get(0)));
+    }
+
+    @Benchmark
+    public void ahoCorasick(Blackhole blackhole) {
+        allSignatures.scan(buffer, 0, size, (signatureIndex, offset) -> blackhole.consume(offset));
+    }
+
+    @Benchmark
+    public void boyerMoore(Blackhole blackhole) {
+        cdcOnly.scan(buffer, 0, size, (signatureIndex, offset) -> blackhole.consume(offset));
+    }
+}
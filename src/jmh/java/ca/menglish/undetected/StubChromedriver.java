@@ -0,0 +1,51 @@
+package ca.menglish.undetected;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Stand-in for chromedriver that implements just enough to be started and stopped by a
+ * {@link StealthyChromiumDriverService}: it listens on {@code --port}, answers {@code /status},
+ * exits on {@code /shutdown} and prints the same started line.
+ */
+public final class StubChromedriver {
+
+    private StubChromedriver() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = 9515;
+        boolean silent = false;
+        for (String arg : args) {
+            if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(arg.substring("--port=".length()));
+            }
+            else if (arg.equals("--silent")) {
+                silent = true;
+            }
+        }
+
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/", exchange -> {
+            byte[] body = "{\"value\":{\"ready\":true}}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+            if (exchange.getRequestURI().getPath().equals("/shutdown")) {
+                System.exit(0);
+            }
+        });
+        server.start();
+
+        if (!silent) {
+            System.out.println("ChromeDriver was started successfully.");
+            System.out.flush();
+        }
+    }
+}
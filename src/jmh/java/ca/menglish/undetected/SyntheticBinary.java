@@ -0,0 +1,75 @@
+package ca.menglish.undetected;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Executable-like test data: random bytes with the strings the patcher looks for spread through
+ * them at about the density they have in a real chromedriver.
+ */
+final class SyntheticBinary {
+
+    /**
+     * Size of a recent chromedriver executable, used for the real-sized benchmarks.
+     */
+    static final int REAL_SIZE = 16 * 1024 * 1024;
+
+    private static final String[] MARKERS = {
+            "cdc_adoQpoasnfa76pfcZLmcfl_",
+            "$cdc_asdjflasutopfhvcZLmcfl_",
+            "$wdc_",
+            "webdriver",
+            "__webdriver_evaluate",
+            "__selenium_evaluate"
+    };
+
+    private static final int MARKER_SPACING = 256 * 1024;
+
+    private SyntheticBinary() {
+    }
+
+    static byte[] create(int size) {
+        Random random = new Random(42);
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+
+        int marker = 0;
+        for (int offset = MARKER_SPACING; offset + 64 < size; offset += MARKER_SPACING) {
+            byte[] text = MARKERS[marker++ % MARKERS.length].getBytes(StandardCharsets.US_ASCII);
+            System.arraycopy(text, 0, bytes, offset, text.length);
+            bytes[offset + text.length] = 0;
+        }
+        return bytes;
+    }
+
+    /**
+     * @return A zip archive laid out like the chromedriver downloads, holding the binary as its
+     * executable.
+     */
+    static byte[] createArchive(int size) throws IOException {
+        ByteArrayOutputStream archive = new ByteArrayOutputStream(size + 1024);
+        try (ZipOutputStream zip = new ZipOutputStream(archive)) {
+            zip.putNextEntry(new ZipEntry("LICENSE.chromedriver"));
+            zip.write("license".getBytes(StandardCharsets.US_ASCII));
+            zip.closeEntry();
+
+            zip.putNextEntry(new ZipEntry("chromedriver"));
+            zip.write(create(size));
+            zip.closeEntry();
+        }
+        return archive.toByteArray();
+    }
+
+    static Path write(byte[] bytes) throws IOException {
+        Path file = Files.createTempFile("chromedriver-benchmark", "");
+        Files.write(file, bytes);
+        file.toFile().deleteOnExit();
+        return file;
+    }
+}
@@ -0,0 +1,147 @@
+package ca.menglish.undetected;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Aho-Corasick automaton over bytes that finds every occurrence of several patterns in one pass.
+ *
+ * <p>The automaton is compiled into a dense transition table with 256 entries per state, so each
+ * input byte costs a single array lookup no matter how many patterns are registered. The tables
+ * are immutable after construction and can be shared between threads.
+ */
+public class AhoCorasickMatcher implements SignatureMatcher {
+
+    private static final int ALPHABET_SIZE = 256;
+
+    private final int[] patternLengths;
+    private final int[] transitions;
+    private final int[][] outputs;
+    private final int maxPatternLength;
+
+    public AhoCorasickMatcher(List<Signature> signatures) {
+        patternLengths = new int[signatures.size()];
+
+        // Build the trie, state 0 is the root
+        List<int[]> trie = new ArrayList<>();
+        List<int[]> trieOutputs = new ArrayList<>();
+        trie.add(newState());
+        trieOutputs.add(new int[0]);
+
+        int longest = 0;
+        for (int index = 0; index < signatures.size(); index++) {
+            byte[] pattern = signatures.get(index).getPattern();
+            patternLengths[index] = pattern.length;
+            longest = Math.max(longest, pattern.length);
+
+            int state = 0;
+            for (byte value : pattern) {
+                int symbol = value & 0xFF;
+                if (trie.get(state)[symbol] < 0) {
+                    trie.get(state)[symbol] = trie.size();
+                    trie.add(newState());
+                    trieOutputs.add(new int[0]);
+                }
+                state = trie.get(state)[symbol];
+            }
+            trieOutputs.set(state, append(trieOutputs.get(state), index));
+        }
+        maxPatternLength = longest;
+
+        // Breadth first over the trie to compute failure links and turn the trie into a DFA
+        int stateCount = trie.size();
+        int[] failure = new int[stateCount];
+        transitions = new int[stateCount * ALPHABET_SIZE];
+        outputs = new int[stateCount][];
+
+        Deque<Integer> queue = new ArrayDeque<>();
+        for (int symbol = 0; symbol < ALPHABET_SIZE; symbol++) {
+            int next = trie.get(0)[symbol];
+            if (next < 0) {
+                transitions[symbol] = 0;
+            } else {
+                transitions[symbol] = next;
+                failure[next] = 0;
+                queue.add(next);
+            }
+        }
+        outputs[0] = null;
+
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            int[] merged = concat(trieOutputs.get(state), outputs[failure[state]]);
+            outputs[state] = merged.length == 0 ? null : merged;
+
+            for (int symbol = 0; symbol < ALPHABET_SIZE; symbol++) {
+                int next = trie.get(state)[symbol];
+                if (next < 0) {
+                    transitions[state * ALPHABET_SIZE + symbol] = transitions[failure[state] * ALPHABET_SIZE + symbol];
+                } else {
+                    transitions[state * ALPHABET_SIZE + symbol] = next;
+                    failure[next] = transitions[failure[state] * ALPHABET_SIZE + symbol];
+                    queue.add(next);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void scan(ByteBuffer buffer, int from, int to, MatchListener listener) {
+        scan(buffer, from, to, 0, listener);
+    }
+
+    /**
+     * Runs the automaton over the buffer starting in the given state, which allows a stream to be
+     * scanned one buffer at a time while still finding matches spanning buffer boundaries.
+     *
+     * @param buffer   Buffer to search.
+     * @param from     Index of the first byte to search.
+     * @param to       Index after the last byte to search.
+     * @param state    State returned by the previous call, or 0 at the start of the input.
+     * @param listener Called for every match. The reported offset can be below {@code from} for
+     *                 matches that started in a previous buffer.
+     * @return The state to continue the next buffer with.
+     */
+    public int scan(ByteBuffer buffer, int from, int to, int state, MatchListener listener) {
+        for (int i = from; i < to; i++) {
+            state = transitions[(state << 8) | (buffer.get(i) & 0xFF)];
+            int[] matched = outputs[state];
+            if (matched != null) {
+                for (int index : matched) {
+                    listener.onMatch(index, i - patternLengths[index] + 1);
+                }
+            }
+        }
+        return state;
+    }
+
+    @Override
+    public int getMaxPatternLength() {
+        return maxPatternLength;
+    }
+
+    private static int[] newState() {
+        int[] state = new int[ALPHABET_SIZE];
+        Arrays.fill(state, -1);
+        return state;
+    }
+
+    private static int[] append(int[] values, int value) {
+        int[] appended = Arrays.copyOf(values, values.length + 1);
+        appended[values.length] = value;
+        return appended;
+    }
+
+    private static int[] concat(int[] first, int[] second) {
+        if (second == null) {
+            return first;
+        }
+        int[] concatenated = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, concatenated, first.length, second.length);
+        return concatenated;
+    }
+}
@@ -0,0 +1,118 @@
+package ca.menglish.undetected;
+
+import org.openqa.selenium.By;
+import org.openqa.selenium.WebElement;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Function;
+
+/**
+ * Non blocking view of a {@link StealthyChromiumDriver}: every call returns at once and completes
+ * its future when the browser answered.
+ *
+ * <p>The calls themselves still block a thread for the round trip to chromedriver. By default that
+ * is a thread of a shared executor which, on Java 21 and later, starts a virtual thread per call,
+ * so thousands of calls can be in flight without thousands of platform threads. Before Java 21 it
+ * is a cached pool of platform threads.
+ *
+ * <pre>
+ * AsyncDriver async = driver.async();
+ * async.get("https://example.com")
+ *         .thenCompose(ignored -&gt; async.executeScript("return document.title"))
+ *         .thenAccept(System.out::println);
+ * </pre>
+ *
+ * <p>Chromedriver runs the commands of one session one at a time, calls on the same driver are
+ * therefore not faster concurrently, the gain is in driving many sessions from few threads.
+ */
+public class AsyncDriver {
+
+    private static volatile ExecutorService defaultExecutor;
+
+    private final StealthyChromiumDriver driver;
+    private final Executor executor;
+
+    /**
+     * Runs calls on the {@link #getDefaultExecutor() default executor}.
+     */
+    public AsyncDriver(StealthyChromiumDriver driver) {
+        this(driver, getDefaultExecutor());
+    }
+
+    /**
+     * @param driver   The driver the calls are made on.
+     * @param executor Runs the blocking calls.
+     */
+    public AsyncDriver(StealthyChromiumDriver driver, Executor executor) {
+        this.driver = driver;
+        this.executor = executor;
+    }
+
+    /**
+     * @return The executor shared by every {@link AsyncDriver} created without one, running each call
+     * on a virtual thread on Java 21 and later.
+     */
+    public static ExecutorService getDefaultExecutor() {
+        if (defaultExecutor == null) {
+            synchronized (AsyncDriver.class) {
+                if (defaultExecutor == null) {
+                    defaultExecutor = AsyncExecutors.newExecutor("async-driver");
+                }
+            }
+        }
+        return defaultExecutor;
+    }
+
+    /**
+     * @return Whether the default executor runs calls on virtual threads.
+     */
+    public static boolean isVirtualThreads() {
+        return AsyncExecutors.isVirtual();
+    }
+
+    public StealthyChromiumDriver getDriver() {
+        return driver;
+    }
+
+    /**
+     * @see StealthyChromiumDriver#get(String)
+     */
+    public CompletableFuture<Void> get(String url) {
+        return CompletableFuture.runAsync(() -> driver.get(url), executor);
+    }
+
+    /**
+     * @see StealthyChromiumDriver#executeScript(String, Object...)
+     */
+    public CompletableFuture<Object> executeScript(String script, Object... args) {
+        return supplyAsync(target -> target.executeScript(script, args));
+    }
+
+    /**
+     * @see StealthyChromiumDriver#findElements(By)
+     */
+    public CompletableFuture<List<WebElement>> findElements(By locator) {
+        return supplyAsync(target -> target.findElements(locator));
+    }
+
+    /**
+     * @see StealthyChromiumDriver#executeCdpCommand(String, Map)
+     */
+    public CompletableFuture<Map<String, Object>> executeCdpCommand(String commandName, Map<String, Object> parameters) {
+        return supplyAsync(target -> target.executeCdpCommand(commandName, parameters));
+    }
+
+    /**
+     * Makes any other call, or sequence of calls, on the driver without blocking the caller.
+     *
+     * @param call Calls the driver and returns the result.
+     * @return The result of the call.
+     */
+    public <T> CompletableFuture<T> supplyAsync(Function<? super StealthyChromiumDriver, T> call) {
+        return CompletableFuture.supplyAsync(() -> call.apply(driver), executor);
+    }
+}
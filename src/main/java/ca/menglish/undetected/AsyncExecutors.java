@@ -0,0 +1,29 @@
+package ca.menglish.undetected;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads that blocking driver calls run on for {@link AsyncDriver}. Before Java 21 these are
+ * daemon platform threads, created as needed and reused. The multi-release JAR replaces this class
+ * on Java 21 and later with one that starts a virtual thread per call.
+ */
+final class AsyncExecutors {
+
+    private AsyncExecutors() {
+    }
+
+    static ExecutorService newExecutor(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    static boolean isVirtual() {
+        return false;
+    }
+}
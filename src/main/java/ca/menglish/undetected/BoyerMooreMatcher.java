@@ -0,0 +1,104 @@
+package ca.menglish.undetected;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Boyer-Moore search for a single byte pattern. The shift tables are built once, so the matcher
+ * can be reused for any number of buffers and threads.
+ *
+ * <p>Adapted from the {@code BnM} node in java.util.regex.Pattern.java, but using all eight bits of
+ * every byte for the bad character shift, as binary input is not biased towards ASCII.
+ */
+public class BoyerMooreMatcher implements SignatureMatcher {
+
+    private final byte[] pattern;
+    private final int[] badCharacterShifts = new int[256];
+    private final int[] goodSuffixShifts;
+
+    public BoyerMooreMatcher(byte[] pattern) {
+        this.pattern = pattern.clone();
+        this.goodSuffixShifts = new int[pattern.length];
+        compileBoundaryPattern(this.pattern, badCharacterShifts, goodSuffixShifts);
+    }
+
+    /**
+     * @param buffer Buffer to search.
+     * @param from   Index of the first byte to search.
+     * @param to     Index after the last byte to search.
+     * @return Index of the first match between {@code from} and {@code to}, or -1.
+     */
+    public int indexOf(ByteBuffer buffer, int from, int to) {
+        int patternLength = pattern.length;
+        int last = to - patternLength;
+        int i = from;
+
+        NEXT:   while (i <= last) {
+            // Loop over pattern from right to left
+            for (int j = patternLength - 1; j >= 0; j--) {
+                int ch = buffer.get(i + j) & 0xFF;
+                if (ch != (pattern[j] & 0xFF)) {
+                    // Shift search to the right by the maximum of the
+                    // bad character shift and the good suffix shift
+                    i += Math.max(j + 1 - badCharacterShifts[ch], goodSuffixShifts[j]);
+                    continue NEXT;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    @Override
+    public void scan(ByteBuffer buffer, int from, int to, MatchListener listener) {
+        int match = indexOf(buffer, from, to);
+        while (match >= 0) {
+            listener.onMatch(0, match);
+            match = indexOf(buffer, match + 1, to);
+        }
+    }
+
+    @Override
+    public int getMaxPatternLength() {
+        return pattern.length;
+    }
+
+    /**
+     * Pre calculates arrays needed to generate the bad character
+     * shift and the good suffix shift.
+     */
+    private static void compileBoundaryPattern(byte[] pattern, int[] badCharacterShifts, int[] goodSuffixShifts) {
+        int i, j;
+
+        // Precalculate part of the bad character shift
+        // It is a table for where in the pattern each
+        // byte value last occurs
+        for (i = 0; i < pattern.length; i++) {
+            badCharacterShifts[pattern[i] & 0xFF] = (i + 1);
+        }
+
+        // Precalculate the good suffix shift
+        // i is the shift amount being considered
+        NEXT:   for (i = pattern.length; i > 0; i--) {
+            // j is the beginning index of suffix being considered
+            for (j = pattern.length - 1; j >= i; j--) {
+                // Testing for good suffix
+                if (pattern[j] == pattern[j-i]) {
+                    // src[j..len] is a good suffix
+                    goodSuffixShifts[j-1] = i;
+                } else {
+                    // No match. The array has already been
+                    // filled up with correct values before.
+                    continue NEXT;
+                }
+            }
+            // This fills up the remaining of the table,
+            // any suffix can not have larger shift amount
+            // than its sub-suffix.
+            while (j > 0) {
+                goodSuffixShifts[--j] = i;
+            }
+        }
+        // Set the guard value
+        goodSuffixShifts[pattern.length - 1] = 1;
+    }
+}
@@ -0,0 +1,378 @@
+package ca.menglish.undetected;
+
+import com.google.common.collect.ImmutableMap;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.openqa.selenium.devtools.DevToolsException;
+import org.openqa.selenium.json.Json;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.WebSocket;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Chrome DevTools Protocol connection straight to the browser's debugger WebSocket, bypassing
+ * chromedriver.
+ *
+ * <p>Commands are pipelined: {@link #send(String, Map)} writes the command and returns at once,
+ * many commands can be outstanding, and responses are matched to their command by id in whatever
+ * order the browser answers. Events are dispatched to listeners on a dedicated thread in the order
+ * they arrived, so slow listeners never hold up responses. Commands and events of targets attached
+ * with {@code flatten} carry a session id, which lets one connection drive any number of
+ * {@link CdpSession sessions} at once.
+ *
+ * <p>Futures are completed on the thread reading the WebSocket, dependent stages that block
+ * should use the {@code async} variants.
+ */
+public class CdpConnection implements Closeable {
+
+    private static final Logger LOG = Logger.getLogger(CdpConnection.class.getName());
+
+    private static final Duration DEFAULT_TIMEOUT = Duration.ofSeconds(30);
+
+    private static final Json json = new Json();
+
+    private WebSocket webSocket;
+    private URI webSocketUrl;
+    private final AtomicLong nextId = new AtomicLong();
+    private final Map<Long, CompletableFuture<Map<String, Object>>> pending = new ConcurrentHashMap<>();
+    private final List<EventListener> listeners = new CopyOnWriteArrayList<>();
+    private final ExecutorService eventExecutor;
+    private final Object sendLock = new Object();
+    private CompletableFuture<WebSocket> lastSend;
+    private volatile boolean closed;
+
+    private CdpConnection(ExecutorService eventExecutor) {
+        this.eventExecutor = eventExecutor;
+    }
+
+    /**
+     * Connects to the browser endpoint of a debugger listening on {@code host:port}, as found in
+     * the {@code debuggerAddress} chromedriver reports in the {@code goog:chromeOptions}
+     * capability.
+     *
+     * @param debuggerAddress Address of the debugger, e.g. {@code localhost:9222}.
+     * @return An open connection to the browser target.
+     */
+    public static CdpConnection connectToDebugger(String debuggerAddress) {
+        HttpClient httpClient = HttpClient.newHttpClient();
+        try {
+            HttpResponse<String> version = httpClient.send(
+                    HttpRequest.newBuilder(URI.create("http://" + debuggerAddress + "/json/version"))
+                            .timeout(DEFAULT_TIMEOUT)
+                            .GET()
+                            .build(),
+                    HttpResponse.BodyHandlers.ofString());
+            Map<String, Object> info = json.toType(version.body(), Json.MAP_TYPE);
+            Object webSocketUrl = info.get("webSocketDebuggerUrl");
+            if (webSocketUrl == null) {
+                throw new DevToolsException("No WebSocket debugger URL at " + debuggerAddress);
+            }
+            return connect(httpClient, URI.create(webSocketUrl.toString()));
+        } catch (IOException exception) {
+            throw new DevToolsException("Unable to reach the debugger at " + debuggerAddress, exception);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new DevToolsException("Interrupted while connecting to " + debuggerAddress, exception);
+        }
+    }
+
+    /**
+     * @param httpClient    Client to open the WebSocket with.
+     * @param webSocketUrl  Debugger WebSocket URL of a browser or page target.
+     * @return An open connection.
+     */
+    public static CdpConnection connect(HttpClient httpClient, URI webSocketUrl) {
+        ExecutorService eventExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cdp-events");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        CdpConnection connection = new CdpConnection(eventExecutor);
+        try {
+            connection.webSocket = httpClient.newWebSocketBuilder()
+                    .connectTimeout(DEFAULT_TIMEOUT)
+                    .buildAsync(webSocketUrl, connection.new Receiver())
+                    .get(DEFAULT_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+            connection.webSocketUrl = webSocketUrl;
+            connection.lastSend = CompletableFuture.completedFuture(connection.webSocket);
+            return connection;
+        } catch (ExecutionException | TimeoutException exception) {
+            eventExecutor.shutdown();
+            throw new DevToolsException("Unable to connect to " + webSocketUrl, exception);
+        } catch (InterruptedException exception) {
+            eventExecutor.shutdown();
+            Thread.currentThread().interrupt();
+            throw new DevToolsException("Interrupted while connecting to " + webSocketUrl, exception);
+        }
+    }
+
+    /**
+     * Sends a command to the browser target without waiting for the response.
+     *
+     * @param method CDP method, e.g. {@code Target.getTargets}.
+     * @param params Parameters of the method.
+     * @return The result of the command, failing with a {@link DevToolsException} when the browser
+     * reports an error.
+     */
+    public CompletableFuture<Map<String, Object>> send(String method, Map<String, ?> params) {
+        return send(null, method, params);
+    }
+
+    /**
+     * Sends a command to the target of a session without waiting for the response.
+     *
+     * @param sessionId Session of the target, {@code null} for the browser target.
+     * @param method    CDP method.
+     * @param params    Parameters of the method.
+     * @return The result of the command.
+     */
+    public CompletableFuture<Map<String, Object>> send(String sessionId, String method, Map<String, ?> params) {
+        CompletableFuture<Map<String, Object>> result = new CompletableFuture<>();
+        if (closed) {
+            result.completeExceptionally(new DevToolsException("Connection is closed"));
+            return result;
+        }
+
+        long id = nextId.incrementAndGet();
+        Map<String, Object> message = new LinkedHashMap<>();
+        message.put("id", id);
+        if (sessionId != null) {
+            message.put("sessionId", sessionId);
+        }
+        message.put("method", method);
+        message.put("params", params == null ? Collections.emptyMap() : params);
+        String text = json.toJson(message);
+
+        pending.put(id, result);
+        // WebSocket allows one outstanding send at a time, so sends are chained rather than
+        // waiting for responses, which keeps every command in flight at once
+        synchronized (sendLock) {
+            lastSend = lastSend
+                    .exceptionally(error -> webSocket)
+                    .thenCompose(socket -> socket.sendText(text, true));
+            lastSend.whenComplete((socket, error) -> {
+                if (error != null) {
+                    fail(id, new DevToolsException("Unable to send " + method, error));
+                }
+            });
+        }
+        return result;
+    }
+
+    /**
+     * Sends a command to the browser target and waits for its result.
+     */
+    public Map<String, Object> execute(String method, Map<String, ?> params) {
+        return await(send(method, params), method);
+    }
+
+    /**
+     * Listens to an event of every target on this connection.
+     *
+     * @param method   CDP event, e.g. {@code Target.targetCreated}.
+     * @param listener Called on the event thread with each event.
+     * @return Subscription to cancel the listener with.
+     */
+    public Subscription addListener(String method, Consumer<Event> listener) {
+        return addListener(null, method, listener);
+    }
+
+    Subscription addListener(String sessionId, String method, Consumer<Event> listener) {
+        EventListener eventListener = new EventListener(sessionId, method, listener);
+        listeners.add(eventListener);
+        return () -> listeners.remove(eventListener);
+    }
+
+    /**
+     * Attaches to a target, e.g. a page, and returns a session to drive it over this connection.
+     *
+     * @param targetId Id of the target, for pages the window handle chromedriver reports.
+     * @return A session attached to the target.
+     */
+    public CdpSession attachToTarget(String targetId) {
+        Map<String, Object> result = execute("Target.attachToTarget", ImmutableMap.of("targetId", targetId, "flatten", true));
+        return new CdpSession(this, targetId, (String) result.get("sessionId"));
+    }
+
+    /**
+     * @return The debugger WebSocket this connection is open to.
+     */
+    public URI getWebSocketUrl() {
+        return webSocketUrl;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        webSocket.sendClose(WebSocket.NORMAL_CLOSURE, "").exceptionally(error -> webSocket);
+        onClosed(new DevToolsException("Connection is closed"));
+    }
+
+    static Map<String, Object> await(CompletableFuture<Map<String, Object>> future, String method) {
+        try {
+            return future.get(DEFAULT_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException exception) {
+            if (exception.getCause() instanceof DevToolsException) {
+                throw (DevToolsException) exception.getCause();
+            }
+            throw new DevToolsException(method + " failed", exception.getCause());
+        } catch (TimeoutException exception) {
+            throw new DevToolsException("Timed out waiting for " + method, exception);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new DevToolsException("Interrupted while waiting for " + method, exception);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void onMessage(String text) {
+        Map<String, Object> message = json.toType(text, Json.MAP_TYPE);
+        Object id = message.get("id");
+        if (id != null) {
+            CompletableFuture<Map<String, Object>> result = pending.remove(((Number) id).longValue());
+            if (result == null) {
+                return;
+            }
+            Map<String, Object> error = (Map<String, Object>) message.get("error");
+            if (error != null) {
+                result.completeExceptionally(new DevToolsException(error.get("message") + " (" + error.get("code") + ")"));
+            }
+            else {
+                Object value = message.get("result");
+                result.complete(value == null ? Collections.emptyMap() : (Map<String, Object>) value);
+            }
+            return;
+        }
+
+        Object params = message.get("params");
+        Event event = new Event(
+                (String) message.get("method"),
+                params == null ? Collections.emptyMap() : (Map<String, Object>) params,
+                (String) message.get("sessionId"));
+        eventExecutor.execute(() -> dispatch(event));
+    }
+
+    private void dispatch(Event event) {
+        for (EventListener listener : listeners) {
+            if (listener.accepts(event)) {
+                try {
+                    listener.listener.accept(event);
+                } catch (RuntimeException exception) {
+                    LOG.log(Level.WARNING, "CDP listener for " + event.getMethod() + " failed", exception);
+                }
+            }
+        }
+    }
+
+    private void fail(long id, DevToolsException exception) {
+        CompletableFuture<Map<String, Object>> result = pending.remove(id);
+        if (result != null) {
+            result.completeExceptionally(exception);
+        }
+    }
+
+    private void onClosed(DevToolsException exception) {
+        closed = true;
+        for (Long id : pending.keySet()) {
+            fail(id, exception);
+        }
+        eventExecutor.shutdown();
+    }
+
+    /**
+     * A CDP event, with the session of the target that sent it.
+     */
+    @AllArgsConstructor
+    @Getter
+    public static class Event {
+        private final String method;
+        private final Map<String, Object> params;
+        /**
+         * Session of the target that sent the event, {@code null} for the browser target.
+         */
+        private final String sessionId;
+    }
+
+    @FunctionalInterface
+    public interface Subscription {
+        void unsubscribe();
+    }
+
+    @AllArgsConstructor
+    private static class EventListener {
+        private final String sessionId;
+        private final String method;
+        private final Consumer<Event> listener;
+
+        private boolean accepts(Event event) {
+            return method.equals(event.getMethod())
+                    && (sessionId == null || sessionId.equals(event.getSessionId()));
+        }
+    }
+
+    /**
+     * Reassembles messages that arrive in several frames and hands them to the connection.
+     */
+    private class Receiver implements WebSocket.Listener {
+
+        private final StringBuilder message = new StringBuilder();
+
+        @Override
+        public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+            message.append(data);
+            if (last) {
+                String text = message.toString();
+                message.setLength(0);
+                try {
+                    onMessage(text);
+                } catch (RuntimeException exception) {
+                    LOG.log(Level.WARNING, "Unable to handle CDP message", exception);
+                }
+            }
+            webSocket.request(1);
+            return null;
+        }
+
+        @Override
+        public CompletionStage<?> onClose(WebSocket webSocket, int statusCode, String reason) {
+            onClosed(new DevToolsException("Connection closed by the browser: " + statusCode + " " + reason));
+            return null;
+        }
+
+        @Override
+        public void onError(WebSocket webSocket, Throwable error) {
+            onClosed(new DevToolsException("Connection failed", error));
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package ca.menglish.undetected;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * A target, such as a page, attached over a shared {@link CdpConnection}. Commands sent through the
+ * session go to its target and only events from its target reach its listeners.
+ */
+public class CdpSession {
+
+    private final CdpConnection connection;
+    private final String targetId;
+    private final String sessionId;
+
+    CdpSession(CdpConnection connection, String targetId, String sessionId) {
+        this.connection = connection;
+        this.targetId = targetId;
+        this.sessionId = sessionId;
+    }
+
+    public String getTargetId() {
+        return targetId;
+    }
+
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    public CdpConnection getConnection() {
+        return connection;
+    }
+
+    /**
+     * Sends a command to the target without waiting for the response.
+     *
+     * @param method CDP method, e.g. {@code Runtime.evaluate}.
+     * @param params Parameters of the method.
+     * @return The result of the command.
+     */
+    public CompletableFuture<Map<String, Object>> send(String method, Map<String, ?> params) {
+        return connection.send(sessionId, method, params);
+    }
+
+    /**
+     * Sends a command to the target and waits for its result.
+     */
+    public Map<String, Object> execute(String method, Map<String, ?> params) {
+        return CdpConnection.await(send(method, params), method);
+    }
+
+    /**
+     * Listens to an event of this target.
+     *
+     * @param method   CDP event, e.g. {@code Page.loadEventFired}.
+     * @param listener Called on the event thread of the connection with each event.
+     * @return Subscription to cancel the listener with.
+     */
+    public CdpConnection.Subscription addListener(String method, Consumer<CdpConnection.Event> listener) {
+        return connection.addListener(sessionId, method, listener);
+    }
+
+    /**
+     * Detaches from the target, the target itself keeps running.
+     */
+    public void detach() {
+        if (!connection.isClosed()) {
+            connection.send("Target.detachFromTarget", ImmutableMap.of("sessionId", sessionId));
+        }
+    }
+}
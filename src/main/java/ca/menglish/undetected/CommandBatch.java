@@ -0,0 +1,222 @@
+package ca.menglish.undetected;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.openqa.selenium.JavascriptException;
+import org.openqa.selenium.WebDriverException;
+import org.openqa.selenium.WebElement;
+import org.openqa.selenium.devtools.DevToolsException;
+import org.openqa.selenium.json.Json;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Independent CDP commands and scripts sent to the current window together. Over the driver's
+ * {@link CdpConnection} every item is written before any response is awaited, so a batch costs
+ * about one round trip instead of one per item. When the browser has no reachable debugger the
+ * items are sent one after the other through chromedriver instead, with the same results.
+ *
+ * <pre>
+ * List&lt;CommandBatch.Result&gt; results = driver.newBatch()
+ *         .addCdpCommand("Page.getLayoutMetrics", Collections.emptyMap())
+ *         .addScript("return document.title")
+ *         .addScript("return document.querySelectorAll(arguments[0]).length", "a")
+ *         .execute();
+ * </pre>
+ *
+ * <p>Items must not depend on each other, the browser may run them in any order. Scripts are
+ * written like scripts passed to {@code executeScript}, but their arguments and results must be
+ * JSON values: elements can neither be passed nor returned.
+ */
+public class CommandBatch {
+
+    private static final Logger LOG = Logger.getLogger(CommandBatch.class.getName());
+
+    private static final Duration DEFAULT_TIMEOUT = Duration.ofSeconds(30);
+
+    private static final Json json = new Json();
+
+    private final StealthyChromiumDriver driver;
+    private final List<Item> items = new ArrayList<>();
+
+    CommandBatch(StealthyChromiumDriver driver) {
+        this.driver = driver;
+    }
+
+    /**
+     * @param method CDP method, e.g. {@code DOM.getDocument}.
+     * @param params Parameters of the method.
+     * @return This batch, the result of the command is the result map of the method.
+     */
+    public CommandBatch addCdpCommand(String method, Map<String, Object> params) {
+        items.add(new Item(method, params, null, null));
+        return this;
+    }
+
+    /**
+     * @param script The script, written like a script passed to {@code executeScript}.
+     * @param args   JSON arguments of the script.
+     * @return This batch, the result of the script is its return value.
+     */
+    public CommandBatch addScript(String script, Object... args) {
+        for (Object arg : args) {
+            if (arg instanceof WebElement) {
+                throw new IllegalArgumentException("Batched scripts can not take elements as arguments");
+            }
+        }
+        items.add(new Item(null, null, script, args));
+        return this;
+    }
+
+    public int size() {
+        return items.size();
+    }
+
+    /**
+     * Sends every item without waiting for any response.
+     *
+     * @return A future per item, in the order the items were added. A failing item fails its own
+     * future only.
+     */
+    public List<CompletableFuture<?>> send() {
+        CdpSession session = getSession();
+        List<CompletableFuture<?>> futures = new ArrayList<>(items.size());
+        for (Item item : items) {
+            futures.add(session == null ? executeSequentially(item) : send(session, item));
+        }
+        return futures;
+    }
+
+    /**
+     * Sends every item and waits for all of them.
+     *
+     * @return A result per item, in the order the items were added.
+     */
+    public List<Result> execute() {
+        List<CompletableFuture<?>> futures = send();
+        long deadline = System.nanoTime() + DEFAULT_TIMEOUT.toNanos();
+
+        List<Result> results = new ArrayList<>(futures.size());
+        for (int i = 0; i < futures.size(); i++) {
+            results.add(await(futures.get(i), items.get(i), deadline));
+        }
+        return results;
+    }
+
+    private CdpSession getSession() {
+        try {
+            return driver.getCdpSession();
+        } catch (WebDriverException exception) {
+            LOG.log(Level.FINE, "Unable to connect to the debugger, sending the batch through chromedriver", exception);
+            return null;
+        }
+    }
+
+    private CompletableFuture<?> send(CdpSession session, Item item) {
+        if (item.script == null) {
+            return session.send(item.method, item.params);
+        }
+
+        Map<String, Object> params = new HashMap<>();
+        params.put("expression", String.format("(function() {%n%s%n}).apply(window, %s)",
+                item.script, json.toJson(Arrays.asList(item.args))));
+        params.put("returnByValue", true);
+        params.put("awaitPromise", true);
+        return session.send("Runtime.evaluate", params).thenApply(CommandBatch::getScriptResult);
+    }
+
+    @SuppressWarnings("unchecked")
+    static Object getScriptResult(Map<String, Object> evaluation) {
+        Map<String, Object> exceptionDetails = (Map<String, Object>) evaluation.get("exceptionDetails");
+        if (exceptionDetails != null) {
+            Map<String, Object> exception = (Map<String, Object>) exceptionDetails.get("exception");
+            Object description = exception == null ? null : exception.get("description");
+            throw new JavascriptException(String.valueOf(description == null ? exceptionDetails.get("text") : description));
+        }
+
+        Map<String, Object> result = (Map<String, Object>) evaluation.get("result");
+        return result == null ? null : result.get("value");
+    }
+
+    private CompletableFuture<Object> executeSequentially(Item item) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        try {
+            future.complete(item.script == null
+                    ? driver.executeCdpCommand(item.method, item.params)
+                    : driver.executeScript(item.script, item.args));
+        } catch (RuntimeException exception) {
+            future.completeExceptionally(exception);
+        }
+        return future;
+    }
+
+    private static Result await(CompletableFuture<?> future, Item item, long deadline) {
+        try {
+            return new Result(future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS), null);
+        } catch (ExecutionException exception) {
+            Throwable cause = exception.getCause();
+            return new Result(null, cause instanceof RuntimeException
+                    ? (RuntimeException) cause
+                    : new WebDriverException(item + " failed", cause));
+        } catch (TimeoutException exception) {
+            return new Result(null, new DevToolsException("Timed out waiting for " + item, exception));
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            return new Result(null, new DevToolsException("Interrupted while waiting for " + item, exception));
+        }
+    }
+
+    @AllArgsConstructor
+    private static class Item {
+        private final String method;
+        private final Map<String, Object> params;
+        private final String script;
+        private final Object[] args;
+
+        @Override
+        public String toString() {
+            return script == null ? method : "script";
+        }
+    }
+
+    /**
+     * The outcome of one item of a batch.
+     */
+    @AllArgsConstructor
+    public static class Result {
+        private final Object value;
+        @Getter
+        private final RuntimeException error;
+
+        public boolean isSuccess() {
+            return error == null;
+        }
+
+        /**
+         * @return The result of the item.
+         * @throws RuntimeException The error of the item, if it failed.
+         */
+        public Object getValue() {
+            if (error != null) {
+                throw error;
+            }
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return error == null ? String.valueOf(value) : "failed: " + error.getMessage();
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package ca.menglish.undetected;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.openqa.selenium.json.Json;
+import org.openqa.selenium.remote.Command;
+import org.openqa.selenium.remote.ErrorCodes;
+import org.openqa.selenium.remote.Response;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Latency, in-flight and error counts of every command a driver sends, kept per command name.
+ * CDP commands are counted under {@code executeCdpCommand:<method>} so each CDP method shows up
+ * on its own.
+ *
+ * <p>Recording a command is a map lookup and a few atomic increments. When a slow command
+ * threshold is configured, commands taking longer are additionally sampled with the size of their
+ * request and response payloads, serializing the payloads only for those commands.
+ */
+public class CommandMetrics {
+
+    /**
+     * System property that defines the duration in milliseconds above which commands are sampled
+     * as slow. Slow command sampling is disabled when it is not set.
+     */
+    public static final String UNDETECTED_SLOW_COMMAND_THRESHOLD_PROPERTY = "webdriver.undetected.slowCommandThreshold";
+
+    private static final Logger LOG = Logger.getLogger(CommandMetrics.class.getName());
+
+    private static final int DEFAULT_SLOW_COMMAND_CAPACITY = 100;
+
+    private static final Json json = new Json();
+
+    private final ConcurrentHashMap<String, CommandStats> stats = new ConcurrentHashMap<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final long slowThresholdNanos;
+    private final int slowCommandCapacity;
+    private final Deque<SlowCommand> slowCommands = new ArrayDeque<>();
+
+    /**
+     * Creates metrics with slow command sampling configured by
+     * {@link #UNDETECTED_SLOW_COMMAND_THRESHOLD_PROPERTY}.
+     */
+    public CommandMetrics() {
+        this(getDefaultSlowThreshold(), DEFAULT_SLOW_COMMAND_CAPACITY);
+    }
+
+    /**
+     * @param slowThreshold       Duration above which commands are sampled, {@code null} to disable
+     *                            sampling.
+     * @param slowCommandCapacity Number of most recent slow commands kept.
+     */
+    public CommandMetrics(Duration slowThreshold, int slowCommandCapacity) {
+        this.slowThresholdNanos = slowThreshold == null ? Long.MAX_VALUE : slowThreshold.toNanos();
+        this.slowCommandCapacity = slowCommandCapacity;
+    }
+
+    /**
+     * Runs a command and records its latency and outcome.
+     */
+    Response record(Command command, CommandCall call) throws IOException {
+        CommandStats commandStats = stats.computeIfAbsent(getName(command), CommandStats::new);
+        inFlight.incrementAndGet();
+        commandStats.inFlight.incrementAndGet();
+        long start = System.nanoTime();
+
+        Response response = null;
+        try {
+            response = call.execute();
+            return response;
+        } finally {
+            long nanos = System.nanoTime() - start;
+            commandStats.inFlight.decrementAndGet();
+            inFlight.decrementAndGet();
+
+            commandStats.latency.record(nanos);
+            if (response == null || isError(response)) {
+                commandStats.errors.increment();
+            }
+            if (nanos > slowThresholdNanos) {
+                sample(commandStats.name, command, response, nanos);
+            }
+        }
+    }
+
+    /**
+     * @param name Command name, as reported by {@link #getCommandNames()}.
+     * @return The statistics of the command, or {@code null} if it was never sent.
+     */
+    public CommandStats getStats(String name) {
+        return stats.get(name);
+    }
+
+    /**
+     * @return Names of every command sent so far.
+     */
+    public List<String> getCommandNames() {
+        return new ArrayList<>(new TreeMap<>(stats).keySet());
+    }
+
+    /**
+     * @return Statistics of every command sent so far, the command taking the most time in total
+     * first.
+     */
+    public List<CommandStats> getStatsByTotalTime() {
+        List<CommandStats> sorted = new ArrayList<>(stats.values());
+        sorted.sort(Comparator.comparingLong((CommandStats commandStats) -> commandStats.latency.getTotalNanos()).reversed());
+        return sorted;
+    }
+
+    /**
+     * @return Number of commands currently being executed.
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return The most recent commands that took longer than the slow threshold, oldest first.
+     */
+    public List<SlowCommand> getSlowCommands() {
+        synchronized (slowCommands) {
+            return new ArrayList<>(slowCommands);
+        }
+    }
+
+    public void reset() {
+        stats.clear();
+        synchronized (slowCommands) {
+            slowCommands.clear();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (CommandStats commandStats : getStatsByTotalTime()) {
+            builder.append(commandStats).append(System.lineSeparator());
+        }
+        return builder.toString();
+    }
+
+    private void sample(String name, Command command, Response response, long nanos) {
+        int requestBytes = getPayloadSize(command.getParameters());
+        int responseBytes = response == null ? 0 : getPayloadSize(response.getValue());
+        SlowCommand slowCommand = new SlowCommand(name, Instant.now(), nanos, requestBytes, responseBytes);
+        LOG.log(Level.FINE, "Slow command: {0}", slowCommand);
+
+        synchronized (slowCommands) {
+            if (slowCommands.size() >= slowCommandCapacity) {
+                slowCommands.pollFirst();
+            }
+            slowCommands.addLast(slowCommand);
+        }
+    }
+
+    private static int getPayloadSize(Object payload) {
+        if (payload == null) {
+            return 0;
+        }
+        try {
+            return json.toJson(payload).length();
+        } catch (RuntimeException exception) {
+            return -1;
+        }
+    }
+
+    private static String getName(Command command) {
+        if ("executeCdpCommand".equals(command.getName())) {
+            Object method = command.getParameters().get("cmd");
+            if (method != null) {
+                return "executeCdpCommand:" + method;
+            }
+        }
+        return command.getName();
+    }
+
+    private static boolean isError(Response response) {
+        Integer status = response.getStatus();
+        return status != null && status != ErrorCodes.SUCCESS;
+    }
+
+    private static Duration getDefaultSlowThreshold() {
+        Long millis = Long.getLong(UNDETECTED_SLOW_COMMAND_THRESHOLD_PROPERTY);
+        return millis == null ? null : Duration.ofMillis(millis);
+    }
+
+    @FunctionalInterface
+    interface CommandCall {
+        Response execute() throws IOException;
+    }
+
+    /**
+     * Latency, in-flight and error counts of a single command name.
+     */
+    public static class CommandStats {
+
+        @Getter
+        private final String name;
+        @Getter
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final LongAdder errors = new LongAdder();
+
+        private CommandStats(String name) {
+            this.name = name;
+        }
+
+        public long getCount() {
+            return latency.getCount();
+        }
+
+        public int getInFlight() {
+            return inFlight.get();
+        }
+
+        public long getErrors() {
+            return errors.sum();
+        }
+
+        /**
+         * @return Fraction of the commands that failed, between 0 and 1.
+         */
+        public double getErrorRate() {
+            long count = getCount();
+            return count == 0 ? 0 : (double) getErrors() / count;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: total=%.3fms errors=%d inFlight=%d %s",
+                    name,
+                    latency.getTotalNanos() / 1e6,
+                    getErrors(),
+                    getInFlight(),
+                    latency);
+        }
+    }
+
+    /**
+     * A command that took longer than the slow threshold.
+     */
+    @AllArgsConstructor
+    @Getter
+    public static class SlowCommand {
+        private final String name;
+        private final Instant finishedAt;
+        private final long nanos;
+        /**
+         * Length of the JSON encoded command parameters.
+         */
+        private final int requestBytes;
+        /**
+         * Length of the JSON encoded response value, or 0 if the command failed without response.
+         */
+        private final int responseBytes;
+
+        @Override
+        public String toString() {
+            return String.format("%s took %.3fms, request=%dB response=%dB", name, nanos / 1e6, requestBytes, responseBytes);
+        }
+    }
+}
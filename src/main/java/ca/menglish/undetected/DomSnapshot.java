@@ -0,0 +1,243 @@
+package ca.menglish.undetected;
+
+import org.openqa.selenium.By;
+import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.WebDriverException;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Properties of every node a locator selects, read in one script call instead of one round trip
+ * per element per property.
+ *
+ * <p>The snapshot is columnar: each requested property is a column of indexes into one table of
+ * distinct strings, so a value repeated across thousands of rows, such as a class name, is sent and
+ * kept once. Rows are read through a reusable {@link Row} cursor, no element proxies or per-row
+ * objects are created.
+ *
+ * <pre>
+ * DomSnapshot snapshot = driver.snapshot(By.cssSelector("table tr"), "innerText", "@data-id");
+ * for (DomSnapshot.Row row : snapshot) {
+ *     System.out.println(row.get("@data-id") + ": " + row.get("innerText"));
+ * }
+ * </pre>
+ *
+ * <p>A property is read from the element's DOM property, e.g. {@code innerText}, {@code value} or
+ * {@code href}, unless it starts with {@code @}, in which case the attribute of that name is read.
+ * Values are converted to strings, missing values are {@code null}.
+ */
+public class DomSnapshot implements Iterable<DomSnapshot.Row> {
+
+    /**
+     * Selects the nodes, reads every property and interns the values. Returns the string table and
+     * one flat array of string indexes per property, -1 standing for a missing value.
+     */
+    private static final String SCRIPT = "var using = arguments[0], value = arguments[1], properties = arguments[2];"
+            + "var nodes = [];"
+            + "if (using === 'xpath') {"
+            + "var found = document.evaluate(value, document, null, XPathResult.ORDERED_NODE_SNAPSHOT_TYPE, null);"
+            + "for (var i = 0; i < found.snapshotLength; i++) { nodes.push(found.snapshotItem(i)); }"
+            + "} else if (using === 'link text' || using === 'partial link text') {"
+            + "var links = document.querySelectorAll('a');"
+            + "for (var i = 0; i < links.length; i++) {"
+            + "var text = links[i].innerText.trim();"
+            + "if (using === 'link text' ? text === value : text.indexOf(value) !== -1) { nodes.push(links[i]); }"
+            + "}"
+            + "} else {"
+            + "nodes = document.querySelectorAll(value);"
+            + "}"
+            + "var strings = [], indexes = new Map(), columns = [];"
+            + "for (var p = 0; p < properties.length; p++) {"
+            + "var property = properties[p], attribute = property.charAt(0) === '@' ? property.substring(1) : null;"
+            + "var column = new Array(nodes.length);"
+            + "for (var n = 0; n < nodes.length; n++) {"
+            + "var raw = attribute === null ? nodes[n][property] : nodes[n].getAttribute(attribute);"
+            + "if (raw === null || raw === undefined) { column[n] = -1; continue; }"
+            + "var string = String(raw), index = indexes.get(string);"
+            + "if (index === undefined) { index = strings.length; strings.push(string); indexes.set(string, index); }"
+            + "column[n] = index;"
+            + "}"
+            + "columns.push(column);"
+            + "}"
+            + "return {size: nodes.length, strings: strings, columns: columns};";
+
+    private final List<String> properties;
+    private final int size;
+    private final String[] strings;
+    private final int[][] columns;
+
+    private DomSnapshot(List<String> properties, int size, String[] strings, int[][] columns) {
+        this.properties = properties;
+        this.size = size;
+        this.strings = strings;
+        this.columns = columns;
+    }
+
+    /**
+     * Takes a snapshot of the current document.
+     *
+     * @param driver     Driver to run the extraction script with.
+     * @param locator    Selects the nodes, by CSS selector, XPath, id, name, class name, tag name or
+     *                   link text.
+     * @param properties Properties to read from every node, {@code @name} for attributes.
+     * @return The snapshot, with a row per node in document order.
+     */
+    @SuppressWarnings("unchecked")
+    static DomSnapshot capture(JavascriptExecutor driver, By locator, String... properties) {
+        if (!(locator instanceof By.Remotable)) {
+            throw new IllegalArgumentException("Unsupported locator: " + locator);
+        }
+        By.Remotable.Parameters parameters = ((By.Remotable) locator).getRemoteParameters();
+
+        Object result = driver.executeScript(SCRIPT, parameters.using(), parameters.value(), Arrays.asList(properties));
+        if (!(result instanceof Map)) {
+            throw new WebDriverException("Unexpected snapshot result: " + result);
+        }
+        Map<String, Object> snapshot = (Map<String, Object>) result;
+
+        List<Object> strings = (List<Object>) snapshot.get("strings");
+        List<Object> columns = (List<Object>) snapshot.get("columns");
+        int[][] indexes = new int[columns.size()][];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = toIndexes((List<Object>) columns.get(i));
+        }
+        return new DomSnapshot(
+                Collections.unmodifiableList(new ArrayList<>(Arrays.asList(properties))),
+                ((Number) snapshot.get("size")).intValue(),
+                strings.toArray(new String[0]),
+                indexes);
+    }
+
+    private static int[] toIndexes(List<Object> column) {
+        int[] indexes = new int[column.size()];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = ((Number) column.get(i)).intValue();
+        }
+        return indexes;
+    }
+
+    /**
+     * @return Number of selected nodes.
+     */
+    public int size() {
+        return size;
+    }
+
+    public List<String> getProperties() {
+        return properties;
+    }
+
+    /**
+     * @return Number of distinct values across every column.
+     */
+    public int getDistinctValueCount() {
+        return strings.length;
+    }
+
+    /**
+     * @param row      Index of the node, in document order.
+     * @param property One of the properties the snapshot was taken with.
+     * @return The value, or {@code null} if the node has none.
+     */
+    public String get(int row, String property) {
+        return get(row, getColumnIndex(property));
+    }
+
+    /**
+     * @param property One of the properties the snapshot was taken with.
+     * @return A read only view of the values of every node, backed by the snapshot.
+     */
+    public List<String> getColumn(String property) {
+        int column = getColumnIndex(property);
+        return new AbstractList<String>() {
+            @Override
+            public String get(int row) {
+                return DomSnapshot.this.get(row, column);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Iterates the rows with a single cursor: the returned {@link Row} is the same object on every
+     * call and only valid until the next one.
+     */
+    @Override
+    public Iterator<Row> iterator() {
+        Row cursor = new Row();
+        return new Iterator<Row>() {
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            @Override
+            public Row next() {
+                if (next >= size) {
+                    throw new NoSuchElementException();
+                }
+                cursor.index = next++;
+                return cursor;
+            }
+        };
+    }
+
+    private String get(int row, int column) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+        }
+        int index = columns[column][row];
+        return index < 0 ? null : strings[index];
+    }
+
+    private int getColumnIndex(String property) {
+        int column = properties.indexOf(property);
+        if (column < 0) {
+            throw new IllegalArgumentException("Property was not captured: " + property);
+        }
+        return column;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("DomSnapshot(rows=%d, properties=%s, distinctValues=%d)", size, properties, strings.length);
+    }
+
+    /**
+     * Cursor over one node of the snapshot.
+     */
+    public class Row {
+        private int index;
+
+        private Row() {
+        }
+
+        /**
+         * @return Index of the node, in document order.
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        public String get(String property) {
+            return DomSnapshot.this.get(index, property);
+        }
+
+        public String get(int column) {
+            return DomSnapshot.this.get(index, column);
+        }
+    }
+}
@@ -0,0 +1,498 @@
+package ca.menglish.undetected;
+
+import lombok.Getter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Downloads files over HTTP(S) or from {@code file://} repositories.
+ *
+ * <p>When the server supports byte ranges, the file is fetched as fixed size segments, several at
+ * a time. Completed segments are recorded next to the partial file, so a download that is
+ * interrupted resumes where it stopped, within the same call after a dropped connection and
+ * across calls after a crash. The finished file is optionally checked against a SHA-256 checksum
+ * before it is moved into place.
+ */
+public class DownloadEngine {
+
+    private static final Logger LOG = Logger.getLogger(DownloadEngine.class.getName());
+
+    /**
+     * System property that defines how many segments of a download are fetched at the same time
+     * by the {@link #getDefault() default engine}.
+     */
+    public static final String UNDETECTED_DRIVER_DOWNLOAD_PARALLELISM_PROPERTY =
+            "webdriver.undetected.downloadParallelism";
+
+    /**
+     * Boolean system property that defines whether the {@link #getDefault() default engine}
+     * verifies downloads against a {@code .sha256} file published next to them.
+     */
+    public static final String UNDETECTED_DRIVER_VERIFY_CHECKSUM_PROPERTY =
+            "webdriver.undetected.verifyChecksum";
+
+    private static final String PART_SUFFIX = ".part";
+    private static final String PROGRESS_SUFFIX = ".progress";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final Duration SEGMENT_SHUTDOWN_TIMEOUT = Duration.ofSeconds(10);
+
+    private static final HttpClient sharedHttpClient = HttpClient.newBuilder()
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .connectTimeout(Duration.ofSeconds(30))
+            .build();
+
+    private static volatile DownloadEngine defaultEngine;
+
+    @Getter
+    private final HttpClient httpClient;
+    private final int parallelism;
+    private final long segmentSize;
+    private final int maxRetries;
+    private final Duration retryBackoff;
+    private final boolean checksumSidecar;
+
+    private DownloadEngine(Builder builder) {
+        this.httpClient = builder.httpClient;
+        this.parallelism = builder.parallelism;
+        this.segmentSize = builder.segmentSize;
+        this.maxRetries = builder.maxRetries;
+        this.retryBackoff = builder.retryBackoff;
+        this.checksumSidecar = builder.checksumSidecar;
+    }
+
+    /**
+     * @return An engine configured from the {@link #UNDETECTED_DRIVER_DOWNLOAD_PARALLELISM_PROPERTY}
+     * and {@link #UNDETECTED_DRIVER_VERIFY_CHECKSUM_PROPERTY} system properties, sharing one
+     * {@link HttpClient} with every other default engine user.
+     */
+    public static DownloadEngine getDefault() {
+        if (defaultEngine == null) {
+            synchronized (DownloadEngine.class) {
+                if (defaultEngine == null) {
+                    defaultEngine = new Builder()
+                            .withParallelism(Integer.getInteger(UNDETECTED_DRIVER_DOWNLOAD_PARALLELISM_PROPERTY, 4))
+                            .withChecksumSidecar(Boolean.getBoolean(UNDETECTED_DRIVER_VERIFY_CHECKSUM_PROPERTY))
+                            .build();
+                }
+            }
+        }
+        return defaultEngine;
+    }
+
+    /**
+     * Opens a stream over the whole file, for consumers that process it while it downloads.
+     *
+     * @param source {@code http}, {@code https} or {@code file} URI.
+     * @return The response body, to be closed by the caller.
+     * @throws IOException          If the file can not be opened.
+     * @throws InterruptedException If interrupted while waiting for the response.
+     */
+    public InputStream openStream(URI source) throws IOException, InterruptedException {
+        if (isFile(source)) {
+            return Files.newInputStream(Paths.get(source));
+        }
+
+        HttpResponse<InputStream> response = httpClient.send(
+                HttpRequest.newBuilder(source).GET().build(),
+                HttpResponse.BodyHandlers.ofInputStream());
+        if (response.statusCode() != 200) {
+            response.body().close();
+            throw new IOException("Unexpected status " + response.statusCode() + " downloading " + source);
+        }
+        return response.body();
+    }
+
+    /**
+     * Downloads a file, resuming a previous partial download of the same file to the same target.
+     *
+     * @param source         {@code http}, {@code https} or {@code file} URI.
+     * @param target         Where the finished file is moved to, replacing any existing file.
+     * @param expectedSha256 Hex encoded SHA-256 of the file, or null to skip the check unless the
+     *                       engine looks for a {@code .sha256} file next to the source.
+     * @return The target.
+     * @throws IOException          If the download fails after all retries or the checksum does
+     *                              not match.
+     * @throws InterruptedException If interrupted while downloading.
+     */
+    public Path download(URI source, Path target, String expectedSha256) throws IOException, InterruptedException {
+        Path part = target.resolveSibling(target.getFileName() + PART_SUFFIX);
+        Path progress = target.resolveSibling(target.getFileName() + PART_SUFFIX + PROGRESS_SUFFIX);
+
+        if (isFile(source)) {
+            Files.copy(Paths.get(source), part, StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            downloadHttp(source, part, progress);
+        }
+
+        if (expectedSha256 == null && checksumSidecar) {
+            expectedSha256 = readChecksumSidecar(source);
+        }
+        if (expectedSha256 != null) {
+            String actualSha256 = sha256(part);
+            if (!actualSha256.equalsIgnoreCase(expectedSha256)) {
+                Files.deleteIfExists(part);
+                Files.deleteIfExists(progress);
+                throw new IOException("Checksum mismatch for " + source + ": expected " + expectedSha256
+                        + " but was " + actualSha256);
+            }
+        }
+
+        Files.move(part, target, StandardCopyOption.REPLACE_EXISTING);
+        Files.deleteIfExists(progress);
+        return target;
+    }
+
+    private void downloadHttp(URI source, Path part, Path progress) throws IOException, InterruptedException {
+        HttpResponse<Void> head = httpClient.send(
+                HttpRequest.newBuilder(source).method("HEAD", HttpRequest.BodyPublishers.noBody()).build(),
+                HttpResponse.BodyHandlers.discarding());
+        long length = head.headers().firstValueAsLong("Content-Length").orElse(-1);
+        boolean acceptsRanges = head.statusCode() == 200
+                && length > 0
+                && head.headers().allValues("Accept-Ranges").stream()
+                        .anyMatch(value -> value.toLowerCase(Locale.ENGLISH).contains("bytes"));
+
+        if (!acceptsRanges) {
+            downloadWhole(source, part);
+            return;
+        }
+
+        String validator = length + " " + getValidator(head.headers());
+        Set<Integer> completed = readProgress(progress, validator, part, length);
+        int segmentCount = (int) ((length + segmentSize - 1) / segmentSize);
+
+        List<Integer> remaining = new ArrayList<>();
+        for (int segment = 0; segment < segmentCount; segment++) {
+            if (!completed.contains(segment)) {
+                remaining.add(segment);
+            }
+        }
+        if (remaining.isEmpty()) {
+            return;
+        }
+
+        try (FileChannel channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, remaining.size()), runnable -> {
+                Thread thread = new Thread(runnable, "download-segment");
+                thread.setDaemon(true);
+                return thread;
+            });
+            try {
+                List<Future<?>> futures = new ArrayList<>();
+                for (int segment : remaining) {
+                    long start = segment * segmentSize;
+                    long end = Math.min(length, start + segmentSize) - 1;
+                    futures.add(executor.submit(() -> {
+                        downloadSegment(source, channel, start, end);
+                        markCompleted(progress, segment);
+                        return null;
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    awaitSegment(future);
+                }
+            } finally {
+                // Segments still running after a failure must not write to the file once this
+                // call returned
+                executor.shutdownNow();
+                if (!executor.awaitTermination(SEGMENT_SHUTDOWN_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)) {
+                    LOG.warning("Segment downloads of " + source + " did not stop in time");
+                }
+            }
+        }
+    }
+
+    /**
+     * Fetches one byte range, retrying with backoff and resuming from the last byte written when
+     * the connection drops. Client errors fail right away.
+     */
+    private void downloadSegment(URI source, FileChannel channel, long start, long end) throws IOException, InterruptedException {
+        long position = start;
+        IOException lastFailure = null;
+
+        for (int attempt = 0; attempt <= maxRetries; attempt++) {
+            if (attempt > 0) {
+                Thread.sleep(retryBackoff.toMillis() << (attempt - 1));
+            }
+
+            try {
+                HttpResponse<InputStream> response = httpClient.send(
+                        HttpRequest.newBuilder(source).GET()
+                                .header("Range", "bytes=" + position + "-" + end)
+                                .build(),
+                        HttpResponse.BodyHandlers.ofInputStream());
+                try (InputStream body = response.body()) {
+                    if (response.statusCode() != 206) {
+                        lastFailure = new IOException("Unexpected status " + response.statusCode() + " for range of " + source);
+                        if (isClientError(response.statusCode())) {
+                            break;
+                        }
+                        continue;
+                    }
+
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    int length;
+                    while (position <= end && (length = body.read(buffer, 0, (int) Math.min(buffer.length, end - position + 1))) >= 0) {
+                        ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, length);
+                        while (bytes.hasRemaining()) {
+                            position += channel.write(bytes, position);
+                        }
+                    }
+                }
+                if (position > end) {
+                    return;
+                }
+                lastFailure = new IOException("Connection closed early for range of " + source);
+            } catch (IOException exception) {
+                lastFailure = exception;
+            }
+        }
+        throw lastFailure;
+    }
+
+    /**
+     * Fetches the file with a single request, retried from the start on failures that may pass.
+     * Client errors, such as an unknown version, fail right away.
+     */
+    private void downloadWhole(URI source, Path part) throws IOException, InterruptedException {
+        IOException lastFailure = null;
+        for (int attempt = 0; attempt <= maxRetries; attempt++) {
+            if (attempt > 0) {
+                Thread.sleep(retryBackoff.toMillis() << (attempt - 1));
+            }
+
+            HttpResponse<Path> response;
+            try {
+                response = httpClient.send(
+                        HttpRequest.newBuilder(source).GET().build(),
+                        HttpResponse.BodyHandlers.ofFile(part,
+                                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+            } catch (IOException exception) {
+                lastFailure = exception;
+                continue;
+            }
+            if (response.statusCode() == 200) {
+                return;
+            }
+
+            Files.deleteIfExists(part);
+            lastFailure = new IOException("Unexpected status " + response.statusCode() + " downloading " + source);
+            if (isClientError(response.statusCode())) {
+                break;
+            }
+        }
+        throw lastFailure;
+    }
+
+    /**
+     * @return Whether the status is a 4xx, which a retry of the same request would get again.
+     */
+    private static boolean isClientError(int statusCode) {
+        return statusCode >= 400 && statusCode < 500;
+    }
+
+    private String readChecksumSidecar(URI source) throws IOException, InterruptedException {
+        URI checksumUri = URI.create(source + ".sha256");
+        try (InputStream checksumStream = openStream(checksumUri)) {
+            String content = new String(checksumStream.readAllBytes(), StandardCharsets.US_ASCII).trim();
+            // sha256sum output is the checksum followed by the file name
+            return content.split("\\s+")[0];
+        }
+    }
+
+    /**
+     * Reads the segments completed by a previous call. The recorded progress is discarded when
+     * the file changed on the server since, as far as its length and validators tell.
+     */
+    private static Set<Integer> readProgress(Path progress, String validator, Path part, long length) throws IOException {
+        Set<Integer> completed = new HashSet<>();
+        if (Files.exists(progress) && Files.exists(part)) {
+            List<String> lines = Files.readAllLines(progress, StandardCharsets.UTF_8);
+            if (!lines.isEmpty() && lines.get(0).equals(validator)) {
+                for (String line : lines.subList(1, lines.size())) {
+                    if (!line.isEmpty()) {
+                        completed.add(Integer.parseInt(line.trim()));
+                    }
+                }
+                return completed;
+            }
+        }
+
+        Files.deleteIfExists(part);
+        Files.write(progress, (validator + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+        try (FileChannel channel = FileChannel.open(part, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            // Sizing the file up front lets every segment be written at its own position
+            channel.write(ByteBuffer.allocate(1), length - 1);
+        }
+        return completed;
+    }
+
+    private static synchronized void markCompleted(Path progress, int segment) throws IOException {
+        Files.write(progress, (segment + System.lineSeparator()).getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.APPEND);
+    }
+
+    private static String getValidator(HttpHeaders headers) {
+        return headers.firstValue("ETag").orElse("") + " " + headers.firstValue("Last-Modified").orElse("");
+    }
+
+    private static void awaitSegment(Future<?> future) throws IOException, InterruptedException {
+        try {
+            future.get();
+        } catch (ExecutionException exception) {
+            Throwable cause = exception.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof InterruptedException) {
+                throw new InterruptedIOException("Interrupted while downloading");
+            }
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * @return Hex encoded SHA-256 of the file.
+     */
+    static String sha256(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException exception) {
+            throw new IllegalStateException("SHA-256 is not available", exception);
+        }
+
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int length;
+            while ((length = in.read(buffer)) >= 0) {
+                digest.update(buffer, 0, length);
+            }
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for (byte value : digest.digest()) {
+            hex.append(String.format("%02x", value));
+        }
+        return hex.toString();
+    }
+
+    private static boolean isFile(URI source) {
+        return "file".equalsIgnoreCase(source.getScheme());
+    }
+
+    /**
+     * Builder used to configure new {@link DownloadEngine} instances.
+     */
+    public static class Builder {
+
+        private HttpClient httpClient = sharedHttpClient;
+        private int parallelism = 4;
+        private long segmentSize = 4 * 1024 * 1024;
+        private int maxRetries = 3;
+        private Duration retryBackoff = Duration.ofMillis(250);
+        private boolean checksumSidecar = false;
+
+        /**
+         * Configures the client used for every request. Defaults to a client shared by all engines.
+         *
+         * @param httpClient The client to use.
+         * @return A self reference.
+         */
+        public Builder withHttpClient(HttpClient httpClient) {
+            this.httpClient = httpClient;
+            return this;
+        }
+
+        /**
+         * Configures how many segments of a download are fetched at the same time.
+         *
+         * @param parallelism Number of concurrent range requests, at least 1.
+         * @return A self reference.
+         */
+        public Builder withParallelism(int parallelism) {
+            if (parallelism < 1) {
+                throw new IllegalArgumentException("Parallelism must be at least 1: " + parallelism);
+            }
+            this.parallelism = parallelism;
+            return this;
+        }
+
+        /**
+         * Configures the size of the byte ranges a download is split into, which is also the
+         * granularity a download resumes at after a crash.
+         *
+         * @param segmentSize Segment size in bytes.
+         * @return A self reference.
+         */
+        public Builder withSegmentSize(long segmentSize) {
+            if (segmentSize < 1) {
+                throw new IllegalArgumentException("Segment size must be positive: " + segmentSize);
+            }
+            this.segmentSize = segmentSize;
+            return this;
+        }
+
+        /**
+         * Configures how often a failed request is retried, with the backoff doubling each time.
+         *
+         * @param maxRetries   Number of retries per segment.
+         * @param retryBackoff Wait before the first retry.
+         * @return A self reference.
+         */
+        public Builder withRetries(int maxRetries, Duration retryBackoff) {
+            this.maxRetries = maxRetries;
+            this.retryBackoff = retryBackoff;
+            return this;
+        }
+
+        /**
+         * Configures whether downloads without an explicit checksum are verified against a
+         * {@code .sha256} file next to them, as published by most in-house mirrors.
+         *
+         * @param checksumSidecar True to look for the checksum file, false otherwise.
+         * @return A self reference.
+         */
+        public Builder withChecksumSidecar(boolean checksumSidecar) {
+            this.checksumSidecar = checksumSidecar;
+            return this;
+        }
+
+        public DownloadEngine build() {
+            return new DownloadEngine(this);
+        }
+    }
+}
@@ -3,21 +3,43 @@ package ca.menglish.undetected;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Locale;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 
 public class Downloader {
 
-    private static final String baseUrl = "https://chromedriver.storage.googleapis.com/96.0.4664.45/";
+    /**
+     * Version of chromedriver that is downloaded when no version is requested explicitly.
+     */
+    public static final String DEFAULT_DRIVER_VERSION = "96.0.4664.45";
+
+    /**
+     * System property that defines the base URL chromedriver archives are downloaded from instead
+     * of the public storage, e.g. an in-house mirror or a {@code file://} repository laid out as
+     * {@code <base>/<version>/<package>.zip}.
+     */
+    public static final String UNDETECTED_DRIVER_MIRROR_PROPERTY = "webdriver.undetected.driverMirror";
+
+    private static final String baseUrl = "https://chromedriver.storage.googleapis.com/";
+
+    private static final int PIPELINE_BUFFER_SIZE = 64 * 1024;
+
+    private static final String LOCK_SUFFIX = ".lock";
 
     public static DriverType getDriverType() {
         String osName = System.getProperty("os.name").toLowerCase(Locale.ENGLISH);
@@ -41,7 +63,23 @@ public class Downloader {
     }
 
     public static String getDownloadUrl(DriverType driverType) {
-        return baseUrl + driverType.getDriverPackageName();
+        return getDownloadUrl(DEFAULT_DRIVER_VERSION, driverType);
+    }
+
+    public static String getDownloadUrl(String driverVersion, DriverType driverType) {
+        return getBaseUrl() + driverVersion + "/" + driverType.getDriverPackageName();
+    }
+
+    /**
+     * @return The mirror configured through {@link #UNDETECTED_DRIVER_MIRROR_PROPERTY}, or the
+     * public chromedriver storage.
+     */
+    public static String getBaseUrl() {
+        String mirror = System.getProperty(UNDETECTED_DRIVER_MIRROR_PROPERTY);
+        if (mirror == null || mirror.isEmpty()) {
+            return baseUrl;
+        }
+        return mirror.endsWith("/") ? mirror : mirror + "/";
     }
 
     public static File downloadChromedriver() throws IOException, InterruptedException {
@@ -49,43 +87,412 @@ public class Downloader {
     }
 
     public static File downloadChromedriver(String downloadUrl) throws IOException, InterruptedException {
-        HttpClient httpClient = HttpClient.newHttpClient();
-        HttpResponse<InputStream> downloadRequestResponse = httpClient.send(
-                HttpRequest
-                        .newBuilder()
-                        .GET()
-                .uri(URI.create(downloadUrl))
-                .build(),
-                HttpResponse.BodyHandlers.ofInputStream()
-        );
+        return downloadChromedriver(downloadUrl, ExtractionMode.RANDOM_ACCESS);
+    }
+
+    /**
+     * Downloads chromedriver with the {@link DownloadEngine#getDefault() default engine} and
+     * extracts the executable from the archive.
+     *
+     * @param downloadUrl    URL of the chromedriver zip archive.
+     * @param extractionMode How the executable is located and extracted from the archive.
+     * @return The extracted, unpatched executable.
+     * @throws IOException          If the download fails or the archive holds no chromedriver.
+     * @throws InterruptedException If interrupted while downloading.
+     */
+    public static File downloadChromedriver(
+            String downloadUrl,
+            ExtractionMode extractionMode) throws IOException, InterruptedException {
+        return downloadChromedriver(downloadUrl, extractionMode, DownloadEngine.getDefault());
+    }
+
+    /**
+     * Downloads chromedriver and extracts the executable from the archive.
+     *
+     * @param downloadUrl    URL of the chromedriver zip archive.
+     * @param extractionMode How the executable is located and extracted from the archive.
+     * @param downloadEngine Engine the archive is fetched with.
+     * @return The extracted, unpatched executable.
+     * @throws IOException          If the download fails or the archive holds no chromedriver.
+     * @throws InterruptedException If interrupted while downloading.
+     */
+    public static File downloadChromedriver(
+            String downloadUrl,
+            ExtractionMode extractionMode,
+            DownloadEngine downloadEngine) throws IOException, InterruptedException {
+        return downloadChromedriver(downloadUrl, extractionMode, downloadEngine, getDefaultDownloadDirectory());
+    }
+
+    /**
+     * Downloads chromedriver and extracts the executable from the archive.
+     *
+     * @param downloadUrl       URL of the chromedriver zip archive.
+     * @param extractionMode    How the executable is located and extracted from the archive.
+     * @param downloadEngine    Engine the archive is fetched with.
+     * @param downloadDirectory Where {@link ExtractionMode#RANDOM_ACCESS} keeps the archive while
+     *                          it downloads, so an interrupted download resumes on the next call.
+     * @return The extracted, unpatched executable.
+     * @throws IOException          If the download fails or the archive holds no chromedriver.
+     * @throws InterruptedException If interrupted while downloading.
+     */
+    public static File downloadChromedriver(
+            String downloadUrl,
+            ExtractionMode extractionMode,
+            DownloadEngine downloadEngine,
+            Path downloadDirectory) throws IOException, InterruptedException {
+        File chromeDriver = File.createTempFile("chromedriver", "");
+        try {
+            extractChromedriver(downloadUrl, extractionMode, downloadEngine, downloadDirectory, new FileOutputStream(chromeDriver));
+            return chromeDriver;
+        } catch (IOException | RuntimeException exception) {
+            Files.deleteIfExists(chromeDriver.toPath());
+            throw exception;
+        }
+    }
+
+    public static PipelineResult downloadAndPatchChromedriver(String replacementCdc) throws IOException, InterruptedException {
+        return downloadAndPatchChromedriver(getDownloadUrl(), replacementCdc);
+    }
+
+    public static PipelineResult downloadAndPatchChromedriver(
+            String downloadUrl,
+            String replacementCdc) throws IOException, InterruptedException {
+        return downloadAndPatchChromedriver(downloadUrl, replacementCdc, ExtractionMode.RANDOM_ACCESS);
+    }
+
+    /**
+     * Downloads, extracts and patches chromedriver. Bytes leaving the archive are patched in
+     * flight by a {@link PatchingOutputStream} and written to disk once, instead of writing the
+     * extracted executable and then reading and rewriting it to patch it.
+     *
+     * @param downloadUrl    URL of the chromedriver zip archive.
+     * @param replacementCdc Replacement for the {@code cdc_} variable.
+     * @param extractionMode How the executable is located and extracted from the archive.
+     * @return The patched executable, the patch result and the time spent in each stage.
+     * @throws IOException          If the download fails or the archive holds no chromedriver.
+     * @throws InterruptedException If interrupted while downloading.
+     */
+    public static PipelineResult downloadAndPatchChromedriver(
+            String downloadUrl,
+            String replacementCdc,
+            ExtractionMode extractionMode) throws IOException, InterruptedException {
+        return downloadAndPatchChromedriver(downloadUrl, replacementCdc, extractionMode, DownloadEngine.getDefault());
+    }
 
+    /**
+     * Downloads, extracts and patches chromedriver. Bytes leaving the archive are patched in
+     * flight by a {@link PatchingOutputStream} and written to disk once.
+     *
+     * @param downloadUrl    URL of the chromedriver zip archive.
+     * @param replacementCdc Replacement for the {@code cdc_} variable.
+     * @param extractionMode How the executable is located and extracted from the archive.
+     * @param downloadEngine Engine the archive is fetched with.
+     * @return The patched executable, the patch result and the time spent in each stage.
+     * @throws IOException          If the download fails or the archive holds no chromedriver.
+     * @throws InterruptedException If interrupted while downloading.
+     */
+    public static PipelineResult downloadAndPatchChromedriver(
+            String downloadUrl,
+            String replacementCdc,
+            ExtractionMode extractionMode,
+            DownloadEngine downloadEngine) throws IOException, InterruptedException {
+        return downloadAndPatchChromedriver(downloadUrl, replacementCdc, extractionMode, downloadEngine, getDefaultDownloadDirectory());
+    }
+
+    /**
+     * Downloads, extracts and patches chromedriver. Bytes leaving the archive are patched in
+     * flight by a {@link PatchingOutputStream} and written to disk once.
+     *
+     * @param downloadUrl       URL of the chromedriver zip archive.
+     * @param replacementCdc    Replacement for the {@code cdc_} variable.
+     * @param extractionMode    How the executable is located and extracted from the archive.
+     * @param downloadEngine    Engine the archive is fetched with.
+     * @param downloadDirectory Where {@link ExtractionMode#RANDOM_ACCESS} keeps the archive while
+     *                          it downloads, so an interrupted download resumes on the next call.
+     * @return The patched executable, the patch result and the time spent in each stage.
+     * @throws IOException          If the download fails or the archive holds no chromedriver.
+     * @throws InterruptedException If interrupted while downloading.
+     */
+    public static PipelineResult downloadAndPatchChromedriver(
+            String downloadUrl,
+            String replacementCdc,
+            ExtractionMode extractionMode,
+            DownloadEngine downloadEngine,
+            Path downloadDirectory) throws IOException, InterruptedException {
         File chromeDriver = File.createTempFile("chromedriver", "");
+        try {
+            PatchingOutputStream patchingStream = new PatchingOutputStream(
+                    new FileOutputStream(chromeDriver),
+                    ExecutablePatcher.getSignatures(replacementCdc));
+            ExtractionTimings timings = extractChromedriver(downloadUrl, extractionMode, downloadEngine, downloadDirectory, patchingStream);
+            chromeDriver.setExecutable(true);
+
+            ExecutablePatcher.PatchResult patchResult = patchingStream.getResult();
+            StartupMetrics.record(StartupListener.Phase.PATCH, patchResult.getScanNanos());
+            return new PipelineResult(
+                    chromeDriver,
+                    patchResult,
+                    timings.downloadNanos,
+                    timings.inflateNanos,
+                    patchResult.getScanNanos(),
+                    patchingStream.getWriteNanos());
+        } catch (IOException | RuntimeException exception) {
+            Files.deleteIfExists(chromeDriver.toPath());
+            throw exception;
+        }
+    }
+
+    /**
+     * Downloads the archive and copies the chromedriver executable in it to the given stream,
+     * which is closed afterwards.
+     */
+    private static ExtractionTimings extractChromedriver(
+            String downloadUrl,
+            ExtractionMode extractionMode,
+            DownloadEngine downloadEngine,
+            Path downloadDirectory,
+            OutputStream out) throws IOException, InterruptedException {
+        ExtractionTimings timings;
+        try (out) {
+            if (extractionMode == ExtractionMode.RANDOM_ACCESS) {
+                timings = extractRandomAccess(downloadUrl, downloadEngine, downloadDirectory, out);
+            }
+            else {
+                timings = extractStreaming(downloadUrl, downloadEngine, out);
+            }
+        }
+        StartupMetrics.record(StartupListener.Phase.DOWNLOAD, timings.downloadNanos);
+        StartupMetrics.record(StartupListener.Phase.EXTRACT, timings.inflateNanos);
+        return timings;
+    }
+
+    private static ExtractionTimings extractStreaming(
+            String downloadUrl,
+            DownloadEngine downloadEngine,
+            OutputStream out) throws IOException, InterruptedException {
+        long requestStart = System.nanoTime();
+        InputStream body = downloadEngine.openStream(URI.create(downloadUrl));
+        long requestNanos = System.nanoTime() - requestStart;
+
+        TimedInputStream networkStream = new TimedInputStream(new BufferedInputStream(body, PIPELINE_BUFFER_SIZE));
+        try (ZipInputStream zipStream = new ZipInputStream(networkStream)) {
+            // Skipping inflates the entries before the executable, it is timed apart from the copy
+            // since the copy only measures its own reads
+            long skipStart = System.nanoTime();
+            if (!skipToChromedriverEntry(zipStream)) {
+                throw new IOException("No chromedriver executable found in " + downloadUrl);
+            }
+            long skipNanos = System.nanoTime() - skipStart;
+            long skipReadNanos = networkStream.getReadNanos();
+
+            long copyNanos = copy(zipStream, out);
+            long copyReadNanos = networkStream.getReadNanos() - skipReadNanos;
+            return new ExtractionTimings(
+                    requestNanos + networkStream.getReadNanos(),
+                    (skipNanos - skipReadNanos) + (copyNanos - copyReadNanos));
+        }
+    }
+
+    /**
+     * Buffers the whole archive in a local file and inflates only the chromedriver entry, located
+     * through the central directory. The time taken does not depend on where in the archive the
+     * entry is or on what else the archive holds.
+     *
+     * <p>The archive is named after its URL, so a download that failed part way leaves its
+     * completed segments for the next call to resume from. The finished archive is deleted once
+     * the executable was extracted. Calls for the same URL, in this JVM or another one sharing the
+     * download directory, take turns so they never write the same partial file.
+     */
+    private static ExtractionTimings extractRandomAccess(
+            String downloadUrl,
+            DownloadEngine downloadEngine,
+            Path downloadDirectory,
+            OutputStream out) throws IOException, InterruptedException {
+        Files.createDirectories(downloadDirectory);
+        Path archive = downloadDirectory.resolve(getArchiveName(downloadUrl)).toAbsolutePath().normalize();
+
+        LockFile lock = LockFile.acquire(archive.resolveSibling(archive.getFileName() + LOCK_SUFFIX));
+        try {
+            long requestStart = System.nanoTime();
+            downloadEngine.download(URI.create(downloadUrl), archive, null);
+            long downloadNanos = System.nanoTime() - requestStart;
+
+            try (ZipFile zipFile = new ZipFile(archive.toFile())) {
+                ZipEntry zipEntry = zipFile.stream()
+                        .filter(Downloader::isChromedriverEntry)
+                        .findFirst()
+                        .orElseThrow(() -> new IOException("No chromedriver executable found in " + downloadUrl));
 
-        byte[] buffer = new byte[1024];
-        ZipInputStream zipStream = new ZipInputStream(downloadRequestResponse.body());
-        ZipEntry zipEntry = zipStream.getNextEntry();
-        while (zipEntry != null) {
-            if (zipEntry.isDirectory()) {
-                continue;
+                try (InputStream entryStream = zipFile.getInputStream(zipEntry)) {
+                    return new ExtractionTimings(downloadNanos, copy(entryStream, out));
+                }
             }
+        } finally {
+            try {
+                Files.deleteIfExists(archive);
+            } finally {
+                lock.delete();
+            }
+        }
+    }
+
+    /**
+     * @return Where archives are downloaded to by default, in the directory of the
+     * {@link DriverCache#getDefault() default cache}.
+     */
+    public static Path getDefaultDownloadDirectory() {
+        return DriverCache.getDefault().getDownloadDirectory();
+    }
 
-            if (!zipEntry.getName().startsWith("chromedriver")) {
-                continue;
+    /**
+     * @return File name of a downloaded archive, unique per URL and thereby per version, platform
+     * and mirror.
+     */
+    static String getArchiveName(String downloadUrl) {
+        String fileName = downloadUrl.substring(downloadUrl.lastIndexOf('/') + 1);
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(downloadUrl.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                hex.append(String.format("%02x", digest[i]));
             }
+            return hex + "-" + fileName;
+        } catch (NoSuchAlgorithmException exception) {
+            throw new IllegalStateException("SHA-256 is not available", exception);
+        }
+    }
+
+    /**
+     * @return Time spent reading from the input stream.
+     */
+    private static long copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[PIPELINE_BUFFER_SIZE];
+        long readNanos = 0;
+        while (true) {
+            long readStart = System.nanoTime();
+            int length = in.read(buffer);
+            readNanos += System.nanoTime() - readStart;
+            if (length < 0) {
+                return readNanos;
+            }
+            out.write(buffer, 0, length);
+        }
+    }
+
+    /**
+     * Advances the zip stream to the chromedriver executable.
+     *
+     * @return Whether the executable was found, in which case the stream is positioned at it.
+     */
+    private static boolean skipToChromedriverEntry(ZipInputStream zipStream) throws IOException {
+        ZipEntry zipEntry;
+        while ((zipEntry = zipStream.getNextEntry()) != null) {
+            if (isChromedriverEntry(zipEntry)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Newer archives keep the executable in a directory next to license files whose names also
+     * start with chromedriver, so only the file name of the entry is compared.
+     */
+    static boolean isChromedriverEntry(ZipEntry zipEntry) {
+        if (zipEntry.isDirectory()) {
+            return false;
+        }
+        String name = zipEntry.getName();
+        String fileName = name.substring(name.lastIndexOf('/') + 1);
+        return fileName.equals("chromedriver") || fileName.equals("chromedriver.exe");
+    }
+
+    /**
+     * Outcome of {@link #downloadAndPatchChromedriver(String, String, ExtractionMode)}. In the
+     * streaming mode every stage runs interleaved with the others, so the times are totals over
+     * the whole pipeline.
+     */
+    @AllArgsConstructor
+    @Getter
+    public static class PipelineResult {
+        private final File chromedriver;
+        private final ExecutablePatcher.PatchResult patchResult;
+        /**
+         * Time spent waiting for the response and reading the archive from the network.
+         */
+        private final long downloadNanos;
+        /**
+         * Time spent inflating the executable, excluding network reads.
+         */
+        private final long inflateNanos;
+        /**
+         * Time spent matching and replacing signatures.
+         */
+        private final long patchNanos;
+        /**
+         * Time spent writing the patched executable to disk.
+         */
+        private final long writeNanos;
+    }
+
+    /**
+     * How the chromedriver executable is located in the downloaded archive.
+     */
+    public enum ExtractionMode {
+        /**
+         * Inflates the archive while it downloads, walking the entries in order until the
+         * executable is found. The archive is fetched with a single request, which is neither
+         * retried nor resumed, and not verified against a checksum.
+         */
+        STREAMING,
+        /**
+         * Downloads the archive to a local file first and seeks straight to the executable through
+         * the central directory, inflating nothing else. The download is split into ranges,
+         * retried, resumed and verified as configured on the {@link DownloadEngine}. This is the
+         * default.
+         */
+        RANDOM_ACCESS,
+    }
 
-            FileOutputStream chromeDriverOutStream = new FileOutputStream(chromeDriver);
-            int length;
-            while ((length = zipStream.read(buffer)) > 0) {
-                chromeDriverOutStream.write(buffer, 0, length);
+    @AllArgsConstructor
+    private static class ExtractionTimings {
+        private final long downloadNanos;
+        private final long inflateNanos;
+    }
+
+    /**
+     * Accumulates the time spent in reads of the wrapped stream.
+     */
+    private static class TimedInputStream extends FilterInputStream {
+        private long readNanos;
+
+        TimedInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            long start = System.nanoTime();
+            try {
+                return super.read();
+            } finally {
+                readNanos += System.nanoTime() - start;
             }
+        }
 
-            chromeDriverOutStream.close();
-            break;
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            long start = System.nanoTime();
+            try {
+                return super.read(bytes, offset, length);
+            } finally {
+                readNanos += System.nanoTime() - start;
+            }
         }
-        zipStream.closeEntry();
-        zipStream.close();
 
-        return chromeDriver;
+        long getReadNanos() {
+            return readNanos;
+        }
     }
 
     @AllArgsConstructor
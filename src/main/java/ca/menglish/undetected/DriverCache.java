@@ -0,0 +1,487 @@
+package ca.menglish.undetected;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+/**
+ * Persistent, content-addressed cache of patched chromedriver binaries.
+ *
+ * <p>Every entry lives in its own directory named after the digest of its {@link CacheKey}. Entries
+ * are written to a temporary directory first and then renamed into place, so a reader either sees
+ * a complete, ready-to-run binary or nothing at all. A cache hit touches the entry's modification
+ * time, which is what the LRU eviction orders by. Misses are deduplicated within the JVM and
+ * across processes sharing the cache directory, see
+ * {@link #getOrDownload(String, Downloader.DriverType, String)}.
+ */
+public class DriverCache {
+
+    /**
+     * System property that defines the directory patched chromedriver binaries are cached in.
+     */
+    public static final String UNDETECTED_DRIVER_CACHE_DIR_PROPERTY = "webdriver.undetected.cacheDir";
+
+    /**
+     * System property that defines the maximum number of patched binaries kept in the cache.
+     */
+    public static final String UNDETECTED_DRIVER_CACHE_MAX_ENTRIES_PROPERTY =
+            "webdriver.undetected.cacheMaxEntries";
+
+    /**
+     * System property that defines the maximum total size, in bytes, of the patched binaries kept
+     * in the cache.
+     */
+    public static final String UNDETECTED_DRIVER_CACHE_MAX_BYTES_PROPERTY =
+            "webdriver.undetected.cacheMaxBytes";
+
+    private static final int DEFAULT_MAX_ENTRIES = 8;
+    private static final long DEFAULT_MAX_BYTES = 512L * 1024 * 1024;
+    private static final String TEMP_ENTRY_PREFIX = ".tmp-";
+    private static final String LOCK_SUFFIX = ".lock";
+    /**
+     * Directory in the cache that archives are downloaded to, hidden like temporary entries so
+     * the eviction skips it.
+     */
+    private static final String DOWNLOAD_DIRECTORY = ".downloads";
+
+    /**
+     * Acquisitions in progress by entry directory, shared by every cache instance in the JVM.
+     */
+    private static final ConcurrentMap<Path, CompletableFuture<File>> inFlight = new ConcurrentHashMap<>();
+
+    private static final Executor acquisitionExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "driver-cache-acquisition");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Getter
+    private final Path cacheDirectory;
+    private final int maxEntries;
+    private final long maxBytes;
+
+    /**
+     * @param cacheDirectory Directory the patched binaries are stored in. Created when missing.
+     * @param maxEntries     Maximum number of entries kept after an insert.
+     * @param maxBytes       Maximum total size of the entries kept after an insert.
+     */
+    public DriverCache(Path cacheDirectory, int maxEntries, long maxBytes) {
+        this.cacheDirectory = cacheDirectory;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Creates a cache configured from the {@link #UNDETECTED_DRIVER_CACHE_DIR_PROPERTY},
+     * {@link #UNDETECTED_DRIVER_CACHE_MAX_ENTRIES_PROPERTY} and
+     * {@link #UNDETECTED_DRIVER_CACHE_MAX_BYTES_PROPERTY} system properties. The cache directory
+     * defaults to {@code ~/.cache/stealthy-chromium-driver}.
+     *
+     * @return A cache using the default configuration.
+     */
+    public static DriverCache getDefault() {
+        String cacheDirectory = System.getProperty(UNDETECTED_DRIVER_CACHE_DIR_PROPERTY);
+        Path directory = cacheDirectory != null
+                ? Paths.get(cacheDirectory)
+                : Paths.get(System.getProperty("user.home"), ".cache", "stealthy-chromium-driver");
+
+        return new DriverCache(
+                directory,
+                Integer.getInteger(UNDETECTED_DRIVER_CACHE_MAX_ENTRIES_PROPERTY, DEFAULT_MAX_ENTRIES),
+                Long.getLong(UNDETECTED_DRIVER_CACHE_MAX_BYTES_PROPERTY, DEFAULT_MAX_BYTES));
+    }
+
+    /**
+     * @return Where archives are kept while they download, so an interrupted download is resumed
+     * by the next acquisition.
+     */
+    public Path getDownloadDirectory() {
+        return cacheDirectory.resolve(DOWNLOAD_DIRECTORY);
+    }
+
+    /**
+     * Looks up a patched binary without doing any network, unzip or scan work.
+     *
+     * @param key The key of the binary to look up.
+     * @return The cached binary, or empty when it is not in the cache.
+     */
+    public Optional<File> get(CacheKey key) {
+        Path entry = getEntryDirectory(key);
+        Path binary = entry.resolve(key.getExecutableName());
+        if (!Files.isRegularFile(binary)) {
+            return Optional.empty();
+        }
+
+        try {
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException ignored) {
+            // A failed touch only makes the entry look older to the eviction.
+        }
+        return Optional.of(binary.toFile());
+    }
+
+    /**
+     * Copies an already patched binary into the cache and evicts old entries.
+     *
+     * @param key           The key to store the binary under.
+     * @param patchedDriver The patched chromedriver binary. Left untouched.
+     * @return The cached copy of the binary.
+     * @throws IOException If the binary could not be written to the cache.
+     */
+    public File put(CacheKey key, File patchedDriver) throws IOException {
+        return insert(key, patchedDriver.toPath(), false);
+    }
+
+    private File insert(CacheKey key, Path patchedDriver, boolean move) throws IOException {
+        Files.createDirectories(cacheDirectory);
+
+        Path entry = getEntryDirectory(key);
+        Path tempEntry = Files.createTempDirectory(cacheDirectory, TEMP_ENTRY_PREFIX);
+        try {
+            Path binary = tempEntry.resolve(key.getExecutableName());
+            if (move) {
+                Files.move(patchedDriver, binary, StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Files.copy(patchedDriver, binary, StandardCopyOption.REPLACE_EXISTING);
+            }
+            binary.toFile().setExecutable(true);
+
+            try {
+                Files.move(tempEntry, entry, StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException | DirectoryNotEmptyException exception) {
+                // Somebody else stored the same key in the meantime, their copy is just as good.
+            }
+        } finally {
+            deleteRecursively(tempEntry);
+        }
+
+        evict(entry);
+        return entry.resolve(key.getExecutableName()).toFile();
+    }
+
+    /**
+     * Returns the cached binary for the given key, downloading and patching it first on a miss.
+     *
+     * <p>Concurrent calls for the same key do the work once: within a JVM the callers share the
+     * result of the first one, across JVMs on the same host an exclusive {@link LockFile} next to
+     * the entry makes one process download and patch while the others wait and then
+     * pick up the entry it renamed into place.
+     *
+     * @param driverVersion  Version of chromedriver, e.g. {@link Downloader#DEFAULT_DRIVER_VERSION}.
+     * @param driverType     Platform build of chromedriver.
+     * @param replacementCdc Replacement for the {@code cdc_} variable.
+     * @return A ready-to-run patched chromedriver binary.
+     * @throws IOException          If downloading or caching the binary fails.
+     * @throws InterruptedException If interrupted while downloading or waiting for another caller.
+     */
+    public File getOrDownload(
+            String driverVersion,
+            Downloader.DriverType driverType,
+            String replacementCdc) throws IOException, InterruptedException {
+        CacheKey key = new CacheKey(driverVersion, driverType, replacementCdc, ExecutablePatcher.getPatchFingerprint());
+        Optional<File> cached = get(key);
+        if (cached.isPresent()) {
+            return cached.get();
+        }
+
+        Path entry = getEntryDirectory(key).toAbsolutePath().normalize();
+        CompletableFuture<File> flight = new CompletableFuture<>();
+        CompletableFuture<File> existingFlight = inFlight.putIfAbsent(entry, flight);
+        if (existingFlight != null) {
+            return await(existingFlight);
+        }
+
+        try {
+            File chromedriver = downloadLocked(key);
+            flight.complete(chromedriver);
+            return chromedriver;
+        } catch (IOException | InterruptedException | RuntimeException exception) {
+            flight.completeExceptionally(exception);
+            throw exception;
+        } finally {
+            inFlight.remove(entry, flight);
+        }
+    }
+
+    /**
+     * Asynchronous variant of {@link #getOrDownload(String, Downloader.DriverType, String)}. Callers
+     * for a key that is already being acquired get the pending future instead of a new one.
+     *
+     * @param driverVersion  Version of chromedriver, e.g. {@link Downloader#DEFAULT_DRIVER_VERSION}.
+     * @param driverType     Platform build of chromedriver.
+     * @param replacementCdc Replacement for the {@code cdc_} variable.
+     * @return Completes with a ready-to-run patched chromedriver binary.
+     */
+    public CompletableFuture<File> getOrDownloadAsync(
+            String driverVersion,
+            Downloader.DriverType driverType,
+            String replacementCdc) {
+        CacheKey key = new CacheKey(driverVersion, driverType, replacementCdc, ExecutablePatcher.getPatchFingerprint());
+        Optional<File> cached = get(key);
+        if (cached.isPresent()) {
+            return CompletableFuture.completedFuture(cached.get());
+        }
+
+        CompletableFuture<File> existingFlight = inFlight.get(getEntryDirectory(key).toAbsolutePath().normalize());
+        if (existingFlight != null) {
+            return existingFlight;
+        }
+
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return getOrDownload(driverVersion, driverType, replacementCdc);
+            } catch (IOException exception) {
+                throw new UncheckedIOException(exception);
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                throw new CompletionException(exception);
+            }
+        }, acquisitionExecutor);
+    }
+
+    /**
+     * Downloads and patches the binary while holding the cross-process lock of its key, unless
+     * another process stored it while this one was waiting for the lock. The lock file is deleted
+     * afterwards, so lock files only exist while a key is being acquired or evicted.
+     */
+    private File downloadLocked(CacheKey key) throws IOException, InterruptedException {
+        Files.createDirectories(cacheDirectory);
+        LockFile lock = LockFile.acquire(getLockFile(getEntryDirectory(key)));
+        try {
+            Optional<File> cached = get(key);
+            if (cached.isPresent()) {
+                return cached.get();
+            }
+
+            File chromedriver = Downloader.downloadAndPatchChromedriver(
+                    Downloader.getDownloadUrl(key.getDriverVersion(), key.getDriverType()),
+                    key.getReplacementCdc(),
+                    Downloader.ExtractionMode.RANDOM_ACCESS,
+                    DownloadEngine.getDefault(),
+                    getDownloadDirectory()).getChromedriver();
+            try {
+                return insert(key, chromedriver.toPath(), true);
+            } finally {
+                Files.deleteIfExists(chromedriver.toPath());
+            }
+        } finally {
+            lock.delete();
+        }
+    }
+
+    private static File await(CompletableFuture<File> flight) throws IOException, InterruptedException {
+        try {
+            return flight.get();
+        } catch (ExecutionException exception) {
+            Throwable cause = exception.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof InterruptedException) {
+                throw new InterruptedIOException("Concurrent acquisition was interrupted");
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Removes the least recently used entries until the cache is within its entry count and size
+     * limits, and lock files left behind by processes that died while holding them.
+     *
+     * <p>An entry is only deleted while holding the lock of its key, and not when it was used
+     * since the entries were listed, so an entry being acquired or just returned by {@link #get}
+     * survives. Entries deleted by another process in the meantime are skipped.
+     *
+     * @throws IOException If the cache directory could not be listed.
+     */
+    public void evict() throws IOException {
+        evict(null);
+    }
+
+    private void evict(Path keep) throws IOException {
+        if (!Files.isDirectory(cacheDirectory)) {
+            return;
+        }
+
+        // Listed with their modification time once, a touch by get() during the sort would
+        // otherwise break its ordering
+        Map<Path, FileTime> entries = new HashMap<>();
+        List<Path> lockFiles = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(cacheDirectory)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                if (name.endsWith(LOCK_SUFFIX)) {
+                    lockFiles.add(path);
+                }
+                // Temporary entries and the download directory start with a dot
+                else if (!name.startsWith(".") && Files.isDirectory(path)) {
+                    entries.put(path, getLastModifiedTime(path));
+                }
+            }
+        }
+        List<Path> leastRecentlyUsedLast = new ArrayList<>(entries.keySet());
+        leastRecentlyUsedLast.sort(Comparator.comparing(entries::get).reversed());
+
+        int keptEntries = 0;
+        long keptBytes = 0;
+        for (Path entry : leastRecentlyUsedLast) {
+            long entryBytes;
+            try {
+                entryBytes = getSize(entry);
+            } catch (NoSuchFileException exception) {
+                continue;
+            }
+
+            boolean fits = keptEntries < maxEntries && keptBytes + entryBytes <= maxBytes;
+            if (fits || entry.equals(keep) || !deleteUnused(entry, entries.get(entry))) {
+                keptEntries++;
+                keptBytes += entryBytes;
+            }
+        }
+
+        for (Path lockFile : lockFiles) {
+            LockFile lock = LockFile.tryAcquire(lockFile);
+            if (lock != null) {
+                lock.delete();
+            }
+        }
+    }
+
+    /**
+     * Deletes an entry unless its key is being acquired or the entry was used since it was listed.
+     *
+     * @return Whether the entry is gone.
+     */
+    private boolean deleteUnused(Path entry, FileTime listedLastModifiedTime) throws IOException {
+        LockFile lock = LockFile.tryAcquire(getLockFile(entry));
+        if (lock == null) {
+            return false;
+        }
+
+        try {
+            if (!Files.isDirectory(entry)) {
+                return true;
+            }
+            if (!getLastModifiedTime(entry).equals(listedLastModifiedTime)) {
+                return false;
+            }
+            deleteRecursively(entry);
+            return true;
+        } catch (UncheckedIOException exception) {
+            if (exception.getCause() instanceof NoSuchFileException) {
+                return true;
+            }
+            throw exception.getCause();
+        } finally {
+            lock.delete();
+        }
+    }
+
+    private static Path getLockFile(Path entry) {
+        return entry.resolveSibling(entry.getFileName() + LOCK_SUFFIX);
+    }
+
+    private Path getEntryDirectory(CacheKey key) {
+        return cacheDirectory.resolve(key.getDigest());
+    }
+
+    private static FileTime getLastModifiedTime(Path path) {
+        try {
+            return Files.getLastModifiedTime(path);
+        } catch (IOException exception) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    /**
+     * @throws NoSuchFileException If the directory, or a file in it, was deleted while walking it.
+     */
+    private static long getSize(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            return files.filter(Files::isRegularFile).mapToLong(file -> file.toFile().length()).sum();
+        } catch (UncheckedIOException exception) {
+            throw exception.getCause();
+        }
+    }
+
+    static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(path)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    /**
+     * Identifies one patched chromedriver binary. Two binaries with equal keys are byte for byte
+     * identical, so the key can be used to share them across JVM runs.
+     */
+    @AllArgsConstructor
+    @Getter
+    public static class CacheKey {
+        private final String driverVersion;
+        private final Downloader.DriverType driverType;
+        private final String replacementCdc;
+        /**
+         * Identifies the patching algorithm and signatures, see {@link ExecutablePatcher#getPatchFingerprint()}.
+         */
+        private final String patchFingerprint;
+
+        public String getExecutableName() {
+            return driverType == Downloader.DriverType.WINDOWS ? "chromedriver.exe" : "chromedriver";
+        }
+
+        /**
+         * @return Hex encoded SHA-256 digest of every field of the key.
+         */
+        public String getDigest() {
+            String identity = String.join("\n",
+                    driverVersion, driverType.name(), replacementCdc, patchFingerprint);
+            try {
+                byte[] digest = MessageDigest.getInstance("SHA-256")
+                        .digest(identity.getBytes(StandardCharsets.UTF_8));
+                StringBuilder hex = new StringBuilder();
+                for (byte value : digest) {
+                    hex.append(String.format("%02x", value));
+                }
+                return hex.toString();
+            } catch (NoSuchAlgorithmException exception) {
+                throw new IllegalStateException("SHA-256 is not available", exception);
+            }
+        }
+    }
+}
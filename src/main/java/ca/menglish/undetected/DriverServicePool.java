@@ -0,0 +1,364 @@
+package ca.menglish.undetected;
+
+import lombok.AllArgsConstructor;
+import org.openqa.selenium.WebDriverException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps chromedriver processes started ahead of time, so creating a driver does not wait for the
+ * process to spawn and its port to come up.
+ *
+ * <p>A leased service belongs to the driver it is handed to and is stopped when that driver
+ * quits, so every lease takes one service out of the pool. The pool refills in the background to
+ * keep at least {@code minIdle} services ready, health checks idle services periodically, and
+ * replaces those that died or outlived {@code maxLifetime}. When no service is ready a lease
+ * starts one on the calling thread, so a lease is never slower than not using the pool.
+ *
+ * <pre>
+ * try (DriverServicePool pool = new DriverServicePool.Builder().withMinIdle(4).build()) {
+ *     StealthyChromiumDriver driver = new StealthyChromiumDriver(pool, new ChromeOptions());
+ * }
+ * </pre>
+ */
+public class DriverServicePool implements Closeable {
+
+    private static final Logger LOG = Logger.getLogger(DriverServicePool.class.getName());
+
+    private static final HttpClient healthCheckClient = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(2))
+            .build();
+
+    private final Supplier<StealthyChromiumDriverService> serviceFactory;
+    private final int minIdle;
+    private final Duration maxLifetime;
+    private final Duration healthCheckTimeout;
+
+    private final ConcurrentLinkedDeque<PooledService> idle = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger starting = new AtomicInteger();
+    private final ScheduledExecutorService maintenanceExecutor;
+    private final ExecutorService startExecutor;
+    private volatile boolean closed;
+
+    private final LatencyHistogram leaseWaitTimes = new LatencyHistogram();
+    private final LatencyHistogram startTimes = new LatencyHistogram();
+    private final AtomicLong warmLeases = new AtomicLong();
+    private final AtomicLong coldLeases = new AtomicLong();
+    private final AtomicLong discardedServices = new AtomicLong();
+
+    private DriverServicePool(Builder builder) {
+        this.serviceFactory = builder.serviceFactory;
+        this.minIdle = builder.minIdle;
+        this.maxLifetime = builder.maxLifetime;
+        this.healthCheckTimeout = builder.healthCheckTimeout;
+
+        this.maintenanceExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> newDaemonThread(runnable, "driver-service-pool-maintenance"));
+        this.startExecutor = Executors.newFixedThreadPool(builder.startParallelism, runnable -> newDaemonThread(runnable, "driver-service-pool-start"));
+
+        long interval = builder.healthCheckInterval.toMillis();
+        maintenanceExecutor.scheduleWithFixedDelay(this::maintain, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Takes a started service out of the pool, starting one on the calling thread when none is
+     * ready.
+     *
+     * @return A running service, owned by the caller from now on.
+     */
+    public StealthyChromiumDriverService lease() {
+        if (closed) {
+            throw new IllegalStateException("Pool is closed");
+        }
+
+        long leaseStart = System.nanoTime();
+        try {
+            PooledService pooled;
+            while ((pooled = idle.pollFirst()) != null) {
+                if (isUsable(pooled, false)) {
+                    warmLeases.incrementAndGet();
+                    return pooled.service;
+                }
+                discard(pooled);
+            }
+
+            coldLeases.incrementAndGet();
+            return startService().service;
+        } finally {
+            leaseWaitTimes.recordSince(leaseStart);
+            scheduleRefill();
+        }
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * @return Time callers spent in {@link #lease()}, including cold starts.
+     */
+    public LatencyHistogram getLeaseWaitTimes() {
+        return leaseWaitTimes;
+    }
+
+    /**
+     * @return Time it took to start every service the pool started, warm or cold.
+     */
+    public LatencyHistogram getStartTimes() {
+        return startTimes;
+    }
+
+    /**
+     * @return Number of leases served by a service that was already running.
+     */
+    public long getWarmLeases() {
+        return warmLeases.get();
+    }
+
+    /**
+     * @return Number of leases that had to start a service because none was ready.
+     */
+    public long getColdLeases() {
+        return coldLeases.get();
+    }
+
+    /**
+     * @return Number of idle services stopped because they died, failed a health check or outlived
+     * the maximum lifetime.
+     */
+    public long getDiscardedServices() {
+        return discardedServices.get();
+    }
+
+    /**
+     * Stops every idle service. Services already leased keep running until their driver quits.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        maintenanceExecutor.shutdownNow();
+        startExecutor.shutdownNow();
+
+        PooledService pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            pooled.service.stop();
+        }
+    }
+
+    private void maintain() {
+        try {
+            Iterator<PooledService> iterator = idle.iterator();
+            while (iterator.hasNext()) {
+                PooledService pooled = iterator.next();
+                if (!isUsable(pooled, true) && idle.removeFirstOccurrence(pooled)) {
+                    discard(pooled);
+                }
+            }
+
+            refill();
+        } catch (RuntimeException exception) {
+            LOG.log(Level.WARNING, "Driver service pool maintenance failed", exception);
+        }
+    }
+
+    /**
+     * Refills the pool on the maintenance thread, unless the pool was closed in the meantime.
+     */
+    private void scheduleRefill() {
+        if (closed) {
+            return;
+        }
+        try {
+            maintenanceExecutor.execute(this::refill);
+        } catch (RejectedExecutionException exception) {
+            // Closed since the check, there is nothing left to refill
+        }
+    }
+
+    private void refill() {
+        while (!closed && idle.size() + starting.get() < minIdle) {
+            starting.incrementAndGet();
+            try {
+                startExecutor.execute(this::startPooledService);
+            } catch (RejectedExecutionException exception) {
+                starting.decrementAndGet();
+                return;
+            }
+        }
+    }
+
+    private void startPooledService() {
+        try {
+            PooledService pooled = startService();
+            idle.addLast(pooled);
+            // close() may have drained the pool between starting and adding, whoever removes the
+            // service stops it
+            if (closed && idle.removeFirstOccurrence(pooled)) {
+                pooled.service.stop();
+            }
+        } catch (RuntimeException exception) {
+            LOG.log(Level.WARNING, "Failed to start a pooled driver service", exception);
+        } finally {
+            starting.decrementAndGet();
+        }
+    }
+
+    private PooledService startService() {
+        long start = System.nanoTime();
+        StealthyChromiumDriverService service = serviceFactory.get();
+        try {
+            service.start();
+        } catch (IOException exception) {
+            service.stop();
+            throw new WebDriverException("Failed to start driver service", exception);
+        }
+        startTimes.recordSince(start);
+        return new PooledService(service, System.nanoTime());
+    }
+
+    /**
+     * @param probe Whether to ask the service for its status rather than only checking that its
+     *              process is alive.
+     */
+    private boolean isUsable(PooledService pooled, boolean probe) {
+        if (System.nanoTime() - pooled.startedAt > maxLifetime.toNanos()) {
+            return false;
+        }
+        if (!pooled.service.isRunning()) {
+            return false;
+        }
+        if (!probe) {
+            return true;
+        }
+
+        try {
+            HttpResponse<Void> status = healthCheckClient.send(
+                    HttpRequest.newBuilder(URI.create(pooled.service.getUrl() + "/status"))
+                            .timeout(healthCheckTimeout)
+                            .GET()
+                            .build(),
+                    HttpResponse.BodyHandlers.discarding());
+            return status.statusCode() == 200;
+        } catch (IOException exception) {
+            return false;
+        } catch (InterruptedException exception) {
+            // Only the pool closing interrupts the health checks, a service nobody vouched for is
+            // not handed out
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void discard(PooledService pooled) {
+        discardedServices.incrementAndGet();
+        try {
+            pooled.service.stop();
+        } catch (RuntimeException exception) {
+            LOG.log(Level.FINE, "Failed to stop a discarded driver service", exception);
+        }
+    }
+
+    private static Thread newDaemonThread(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    @AllArgsConstructor
+    private static class PooledService {
+        private final StealthyChromiumDriverService service;
+        private final long startedAt;
+    }
+
+    /**
+     * Builder used to configure new {@link DriverServicePool} instances.
+     */
+    public static class Builder {
+
+        private Supplier<StealthyChromiumDriverService> serviceFactory = StealthyChromiumDriverService::createDefaultService;
+        private int minIdle = 2;
+        private Duration maxLifetime = Duration.ofMinutes(30);
+        private Duration healthCheckInterval = Duration.ofSeconds(10);
+        private Duration healthCheckTimeout = Duration.ofSeconds(2);
+        private int startParallelism = 2;
+
+        /**
+         * Configures how new services are created. Defaults to
+         * {@link StealthyChromiumDriverService#createDefaultService()}.
+         *
+         * @param serviceFactory Creates a new, not yet started, service.
+         * @return A self reference.
+         */
+        public Builder withServiceFactory(Supplier<StealthyChromiumDriverService> serviceFactory) {
+            this.serviceFactory = serviceFactory;
+            return this;
+        }
+
+        /**
+         * Configures the number of started services the pool keeps ready.
+         *
+         * @param minIdle Minimum number of idle services.
+         * @return A self reference.
+         */
+        public Builder withMinIdle(int minIdle) {
+            this.minIdle = minIdle;
+            return this;
+        }
+
+        /**
+         * Configures how long an idle service may run before it is replaced with a fresh one.
+         *
+         * @param maxLifetime Maximum age of an idle service.
+         * @return A self reference.
+         */
+        public Builder withMaxLifetime(Duration maxLifetime) {
+            this.maxLifetime = maxLifetime;
+            return this;
+        }
+
+        /**
+         * Configures how often idle services are health checked and the pool is refilled.
+         *
+         * @param healthCheckInterval Delay between maintenance runs.
+         * @param healthCheckTimeout  Time a service gets to answer its status endpoint.
+         * @return A self reference.
+         */
+        public Builder withHealthCheck(Duration healthCheckInterval, Duration healthCheckTimeout) {
+            this.healthCheckInterval = healthCheckInterval;
+            this.healthCheckTimeout = healthCheckTimeout;
+            return this;
+        }
+
+        /**
+         * Configures how many services the pool starts at the same time while refilling.
+         *
+         * @param startParallelism Number of concurrent service starts.
+         * @return A self reference.
+         */
+        public Builder withStartParallelism(int startParallelism) {
+            this.startParallelism = startParallelism;
+            return this;
+        }
+
+        public DriverServicePool build() {
+            return new DriverServicePool(this);
+        }
+    }
+}
@@ -1,110 +1,478 @@
 package ca.menglish.undetected;
 
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 public class ExecutablePatcher {
 
+    /**
+     * Version of the patching algorithm. Patched binaries produced by different versions of the
+     * algorithm are not interchangeable, so this is part of the {@link DriverCache} key and must be
+     * bumped whenever the bytes written by the patcher change.
+     */
+    public static final int PATCH_VERSION = 2;
+
+    /**
+     * Name the {@code cdc_} variable hits are reported under.
+     */
+    public static final String CDC_SIGNATURE = "cdc-variable";
+
+    /**
+     * Largest region of the executable that is mapped into memory at once by {@link PatchMode#MAPPED}.
+     */
+    private static final int MAPPED_WINDOW_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Smallest chunk handed to a single scanning thread, smaller chunks cost more in scheduling
+     * than they save in scanning.
+     */
+    private static final int MIN_CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * Number of chunks scanned at the same time when no parallelism is given explicitly.
+     */
+    public static final int DEFAULT_PARALLELISM = 1;
+
+    /**
+     * Automation fingerprints that are counted on every scan. They are looked for in the same pass
+     * as the {@code cdc_} variable, so registering more of them does not cost another pass.
+     */
+    private static final List<Signature> registeredSignatures = new CopyOnWriteArrayList<>(Arrays.asList(
+            Signature.report("cdc-document-key", "$cdc_"),
+            Signature.report("wdc-document-key", "$wdc_"),
+            Signature.report("webdriver-marker", "webdriver"),
+            Signature.report("webdriver-evaluate", "__webdriver_evaluate"),
+            Signature.report("webdriver-script-function", "__webdriver_script_fn"),
+            Signature.report("driver-evaluate", "__driver_evaluate"),
+            Signature.report("selenium-evaluate", "__selenium_evaluate")
+    ));
+
     public static boolean patchExecutable(File chromedriver) {
         return patchExecutable(chromedriver, getReplacementCdc());
     }
 
     public static boolean patchExecutable(File chromedriver, String replacementCdc) {
+        return patchExecutable(chromedriver, replacementCdc, PatchMode.getDefault());
+    }
+
+    public static boolean patchExecutable(File chromedriver, String replacementCdc, PatchMode patchMode) {
         try {
-            return replaceStringInFile(chromedriver, replacementCdc);
+            return patch(chromedriver, replacementCdc, patchMode).isPatched();
         } catch (IOException exception) {
             exception.printStackTrace();
         }
         return false;
     }
 
+    /**
+     * Replaces the {@code cdc_} variable and every registered replacing signature, and counts the
+     * hits of every registered signature, in a single pass over the executable.
+     *
+     * @param chromedriver   The executable to patch in place.
+     * @param replacementCdc Replacement for the {@code cdc_} variable.
+     * @param patchMode      How the executable is read and written.
+     * @return The hit counts of every signature and the number of replacements made.
+     * @throws IOException If the executable could not be read or written.
+     */
+    public static PatchResult patch(File chromedriver, String replacementCdc, PatchMode patchMode) throws IOException {
+        return patch(chromedriver, replacementCdc, patchMode, DEFAULT_PARALLELISM);
+    }
+
+    /**
+     * Replaces the {@code cdc_} variable and every registered replacing signature, and counts the
+     * hits of every registered signature, in a single pass over the executable. With a
+     * parallelism above one the executable is split into overlapping chunks that are scanned
+     * concurrently on the common {@link ForkJoinPool}, the matches are merged in offset order before
+     * anything is written, so the result does not depend on the parallelism.
+     *
+     * @param chromedriver   The executable to patch in place.
+     * @param replacementCdc Replacement for the {@code cdc_} variable.
+     * @param patchMode      How the executable is read and written.
+     * @param parallelism    Maximum number of chunks scanned at the same time.
+     * @return The hit counts of every signature, the replacements made and the scan throughput.
+     * @throws IOException If the executable could not be read or written.
+     */
+    public static PatchResult patch(
+            File chromedriver,
+            String replacementCdc,
+            PatchMode patchMode,
+            int parallelism) throws IOException {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1: " + parallelism);
+        }
+
+        long start = System.nanoTime();
+        List<Signature> signatures = getSignatures(replacementCdc);
+        PatchResult result;
+        if (patchMode == PatchMode.MAPPED) {
+            result = replaceSignaturesInMappedFile(chromedriver, signatures, parallelism);
+        }
+        else {
+            result = replaceSignaturesInFile(chromedriver, signatures, parallelism);
+        }
+        StartupMetrics.record(StartupListener.Phase.PATCH, System.nanoTime() - start);
+        return result;
+    }
+
     public static String getReplacementCdc() {
         return "fwf_g6hq42r9ikl0987ghnbvwr";
     }
 
     /**
-     * Finds the boundary in the given buffer using Boyer-Moore algo.
-     * Copied from java.util.regex.Pattern.java
+     * Registers an extra signature that is looked for on every following patch. Replacing
+     * signatures change the patched bytes and therefore the {@link #getPatchFingerprint()}.
      *
-     * @param file {@link File} to search through for the boundary
-     * @param replacementText Text to replace the search text with
+     * @param signature The signature to look for.
+     */
+    public static void registerSignature(Signature signature) {
+        registeredSignatures.add(signature);
+    }
+
+    /**
+     * @param replacementCdc Replacement for the {@code cdc_} variable.
+     * @return Every signature a patch looks for, the {@code cdc_} variable first.
      */
-    private static boolean replaceStringInFile(File file, String replacementText) throws IOException {
+    public static List<Signature> getSignatures(String replacementCdc) {
+        List<Signature> signatures = new ArrayList<>();
+        signatures.add(Signature.replace(CDC_SIGNATURE, "cdc_", replacementCdc));
+        signatures.addAll(registeredSignatures);
+        return signatures;
+    }
+
+    /**
+     * @return Identifies the bytes the patcher writes, used to key cached binaries.
+     */
+    public static String getPatchFingerprint() {
+        StringBuilder fingerprint = new StringBuilder(Integer.toString(PATCH_VERSION));
+        for (Signature signature : registeredSignatures) {
+            if (signature.isReplacing()) {
+                fingerprint.append(';')
+                        .append(Arrays.toString(signature.getPattern()))
+                        .append('=')
+                        .append(Arrays.toString(signature.getReplacement()));
+            }
+        }
+        return fingerprint.toString();
+    }
+
+    /**
+     * Replaces the signatures in the given file, reading the whole file onto the heap. The file is
+     * only rewritten when something was replaced.
+     *
+     * @param file {@link File} to search through for the signatures
+     * @param signatures Signatures to look for
+     * @param parallelism Maximum number of chunks scanned at the same time
+     */
+    private static PatchResult replaceSignaturesInFile(
+            File file,
+            List<Signature> signatures,
+            int parallelism) throws IOException {
         byte[] fileBytes = Files.readAllBytes(file.toPath());
-        byte[] replacementBytes = replacementText.getBytes();
-        boolean didReplacement = false;
 
-        for(int offset = 0; offset < fileBytes.length - 24; offset ++) {
-            if (fileBytes[offset] != 'c') {
-                continue;
+        PatchResult result = scan(signatures, fileBytes.length, parallelism, Integer.MAX_VALUE,
+                (start, length) -> ByteBuffer.wrap(fileBytes, (int) start, length).slice());
+        if (!result.isPatched()) {
+            return result;
+        }
+
+        for (Match match : result.getReplacements()) {
+            byte[] replacementBytes = signatures.get(match.getSignatureIndex()).getReplacement();
+            System.arraycopy(replacementBytes, 0, fileBytes, (int) match.getOffset(), replacementBytes.length);
+        }
+        Files.write(file.toPath(), fileBytes);
+
+        return result;
+    }
+
+    /**
+     * Replaces the signatures in the given file by scanning memory mapped windows of it. Heap use
+     * is bounded by the number of matches rather than the size of the file, and only the replaced
+     * regions are written back.
+     *
+     * @param file {@link File} to search through for the signatures
+     * @param signatures Signatures to look for
+     * @param parallelism Maximum number of windows scanned at the same time
+     */
+    private static PatchResult replaceSignaturesInMappedFile(
+            File file,
+            List<Signature> signatures,
+            int parallelism) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            PatchResult result = scan(signatures, channel.size(), parallelism, MAPPED_WINDOW_SIZE,
+                    (start, length) -> channel.map(FileChannel.MapMode.READ_ONLY, start, length));
+
+            for (Match match : result.getReplacements()) {
+                ByteBuffer replacement = ByteBuffer.wrap(signatures.get(match.getSignatureIndex()).getReplacement());
+                while (replacement.hasRemaining()) {
+                    channel.write(replacement, match.getOffset() + replacement.position());
+                }
             }
-            else if (fileBytes[offset + 1] != 'd') {
-                continue;
+            return result;
+        }
+    }
+
+    /**
+     * Splits the file into chunks, scans them, and resolves the merged matches. Chunks overlap by
+     * the longest signature span minus one so matches that straddle two chunks are still found and
+     * validated, every match is attributed to the chunk it starts in.
+     *
+     * @param signatures   Signatures to look for
+     * @param fileSize     Size of the file being patched
+     * @param parallelism  Maximum number of chunks scanned at the same time
+     * @param maxChunkSize Largest chunk a single buffer may cover
+     * @param chunkReader  Provides the bytes of a region of the file
+     */
+    private static PatchResult scan(
+            List<Signature> signatures,
+            long fileSize,
+            int parallelism,
+            int maxChunkSize,
+            ChunkReader chunkReader) throws IOException {
+        SignatureMatcher matcher = SignatureMatcher.compile(signatures);
+        int overlap = getMaxSpan(signatures) - 1;
+
+        long chunkSize = Math.max(MIN_CHUNK_SIZE, (fileSize + parallelism - 1) / parallelism);
+        chunkSize = Math.min(chunkSize, maxChunkSize - overlap);
+
+        List<Callable<List<Match>>> chunks = new ArrayList<>();
+        for (long chunkStart = 0; chunkStart < fileSize; chunkStart += chunkSize) {
+            long start = chunkStart;
+            int ownedLength = (int) Math.min(chunkSize, fileSize - start);
+            int length = (int) Math.min(fileSize - start, ownedLength + (long) overlap);
+            chunks.add(() -> findMatches(matcher, signatures, chunkReader.read(start, length), start, ownedLength, fileSize));
+        }
+
+        long scanStart = System.nanoTime();
+        List<Match> matches = new ArrayList<>();
+        if (parallelism == 1 || chunks.size() == 1) {
+            for (Callable<List<Match>> chunk : chunks) {
+                matches.addAll(call(chunk));
             }
-            else if (fileBytes[offset + 2] != 'c') {
-                continue;
+        } else {
+            for (Future<List<Match>> chunk : ForkJoinPool.commonPool().invokeAll(chunks)) {
+                matches.addAll(getChunkMatches(chunk));
             }
-            else if (fileBytes[offset + 3] != '_') {
-                continue;
+        }
+        long scanNanos = System.nanoTime() - scanStart;
+
+        return resolveMatches(signatures, matches, fileSize, scanNanos);
+    }
+
+    private static List<Match> call(Callable<List<Match>> chunk) throws IOException {
+        try {
+            return chunk.call();
+        } catch (IOException | RuntimeException exception) {
+            throw exception;
+        } catch (Exception exception) {
+            throw new IOException(exception);
+        }
+    }
+
+    private static List<Match> getChunkMatches(Future<List<Match>> chunk) throws IOException {
+        try {
+            return chunk.get();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while scanning the executable");
+        } catch (ExecutionException exception) {
+            if (exception.getCause() instanceof IOException) {
+                throw (IOException) exception.getCause();
             }
+            throw new IOException(exception.getCause());
+        }
+    }
 
-            // Entire pattern matched starting at off
-            for (int i = 0; i < replacementBytes.length; i++) {
-                fileBytes[offset + i] = replacementBytes[i];
+    /**
+     * Finds every signature that starts in the first {@code ownedLength} bytes of the buffer.
+     * Matches of replacing signatures are checked for being replaceable while their bytes are at
+     * hand.
+     *
+     * @param matcher      Matcher compiled from the signatures
+     * @param signatures   Signatures to look for
+     * @param buffer       Bytes to search, starting at {@code bufferOffset} in the file
+     * @param bufferOffset Offset in the file of the first byte of the buffer
+     * @param ownedLength  Number of bytes at the start of the buffer matches may start in
+     * @param fileSize     Size of the file being patched
+     */
+    private static List<Match> findMatches(
+            SignatureMatcher matcher,
+            List<Signature> signatures,
+            ByteBuffer buffer,
+            long bufferOffset,
+            int ownedLength,
+            long fileSize) {
+        List<Match> matches = new ArrayList<>();
+        int limit = buffer.limit();
+
+        matcher.scan(buffer, 0, limit, (signatureIndex, offset) -> {
+            if (offset >= ownedLength) {
+                return;
+            }
+            Signature signature = signatures.get(signatureIndex);
+            boolean replaceable = signature.isReplacing()
+                    && bufferOffset + offset + signature.getSpan() <= fileSize
+                    && offset + signature.getSpan() <= limit
+                    && signature.canReplaceAt(buffer, offset);
+            matches.add(new Match(bufferOffset + offset, signatureIndex, replaceable));
+        });
+
+        return matches;
+    }
+
+    /**
+     * Counts the hits per signature and picks the replacements to make. A replaceable match is
+     * skipped when it starts inside the region an earlier replacement overwrites.
+     */
+    private static PatchResult resolveMatches(
+            List<Signature> signatures,
+            List<Match> matches,
+            long bytesScanned,
+            long scanNanos) {
+        matches.sort(Comparator.comparingLong(Match::getOffset).thenComparingInt(Match::getSignatureIndex));
+
+        int[] hits = new int[signatures.size()];
+        List<Match> replacements = new ArrayList<>();
+        long nextAllowed = 0;
+        for (Match match : matches) {
+            hits[match.getSignatureIndex()]++;
+            if (match.isReplaceable() && match.getOffset() >= nextAllowed) {
+                replacements.add(match);
+                nextAllowed = match.getOffset() + signatures.get(match.getSignatureIndex()).getSpan();
             }
-            didReplacement = true;
         }
 
-        Files.write(file.toPath(), fileBytes);
+        return new PatchResult(
+                getHitCounts(signatures, hits),
+                Collections.unmodifiableList(replacements),
+                bytesScanned,
+                scanNanos);
+    }
 
-        return didReplacement;
+    /**
+     * @param signatures Signatures that were looked for
+     * @param hits       Number of matches of every signature, by signature index
+     * @return Number of matches by signature name, in signature order
+     */
+    static Map<String, Integer> getHitCounts(List<Signature> signatures, int[] hits) {
+        Map<String, Integer> hitCounts = new LinkedHashMap<>();
+        for (int index = 0; index < signatures.size(); index++) {
+            hitCounts.merge(signatures.get(index).getName(), hits[index], Integer::sum);
+        }
+        return Collections.unmodifiableMap(hitCounts);
     }
 
+    static int getMaxSpan(List<Signature> signatures) {
+        int maxSpan = 1;
+        for (Signature signature : signatures) {
+            maxSpan = Math.max(maxSpan, signature.getSpan());
+        }
+        return maxSpan;
+    }
+
+    @FunctionalInterface
+    private interface ChunkReader {
+        ByteBuffer read(long start, int length) throws IOException;
+    }
 
     /**
-     * Boyer-Moore search method. Copied from java.util.regex.Pattern.java
-     *
-     * Pre calculates arrays needed to generate the bad character
-     * shift and the good suffix shift. Only the last seven bits
-     * are used to see if chars match; This keeps the tables small
-     * and covers the heavily used ASCII range, but occasionally
-     * results in an aliased match for the bad character shift.
-     */
-    private static void compileBoundaryPattern(byte[] fileBytes, int[] badCharacterShifts, int[] goodSuffixShifts) {
-        int i, j;
-
-        // Precalculate part of the bad character shift
-        // It is a table for where in the pattern each
-        // lower 7-bit value occurs
-        for (i = 0; i < fileBytes.length; i++) {
-            badCharacterShifts[fileBytes[i]&0x7F] = (i + 1);
-        }
-
-        // Precalculate the good suffix shift
-        // i is the shift amount being considered
-        NEXT:   for (i = fileBytes.length; i > 0; i--) {
-            // j is the beginning index of suffix being considered
-            for (j = fileBytes.length - 1; j >= i; j--) {
-                // Testing for good suffix
-                if (fileBytes[j] == fileBytes[j-i]) {
-                    // src[j..len] is a good suffix
-                    goodSuffixShifts[j-1] = i;
-                } else {
-                    // No match. The array has already been
-                    // filled up with correct values before.
-                    continue NEXT;
-                }
-            }
-            // This fills up the remaining of optoSft
-            // any suffix can not have larger shift amount
-            // then its sub-suffix. Why???
-            while (j > 0) {
-                goodSuffixShifts[--j] = i;
+     * How {@link ExecutablePatcher} reads and writes the executable.
+     */
+    public enum PatchMode {
+        /**
+         * Reads the whole executable onto the heap and rewrites it when something was replaced.
+         */
+        HEAP,
+        /**
+         * Scans memory mapped windows of the executable and writes back only the replaced regions.
+         */
+        MAPPED,
+        ;
+
+        /**
+         * Mapped views keep the file locked on Windows until they are garbage collected, which
+         * breaks deleting or moving the patched binary right after patching, so the heap mode is
+         * used there.
+         *
+         * @return The mode used when none is given explicitly.
+         */
+        public static PatchMode getDefault() {
+            return Downloader.getDriverType() == Downloader.DriverType.WINDOWS ? HEAP : MAPPED;
+        }
+    }
+
+    /**
+     * A signature found in the executable.
+     */
+    @AllArgsConstructor
+    @Getter
+    public static class Match {
+        private final long offset;
+        private final int signatureIndex;
+        private final boolean replaceable;
+    }
+
+    /**
+     * Outcome of patching an executable.
+     */
+    @AllArgsConstructor
+    @Getter
+    public static class PatchResult {
+        /**
+         * Number of occurrences of every signature, by signature name.
+         */
+        private final Map<String, Integer> hitCounts;
+        /**
+         * Matches that were replaced, ordered by offset.
+         */
+        private final List<Match> replacements;
+
+        /**
+         * Size of the scanned executable.
+         */
+        private final long bytesScanned;
+        /**
+         * Wall clock time spent scanning, excluding reading the file onto the heap and writing
+         * the replacements.
+         */
+        private final long scanNanos;
+
+        public boolean isPatched() {
+            return !replacements.isEmpty();
+        }
+
+        /**
+         * @return Scan throughput in megabytes (10^6 bytes) per second.
+         */
+        public double getThroughputMegabytesPerSecond() {
+            if (scanNanos == 0) {
+                return 0;
             }
+            return (bytesScanned / 1_000_000.0) / (scanNanos / 1_000_000_000.0);
+        }
+
+        public int getHitCount(String signatureName) {
+            return hitCounts.getOrDefault(signatureName, 0);
         }
-        // Set the guard value because of unicode compression
-        goodSuffixShifts[fileBytes.length -1] = 1;
     }
 
 }
@@ -0,0 +1,47 @@
+package ca.menglish.undetected;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Records the duration of every startup phase in a {@link LatencyHistogram} per phase.
+ *
+ * <pre>
+ * HistogramStartupListener histograms = new HistogramStartupListener();
+ * StartupMetrics.setListener(histograms);
+ * ...
+ * System.out.println(histograms.getHistogram(StartupListener.Phase.READINESS));
+ * </pre>
+ */
+public class HistogramStartupListener implements StartupListener {
+
+    private final Map<Phase, LatencyHistogram> histograms = new EnumMap<>(Phase.class);
+
+    public HistogramStartupListener() {
+        for (Phase phase : Phase.values()) {
+            histograms.put(phase, new LatencyHistogram());
+        }
+    }
+
+    @Override
+    public void onPhase(Phase phase, long nanos) {
+        histograms.get(phase).record(nanos);
+    }
+
+    public LatencyHistogram getHistogram(Phase phase) {
+        return histograms.get(phase);
+    }
+
+    public void reset() {
+        histograms.values().forEach(LatencyHistogram::reset);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<Phase, LatencyHistogram> entry : histograms.entrySet()) {
+            builder.append(entry.getKey()).append(": ").append(entry.getValue()).append(System.lineSeparator());
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,551 @@
+package ca.menglish.undetected;
+
+import org.openqa.selenium.NoSuchSessionException;
+import org.openqa.selenium.TimeoutException;
+import org.openqa.selenium.remote.UnreachableBrowserException;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs tasks against drivers leased from a {@link SessionPool} with a fixed number of workers.
+ *
+ * <p>Tasks are queued per submitter and workers take from the submitters in turn, so a submitter
+ * queueing thousands of tasks does not starve one queueing a few. The queue is bounded: once full,
+ * {@link #submit} blocks until there is room or the submit timeout passes. A task running longer
+ * than its timeout fails with a {@link TimeoutException}, its worker is interrupted and its session
+ * discarded. A task failing because its browser crashed or its session is gone is retried on a new
+ * session, up to {@code maxAttempts} times in total.
+ *
+ * <pre>
+ * try (JobScheduler scheduler = new JobScheduler.Builder().withConcurrency(8).build()) {
+ *     CompletableFuture&lt;String&gt; title = scheduler.submit("crawler", driver -&gt; {
+ *         driver.get("https://example.com");
+ *         return driver.getTitle();
+ *     });
+ * }
+ * </pre>
+ */
+public class JobScheduler implements Closeable {
+
+    private static final Logger LOG = Logger.getLogger(JobScheduler.class.getName());
+
+    private static final String DEFAULT_SUBMITTER = "default";
+
+    private final SessionPool pool;
+    private final boolean ownsPool;
+    private final int queueCapacity;
+    private final Duration submitTimeout;
+    private final Duration taskTimeout;
+    private final int maxAttempts;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final Map<String, ArrayDeque<Job<?>>> queues = new HashMap<>();
+    /**
+     * Submitters with queued jobs, in the order they are served.
+     */
+    private final ArrayDeque<String> submitters = new ArrayDeque<>();
+    private int queued;
+    private volatile boolean closed;
+
+    private final List<Thread> workers = new ArrayList<>();
+    private final ScheduledExecutorService timeoutExecutor;
+
+    private final long createdAt = System.nanoTime();
+    private final AtomicInteger running = new AtomicInteger();
+    private final LatencyHistogram taskLatencies = new LatencyHistogram();
+    private final LatencyHistogram runTimes = new LatencyHistogram();
+    private final AtomicLong completedTasks = new AtomicLong();
+    private final AtomicLong failedTasks = new AtomicLong();
+    private final AtomicLong timedOutTasks = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+
+    private JobScheduler(Builder builder) {
+        this.ownsPool = builder.pool == null;
+        this.pool = ownsPool ? new SessionPool.Builder().withMaxSize(builder.concurrency).build() : builder.pool;
+        this.queueCapacity = builder.queueCapacity;
+        this.submitTimeout = builder.submitTimeout;
+        this.taskTimeout = builder.taskTimeout;
+        this.maxAttempts = builder.maxAttempts;
+
+        this.timeoutExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> newDaemonThread(runnable, "job-scheduler-timeout"));
+        for (int i = 0; i < builder.concurrency; i++) {
+            Thread worker = newDaemonThread(this::work, "job-scheduler-worker-" + i);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * Queues a task for the default submitter with the default timeout.
+     *
+     * @see #submit(String, Duration, Task)
+     */
+    public <T> CompletableFuture<T> submit(Task<T> task) {
+        return submit(DEFAULT_SUBMITTER, taskTimeout, task);
+    }
+
+    /**
+     * Queues a task with the default timeout.
+     *
+     * @see #submit(String, Duration, Task)
+     */
+    public <T> CompletableFuture<T> submit(String submitter, Task<T> task) {
+        return submit(submitter, taskTimeout, task);
+    }
+
+    /**
+     * Queues a task, blocking while the queue is full.
+     *
+     * @param submitter Who the task is queued for, submitters being served in turn.
+     * @param timeout   Maximum time the task may run, per attempt.
+     * @param task      The task, run with a leased driver.
+     * @return The result of the task. Cancelling it while the task is queued removes the task from
+     * the queue.
+     * @throws RejectedExecutionException If the scheduler is closed or the queue stayed full for
+     *                                    longer than the submit timeout.
+     */
+    public <T> CompletableFuture<T> submit(String submitter, Duration timeout, Task<T> task) {
+        Job<T> job = new Job<>(task, timeout);
+        lock.lock();
+        try {
+            long remaining = submitTimeout.toNanos();
+            while (queued >= queueCapacity && !closed) {
+                if (remaining <= 0) {
+                    throw new RejectedExecutionException("Queue stayed full for " + submitTimeout);
+                }
+                remaining = notFull.awaitNanos(remaining);
+            }
+            if (closed) {
+                throw new RejectedExecutionException("Scheduler is closed");
+            }
+
+            ArrayDeque<Job<?>> queue = queues.computeIfAbsent(submitter, key -> new ArrayDeque<>());
+            if (queue.isEmpty()) {
+                submitters.addLast(submitter);
+            }
+            queue.addLast(job);
+            queued++;
+            notEmpty.signal();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for room in the queue", exception);
+        } finally {
+            lock.unlock();
+        }
+        job.result.whenComplete((value, error) -> {
+            if (!job.taken) {
+                dequeue(submitter, job);
+            }
+        });
+        return job.result;
+    }
+
+    /**
+     * @return Number of tasks waiting for a worker.
+     */
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Number of tasks waiting for a worker, per submitter.
+     */
+    public Map<String, Integer> getQueueDepthBySubmitter() {
+        lock.lock();
+        try {
+            Map<String, Integer> depths = new HashMap<>();
+            queues.forEach((submitter, queue) -> depths.put(submitter, queue.size()));
+            return depths;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getRunning() {
+        return running.get();
+    }
+
+    /**
+     * @return Number of tasks completed, successfully or not, per second since the scheduler was
+     * created.
+     */
+    public double getThroughput() {
+        double seconds = (System.nanoTime() - createdAt) / 1e9;
+        return seconds == 0 ? 0 : (completedTasks.get() + failedTasks.get()) / seconds;
+    }
+
+    /**
+     * @return Time from submitting every task until it completed, including queueing and retries.
+     */
+    public LatencyHistogram getTaskLatencies() {
+        return taskLatencies;
+    }
+
+    /**
+     * @return Time every attempt spent running on a driver.
+     */
+    public LatencyHistogram getRunTimes() {
+        return runTimes;
+    }
+
+    public long getCompletedTasks() {
+        return completedTasks.get();
+    }
+
+    /**
+     * @return Number of tasks that failed, including those that timed out.
+     */
+    public long getFailedTasks() {
+        return failedTasks.get();
+    }
+
+    public long getTimedOutTasks() {
+        return timedOutTasks.get();
+    }
+
+    /**
+     * @return Number of attempts repeated on a new session after a crash.
+     */
+    public long getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * Stops accepting tasks and fails every queued one. Running tasks finish on their workers. A
+     * pool the scheduler created itself is closed too.
+     */
+    @Override
+    public void close() {
+        List<Job<?>> remaining = new ArrayList<>();
+        lock.lock();
+        try {
+            closed = true;
+            queues.values().forEach(remaining::addAll);
+            queues.clear();
+            submitters.clear();
+            queued = 0;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        for (Job<?> job : remaining) {
+            job.result.completeExceptionally(new RejectedExecutionException("Scheduler is closed"));
+        }
+        timeoutExecutor.shutdown();
+        if (ownsPool) {
+            pool.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("JobScheduler(queued=%d, running=%d, completed=%d, failed=%d, throughput=%.2f/s, p99=%.3fms)",
+                getQueueDepth(), getRunning(), getCompletedTasks(), getFailedTasks(), getThroughput(),
+                taskLatencies.getPercentileNanos(99) / 1e6);
+    }
+
+    private void work() {
+        // The job this worker runs, locked while interrupting so a timeout cannot interrupt the
+        // next job
+        AtomicReference<Job<?>> current = new AtomicReference<>();
+        Job<?> job;
+        while ((job = take()) != null) {
+            if (job.result.isDone()) {
+                // Cancelled right after it was taken
+                continue;
+            }
+
+            running.incrementAndGet();
+            current.set(job);
+            try {
+                run(job, current);
+            } catch (RuntimeException exception) {
+                LOG.log(Level.WARNING, "Job scheduler worker failed", exception);
+            } finally {
+                running.decrementAndGet();
+                synchronized (current) {
+                    current.set(null);
+                    // Clears an interrupt from a timeout that raced with completion
+                    Thread.interrupted();
+                }
+            }
+        }
+    }
+
+    private Job<?> take() {
+        lock.lock();
+        try {
+            while (submitters.isEmpty()) {
+                if (closed) {
+                    return null;
+                }
+                notEmpty.awaitUninterruptibly();
+            }
+
+            String submitter = submitters.pollFirst();
+            ArrayDeque<Job<?>> queue = queues.get(submitter);
+            Job<?> job = queue.pollFirst();
+            job.taken = true;
+            if (queue.isEmpty()) {
+                queues.remove(submitter);
+            }
+            else {
+                submitters.addLast(submitter);
+            }
+            queued--;
+            notFull.signal();
+            return job;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes a job that completed, i.e. was cancelled, before a worker took it.
+     */
+    private void dequeue(String submitter, Job<?> job) {
+        lock.lock();
+        try {
+            ArrayDeque<Job<?>> queue = queues.get(submitter);
+            if (queue == null || !queue.remove(job)) {
+                return;
+            }
+            if (queue.isEmpty()) {
+                queues.remove(submitter);
+                submitters.remove(submitter);
+            }
+            queued--;
+            notFull.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private <T> void run(Job<T> job, AtomicReference<Job<?>> current) {
+        for (int attempt = 1; ; attempt++) {
+            Thread worker = Thread.currentThread();
+            ScheduledFuture<?> timeout = timeoutExecutor.schedule(() -> {
+                if (job.result.completeExceptionally(new TimeoutException("Task did not complete within " + job.timeout))) {
+                    timedOutTasks.incrementAndGet();
+                    synchronized (current) {
+                        if (current.get() == job) {
+                            worker.interrupt();
+                        }
+                    }
+                }
+            }, job.timeout.toNanos(), TimeUnit.NANOSECONDS);
+
+            long start = System.nanoTime();
+            SessionPool.Lease lease = null;
+            try {
+                lease = pool.lease();
+                if (job.result.isDone()) {
+                    // Timed out or cancelled while waiting for the session
+                    complete(job, null, new CancellationException());
+                    return;
+                }
+                T value = job.task.run(lease.getDriver());
+                complete(job, value, null);
+                return;
+            } catch (Exception exception) {
+                boolean crashed = isCrash(exception);
+                if (lease != null && (crashed || job.result.isDone())) {
+                    // Crashed or timed out: the session may be left in any state
+                    lease.invalidate();
+                }
+
+                if (crashed && attempt < maxAttempts && !job.result.isDone()) {
+                    retries.incrementAndGet();
+                    LOG.log(Level.FINE, "Task failed on a crashed session, retrying on a new one", exception);
+                    continue;
+                }
+                complete(job, null, exception);
+                return;
+            } finally {
+                timeout.cancel(false);
+                runTimes.recordSince(start);
+                if (lease != null) {
+                    try {
+                        lease.close();
+                    } catch (RuntimeException exception) {
+                        LOG.log(Level.WARNING, "Failed to return a session to the pool", exception);
+                    }
+                }
+            }
+        }
+    }
+
+    private <T> void complete(Job<T> job, T value, Throwable error) {
+        boolean completed = error == null ? job.result.complete(value) : job.result.completeExceptionally(error);
+        if (completed && error == null) {
+            completedTasks.incrementAndGet();
+        }
+        else {
+            // Either failed now or already failed by its timeout
+            failedTasks.incrementAndGet();
+        }
+        taskLatencies.recordSince(job.submittedAt);
+    }
+
+    /**
+     * @return Whether the failure means the browser or its session is gone, rather than the task
+     * failing on a working session.
+     */
+    private static boolean isCrash(Throwable exception) {
+        for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+            if (cause instanceof NoSuchSessionException || cause instanceof UnreachableBrowserException) {
+                return true;
+            }
+            String message = cause.getMessage();
+            if (message != null && (message.contains("chrome not reachable")
+                    || message.contains("tab crashed")
+                    || message.contains("disconnected: not connected to DevTools"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Thread newDaemonThread(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * A unit of work run with a leased driver.
+     */
+    @FunctionalInterface
+    public interface Task<T> {
+        T run(StealthyChromiumDriver driver) throws Exception;
+    }
+
+    private static class Job<T> {
+        private final Task<T> task;
+        private final Duration timeout;
+        private final long submittedAt = System.nanoTime();
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        /**
+         * Whether a worker took the job out of its queue, set under the scheduler's lock.
+         */
+        private volatile boolean taken;
+
+        private Job(Task<T> task, Duration timeout) {
+            this.task = task;
+            this.timeout = timeout;
+        }
+    }
+
+    /**
+     * Builder used to configure new {@link JobScheduler} instances.
+     */
+    public static class Builder {
+
+        private SessionPool pool;
+        private int concurrency = 4;
+        private int queueCapacity = 1000;
+        private Duration submitTimeout = Duration.ofMinutes(1);
+        private Duration taskTimeout = Duration.ofMinutes(5);
+        private int maxAttempts = 3;
+
+        /**
+         * Configures the pool tasks lease their driver from. By default the scheduler creates a pool
+         * of {@code concurrency} sessions and closes it along with itself.
+         *
+         * @param pool Pool of sessions, left open when the scheduler is closed.
+         * @return A self reference.
+         */
+        public Builder withSessionPool(SessionPool pool) {
+            this.pool = pool;
+            return this;
+        }
+
+        /**
+         * Configures the number of tasks run at the same time.
+         *
+         * @param concurrency Number of workers.
+         * @return A self reference.
+         */
+        public Builder withConcurrency(int concurrency) {
+            this.concurrency = concurrency;
+            return this;
+        }
+
+        /**
+         * Configures the number of tasks that may wait for a worker before submitting blocks.
+         *
+         * @param queueCapacity Maximum number of queued tasks.
+         * @return A self reference.
+         */
+        public Builder withQueueCapacity(int queueCapacity) {
+            this.queueCapacity = queueCapacity;
+            return this;
+        }
+
+        /**
+         * Configures how long submitting waits for room in a full queue.
+         *
+         * @param submitTimeout Maximum wait for room in the queue.
+         * @return A self reference.
+         */
+        public Builder withSubmitTimeout(Duration submitTimeout) {
+            this.submitTimeout = submitTimeout;
+            return this;
+        }
+
+        /**
+         * Configures how long a task may run when it is submitted without a timeout.
+         *
+         * @param taskTimeout Maximum run time per attempt.
+         * @return A self reference.
+         */
+        public Builder withTaskTimeout(Duration taskTimeout) {
+            this.taskTimeout = taskTimeout;
+            return this;
+        }
+
+        /**
+         * Configures how often a task is attempted in total when its browser crashes.
+         *
+         * @param maxAttempts Maximum number of attempts, 1 to never retry.
+         * @return A self reference.
+         */
+        public Builder withMaxAttempts(int maxAttempts) {
+            this.maxAttempts = maxAttempts;
+            return this;
+        }
+
+        public JobScheduler build() {
+            return new JobScheduler(this);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package ca.menglish.undetected;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Exclusive lock on a file, between the threads of this JVM and between processes, that can be
+ * deleted once it is no longer needed.
+ *
+ * <p>A process waiting for a lock file that is deleted would end up holding a lock on a file
+ * nobody else can open any more. The holder therefore writes a byte into the file before deleting
+ * it, and whoever locks a file that is not empty opens the file again.
+ */
+class LockFile implements Closeable {
+
+    /**
+     * File locks are held per JVM, so the threads of this one queue up here before locking the
+     * file.
+     */
+    private static final ConcurrentMap<Path, ReentrantLock> threadLocks = new ConcurrentHashMap<>();
+
+    private final Path path;
+    private final ReentrantLock threadLock;
+    private final FileChannel channel;
+    private final FileLock fileLock;
+
+    private LockFile(Path path, ReentrantLock threadLock, FileChannel channel, FileLock fileLock) {
+        this.path = path;
+        this.threadLock = threadLock;
+        this.channel = channel;
+        this.fileLock = fileLock;
+    }
+
+    /**
+     * Locks the file, creating it when missing, and waits while somebody else holds it.
+     *
+     * @param path The lock file.
+     * @return The held lock, to be closed to release it.
+     * @throws IOException If the file could not be created or locked.
+     * @throws IllegalStateException If the calling thread holds the lock already.
+     */
+    static LockFile acquire(Path path) throws IOException {
+        ReentrantLock threadLock = getThreadLock(path);
+        if (threadLock.isHeldByCurrentThread()) {
+            throw new IllegalStateException("Lock on " + path + " is already held by this thread");
+        }
+        try {
+            threadLock.lockInterruptibly();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + path);
+        }
+
+        try {
+            while (true) {
+                FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                try {
+                    LockFile lockFile = lockIfCurrent(path, threadLock, channel, channel.lock());
+                    if (lockFile != null) {
+                        return lockFile;
+                    }
+                } catch (IOException | RuntimeException exception) {
+                    channel.close();
+                    throw exception;
+                }
+            }
+        } catch (IOException | RuntimeException exception) {
+            threadLock.unlock();
+            throw exception;
+        }
+    }
+
+    /**
+     * Locks the file, creating it when missing, if nobody holds it.
+     *
+     * @param path The lock file.
+     * @return The held lock, or {@code null} if somebody else or the calling thread holds it.
+     * @throws IOException If the file could not be created or locked.
+     */
+    static LockFile tryAcquire(Path path) throws IOException {
+        ReentrantLock threadLock = getThreadLock(path);
+        // Opening and closing a second channel on a file this thread holds would release the
+        // holder's lock between processes
+        if (threadLock.isHeldByCurrentThread() || !threadLock.tryLock()) {
+            return null;
+        }
+
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            FileLock fileLock = channel.tryLock();
+            LockFile lockFile = fileLock == null ? null : lockIfCurrent(path, threadLock, channel, fileLock);
+            if (lockFile != null) {
+                return lockFile;
+            }
+        } catch (OverlappingFileLockException exception) {
+            // Held through another channel of this JVM
+        } catch (IOException | RuntimeException exception) {
+            close(channel, threadLock);
+            throw exception;
+        }
+        close(channel, threadLock);
+        return null;
+    }
+
+    /**
+     * Releases the lock and deletes the file, so it does not outlive what it guards.
+     */
+    void delete() throws IOException {
+        try {
+            channel.write(ByteBuffer.wrap(new byte[]{1}), 0);
+            Files.deleteIfExists(path);
+        } finally {
+            close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            fileLock.release();
+        } finally {
+            close(channel, threadLock);
+        }
+    }
+
+    /**
+     * @return The lock, or {@code null} with the channel closed when the file was deleted while
+     * waiting for it.
+     */
+    private static LockFile lockIfCurrent(Path path, ReentrantLock threadLock, FileChannel channel, FileLock fileLock) throws IOException {
+        if (channel.size() == 0) {
+            return new LockFile(path, threadLock, channel, fileLock);
+        }
+        fileLock.release();
+        channel.close();
+        return null;
+    }
+
+    private static ReentrantLock getThreadLock(Path path) {
+        return threadLocks.computeIfAbsent(path.toAbsolutePath().normalize(), key -> new ReentrantLock());
+    }
+
+    private static void close(FileChannel channel, ReentrantLock threadLock) throws IOException {
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } finally {
+            threadLock.unlock();
+        }
+    }
+}
@@ -8,8 +8,10 @@ import java.io.IOException;
 public class Main {
 
     public static void main(String... args) throws IOException, InterruptedException {
-        File chromedriver = Downloader.downloadChromedriver();
-        ExecutablePatcher.patchExecutable(chromedriver);
+        File chromedriver = DriverCache.getDefault().getOrDownload(
+                Downloader.DEFAULT_DRIVER_VERSION,
+                Downloader.getDriverType(),
+                ExecutablePatcher.getReplacementCdc());
 
         ChromeDriver chromeDriver = new ChromeDriver();
 
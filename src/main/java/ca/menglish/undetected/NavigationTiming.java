@@ -0,0 +1,55 @@
+package ca.menglish.undetected;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.time.Duration;
+import java.util.Map;
+
+/**
+ * When each milestone of one navigation happened, counted from the start of the navigation.
+ */
+@AllArgsConstructor
+@Getter
+public class NavigationTiming {
+
+    private final String url;
+    private final PageLoadCondition condition;
+    /**
+     * Lifecycle events of the new document in the order they fired, e.g. {@code DOMContentLoaded}
+     * and {@code load}, with the nanoseconds after the start of the navigation they arrived at.
+     */
+    private final Map<String, Long> lifecycleNanos;
+    /**
+     * Time until the condition was met.
+     */
+    private final long readyNanos;
+    /**
+     * Number of requests the page made until the condition was met.
+     */
+    private final int requests;
+
+    /**
+     * @param lifecycleEvent Name of a lifecycle event, e.g. {@code DOMContentLoaded}.
+     * @return Time until the event fired, or {@code null} if it did not fire before the page was
+     * ready.
+     */
+    public Duration getTime(String lifecycleEvent) {
+        Long nanos = lifecycleNanos.get(lifecycleEvent);
+        return nanos == null ? null : Duration.ofNanos(nanos);
+    }
+
+    public Duration getReadyTime() {
+        return Duration.ofNanos(readyNanos);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(String.format("%s ready (%s) after %.3fms, requests=%d",
+                url, condition, readyNanos / 1e6, requests));
+        for (Map.Entry<String, Long> event : lifecycleNanos.entrySet()) {
+            builder.append(String.format(" %s=%.3fms", event.getKey(), event.getValue() / 1e6));
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,99 @@
+package ca.menglish.undetected;
+
+import java.time.Duration;
+
+/**
+ * When a page counts as loaded for {@link StealthyChromiumDriver#navigateTo}: a lifecycle event of
+ * the new document or a quiet period of its network.
+ */
+public class PageLoadCondition {
+
+    private final String lifecycleEvent;
+    private final Duration quietPeriod;
+    private final int maxInflight;
+
+    private PageLoadCondition(String lifecycleEvent, Duration quietPeriod, int maxInflight) {
+        this.lifecycleEvent = lifecycleEvent;
+        this.quietPeriod = quietPeriod;
+        this.maxInflight = maxInflight;
+    }
+
+    /**
+     * @param name Name of a {@code Page.lifecycleEvent}, e.g. {@code firstImagePaint}.
+     * @return Condition met when the new document fires the event.
+     */
+    public static PageLoadCondition lifecycleEvent(String name) {
+        return new PageLoadCondition(name, null, 0);
+    }
+
+    /**
+     * @return Condition met when the HTML was parsed, before images and stylesheets loaded.
+     */
+    public static PageLoadCondition domContentLoaded() {
+        return lifecycleEvent("DOMContentLoaded");
+    }
+
+    /**
+     * @return Condition met when the page and all its resources loaded, like {@code get(url)}.
+     */
+    public static PageLoadCondition load() {
+        return lifecycleEvent("load");
+    }
+
+    /**
+     * @return Condition met when the page first painted content such as text or images.
+     */
+    public static PageLoadCondition firstContentfulPaint() {
+        return lifecycleEvent("firstContentfulPaint");
+    }
+
+    /**
+     * @return Condition met when the biggest layout change above the fold was painted.
+     */
+    public static PageLoadCondition firstMeaningfulPaint() {
+        return lifecycleEvent("firstMeaningfulPaint");
+    }
+
+    /**
+     * @param quietPeriod How long no request may be in flight.
+     * @return Condition met when the new document made no requests for the quiet period.
+     */
+    public static PageLoadCondition networkIdle(Duration quietPeriod) {
+        return networkIdle(quietPeriod, 0);
+    }
+
+    /**
+     * Network idle condition tolerating long lived requests, such as polling or event streams, that
+     * would otherwise keep the page from ever becoming idle.
+     *
+     * @param quietPeriod How long at most {@code maxInflight} requests may be in flight.
+     * @param maxInflight Number of requests still counting as idle.
+     * @return Condition met when the new document had at most {@code maxInflight} requests in
+     * flight for the quiet period.
+     */
+    public static PageLoadCondition networkIdle(Duration quietPeriod, int maxInflight) {
+        return new PageLoadCondition(null, quietPeriod, maxInflight);
+    }
+
+    /**
+     * @return The lifecycle event waited for, {@code null} when waiting for network idle.
+     */
+    String getLifecycleEvent() {
+        return lifecycleEvent;
+    }
+
+    Duration getQuietPeriod() {
+        return quietPeriod;
+    }
+
+    int getMaxInflight() {
+        return maxInflight;
+    }
+
+    @Override
+    public String toString() {
+        return lifecycleEvent != null
+                ? lifecycleEvent
+                : String.format("networkIdle(%dms, maxInflight=%d)", quietPeriod.toMillis(), maxInflight);
+    }
+}
@@ -0,0 +1,194 @@
+package ca.menglish.undetected;
+
+import com.google.common.collect.ImmutableMap;
+import org.openqa.selenium.TimeoutException;
+import org.openqa.selenium.WebDriverException;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One navigation of a tab, completed as soon as its {@link PageLoadCondition} is met instead of
+ * after a fixed delay or polling.
+ *
+ * <p>Lifecycle events are only counted for the main frame and the document the navigation
+ * created, identified by the loader id {@code Page.navigate} returns. Events can arrive before that
+ * response, so they are kept per loader id until it is known. Network idle is tracked by counting
+ * requests in flight from {@code Network} events and arming a timer whenever the count drops to the
+ * tolerated maximum, the navigation completing when no request was started before the timer ran
+ * out.
+ */
+class PageNavigator {
+
+    private static final ScheduledExecutorService idleTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "page-navigator-idle");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final CdpSession session;
+    private final String url;
+    private final PageLoadCondition condition;
+    private final long start = System.nanoTime();
+    private final CompletableFuture<Long> ready = new CompletableFuture<>();
+
+    private final Map<String, Map<String, Long>> lifecycleByLoader = new HashMap<>();
+    private final Set<String> inflight = new HashSet<>();
+    private String loaderId;
+    private boolean committed;
+    private int requests;
+    /**
+     * Incremented whenever a request starts, so a pending idle timer can tell it was overtaken.
+     */
+    private long networkGeneration;
+
+    PageNavigator(CdpSession session, String url, PageLoadCondition condition) {
+        this.session = session;
+        this.url = url;
+        this.condition = condition;
+    }
+
+    /**
+     * Navigates the target of the session and waits until the condition is met.
+     *
+     * @throws TimeoutException If the condition was not met in time.
+     */
+    static NavigationTiming navigate(CdpSession session, String url, PageLoadCondition condition, Duration timeout) {
+        return new PageNavigator(session, url, condition).navigate(timeout);
+    }
+
+    /**
+     * @return Time from the start of the navigation until the condition was met.
+     */
+    CompletableFuture<Long> getReady() {
+        return ready;
+    }
+
+    /**
+     * @return Number of requests started so far, redirects not counted separately.
+     */
+    synchronized int getRequests() {
+        return requests;
+    }
+
+    private NavigationTiming navigate(Duration timeout) {
+        List<CdpConnection.Subscription> subscriptions = new ArrayList<>();
+        subscriptions.add(session.addListener("Page.lifecycleEvent", this::onLifecycleEvent));
+        subscriptions.add(session.addListener("Network.requestWillBeSent", this::onRequestStarted));
+        subscriptions.add(session.addListener("Network.loadingFinished", this::onRequestFinished));
+        subscriptions.add(session.addListener("Network.loadingFailed", this::onRequestFinished));
+        try {
+            // Commands of a session run in order, enabling is pipelined ahead of the navigation
+            session.send("Page.enable", Collections.emptyMap());
+            session.send("Page.setLifecycleEventsEnabled", ImmutableMap.of("enabled", true));
+            session.send("Network.enable", Collections.emptyMap());
+            Map<String, Object> result = session.execute("Page.navigate", ImmutableMap.of("url", url));
+            if (result.get("errorText") != null) {
+                throw new WebDriverException("Failed to navigate to " + url + ": " + result.get("errorText"));
+            }
+            onNavigationStarted((String) result.get("loaderId"));
+
+            long readyNanos = ready.get(Math.max(0, timeout.toNanos() - (System.nanoTime() - start)), TimeUnit.NANOSECONDS);
+            synchronized (this) {
+                Map<String, Long> lifecycle = lifecycleByLoader.getOrDefault(loaderId, Collections.emptyMap());
+                return new NavigationTiming(url, condition, new LinkedHashMap<>(lifecycle), readyNanos, requests);
+            }
+        } catch (java.util.concurrent.TimeoutException exception) {
+            throw new TimeoutException(String.format("%s not reached within %s: %s", condition, timeout, url), exception);
+        } catch (ExecutionException exception) {
+            throw new WebDriverException("Failed to navigate to " + url, exception.getCause());
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new WebDriverException("Interrupted while loading " + url, exception);
+        } finally {
+            subscriptions.forEach(CdpConnection.Subscription::unsubscribe);
+        }
+    }
+
+    synchronized void onNavigationStarted(String loaderId) {
+        if (loaderId == null) {
+            // Same document navigation, e.g. to an anchor: there is no new document to wait for
+            ready.complete(System.nanoTime() - start);
+            return;
+        }
+        this.loaderId = loaderId;
+        if (lifecycleByLoader.containsKey(loaderId)) {
+            onCommitted();
+        }
+    }
+
+    synchronized void onLifecycleEvent(CdpConnection.Event event) {
+        Map<String, Object> params = event.getParams();
+        // The main frame of a page target has the id of the target
+        if (!session.getTargetId().equals(params.get("frameId"))) {
+            return;
+        }
+
+        String eventLoaderId = (String) params.get("loaderId");
+        lifecycleByLoader.computeIfAbsent(eventLoaderId, key -> new LinkedHashMap<>())
+                .putIfAbsent((String) params.get("name"), System.nanoTime() - start);
+        if (eventLoaderId != null && eventLoaderId.equals(loaderId)) {
+            onCommitted();
+        }
+    }
+
+    /**
+     * Called whenever a lifecycle event of the new document is known.
+     */
+    private void onCommitted() {
+        committed = true;
+        String lifecycleEvent = condition.getLifecycleEvent();
+        if (lifecycleEvent != null) {
+            Long nanos = lifecycleByLoader.get(loaderId).get(lifecycleEvent);
+            if (nanos != null) {
+                ready.complete(nanos);
+            }
+        }
+        else {
+            armIdleTimer();
+        }
+    }
+
+    synchronized void onRequestStarted(CdpConnection.Event event) {
+        Object requestId = event.getParams().get("requestId");
+        // Redirects reuse the request id of the request they replace
+        if (requestId != null && inflight.add(requestId.toString())) {
+            requests++;
+        }
+        networkGeneration++;
+    }
+
+    synchronized void onRequestFinished(CdpConnection.Event event) {
+        Object requestId = event.getParams().get("requestId");
+        if (requestId != null && inflight.remove(requestId.toString()) && committed && condition.getLifecycleEvent() == null) {
+            armIdleTimer();
+        }
+    }
+
+    private void armIdleTimer() {
+        if (ready.isDone() || inflight.size() > condition.getMaxInflight()) {
+            return;
+        }
+
+        long generation = networkGeneration;
+        idleTimer.schedule(() -> {
+            synchronized (this) {
+                if (generation == networkGeneration && inflight.size() <= condition.getMaxInflight()) {
+                    ready.complete(System.nanoTime() - start);
+                }
+            }
+        }, condition.getQuietPeriod().toNanos(), TimeUnit.NANOSECONDS);
+    }
+}
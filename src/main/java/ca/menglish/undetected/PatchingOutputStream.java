@@ -0,0 +1,211 @@
+package ca.menglish.undetected;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Patches signatures in bytes as they are written, so an executable can be patched while it is
+ * being extracted instead of in a second pass over the finished file.
+ *
+ * <p>The Aho-Corasick state is carried from one write to the next, so matches spanning write
+ * boundaries are found. Bytes are held back only while a match could still start in them or while
+ * a replacement touching them is undecided, everything else is passed on in large writes. The
+ * bytes written are identical to patching the complete file with {@link ExecutablePatcher}.
+ */
+public class PatchingOutputStream extends OutputStream {
+
+    private static final int INITIAL_BUFFER_SIZE = 256 * 1024;
+
+    private final OutputStream out;
+    private final List<Signature> signatures;
+    private final AhoCorasickMatcher matcher;
+    private final int maxPatternLength;
+    private final int flushThreshold;
+
+    /**
+     * Bytes that were scanned but not written yet, {@code buffer[0]} is at {@code bufferStart} in
+     * the stream.
+     */
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+    private int count;
+    private long bufferStart;
+    private int state;
+
+    /**
+     * Matches of replacing signatures that were found but not yet replaced or rejected, ordered
+     * by their offset in the stream.
+     */
+    private final PriorityQueue<ExecutablePatcher.Match> pending = new PriorityQueue<>(
+            Comparator.comparingLong(ExecutablePatcher.Match::getOffset)
+                    .thenComparingInt(ExecutablePatcher.Match::getSignatureIndex));
+    private long nextAllowed;
+
+    private final int[] hits;
+    private final List<ExecutablePatcher.Match> replacements = new ArrayList<>();
+    private long patchNanos;
+    private long writeNanos;
+    private boolean closed;
+
+    /**
+     * @param out        Stream the patched bytes are written to, closed with this stream.
+     * @param signatures Signatures to count and replace.
+     */
+    public PatchingOutputStream(OutputStream out, List<Signature> signatures) {
+        this.out = out;
+        this.signatures = new ArrayList<>(signatures);
+        this.matcher = new AhoCorasickMatcher(this.signatures);
+        this.maxPatternLength = matcher.getMaxPatternLength();
+        this.flushThreshold = INITIAL_BUFFER_SIZE / 2;
+        this.hits = new int[signatures.size()];
+    }
+
+    @Override
+    public void write(int value) throws IOException {
+        write(new byte[]{(byte) value}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+
+        long start = System.nanoTime();
+        ensureCapacity(count + length);
+        System.arraycopy(bytes, offset, buffer, count, length);
+
+        int scanFrom = count;
+        count += length;
+        state = matcher.scan(ByteBuffer.wrap(buffer), scanFrom, count, state, this::onMatch);
+        decidePending(false);
+        patchNanos += System.nanoTime() - start;
+
+        if (getFlushableLength() >= flushThreshold) {
+            writeOut(getFlushableLength());
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writeOut(getFlushableLength());
+        out.flush();
+    }
+
+    /**
+     * Decides every outstanding match, writes out the remaining bytes and closes the underlying
+     * stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        long start = System.nanoTime();
+        decidePending(true);
+        patchNanos += System.nanoTime() - start;
+
+        try {
+            writeOut(count);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @return The hit counts and replacements so far, complete once the stream is closed. The
+     * scan time covers matching and replacing, but not writing to the underlying stream.
+     */
+    public ExecutablePatcher.PatchResult getResult() {
+        return new ExecutablePatcher.PatchResult(
+                ExecutablePatcher.getHitCounts(signatures, hits),
+                Collections.unmodifiableList(new ArrayList<>(replacements)),
+                bufferStart + count,
+                patchNanos);
+    }
+
+    /**
+     * @return Time spent writing to the underlying stream.
+     */
+    public long getWriteNanos() {
+        return writeNanos;
+    }
+
+    private void onMatch(int signatureIndex, int offset) {
+        hits[signatureIndex]++;
+        if (signatures.get(signatureIndex).isReplacing()) {
+            pending.add(new ExecutablePatcher.Match(bufferStart + offset, signatureIndex, true));
+        }
+    }
+
+    /**
+     * Replaces or rejects pending matches in offset order. A match is decided once every byte it
+     * would overwrite has been scanned and no match starting before it can still be found, or
+     * unconditionally at the end of the stream.
+     */
+    private void decidePending(boolean endOfStream) {
+        long scannedEnd = bufferStart + count;
+        long earliestFutureStart = scannedEnd - maxPatternLength + 1;
+
+        while (!pending.isEmpty()) {
+            ExecutablePatcher.Match match = pending.peek();
+            Signature signature = signatures.get(match.getSignatureIndex());
+            if (!endOfStream
+                    && (match.getOffset() + signature.getSpan() > scannedEnd || match.getOffset() >= earliestFutureStart)) {
+                return;
+            }
+            pending.poll();
+
+            int offset = (int) (match.getOffset() - bufferStart);
+            boolean replaceable = match.getOffset() >= nextAllowed
+                    && match.getOffset() + signature.getSpan() <= scannedEnd
+                    && signature.canReplaceAt(ByteBuffer.wrap(buffer, 0, count), offset);
+            if (replaceable) {
+                byte[] replacement = signature.getReplacement();
+                System.arraycopy(replacement, 0, buffer, offset, replacement.length);
+                replacements.add(match);
+                nextAllowed = match.getOffset() + signature.getSpan();
+            }
+        }
+    }
+
+    /**
+     * @return Number of bytes at the start of the buffer that no pending or future match touches.
+     */
+    private int getFlushableLength() {
+        long limit = bufferStart + count - (maxPatternLength - 1);
+        if (!pending.isEmpty()) {
+            limit = Math.min(limit, pending.peek().getOffset());
+        }
+        return (int) Math.max(0, limit - bufferStart);
+    }
+
+    private void writeOut(int length) throws IOException {
+        if (length <= 0) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        out.write(buffer, 0, length);
+        writeNanos += System.nanoTime() - start;
+
+        System.arraycopy(buffer, length, buffer, 0, count - length);
+        count -= length;
+        bufferStart += length;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > buffer.length) {
+            byte[] grown = new byte[Math.max(capacity, buffer.length * 2)];
+            System.arraycopy(buffer, 0, grown, 0, count);
+            buffer = grown;
+        }
+    }
+}
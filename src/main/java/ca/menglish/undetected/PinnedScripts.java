@@ -0,0 +1,129 @@
+package ca.menglish.undetected;
+
+import com.google.common.collect.ImmutableMap;
+import org.openqa.selenium.JavascriptException;
+import org.openqa.selenium.ScriptKey;
+import org.openqa.selenium.WebDriverException;
+
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Scripts sent to the browser once and afterwards called by key, so calling a large script costs
+ * the size of its arguments rather than the size of its body, and the browser parses it once per
+ * document instead of on every call.
+ *
+ * <p>Pinned scripts are kept as functions in a registry on {@code window}, stored under a random
+ * name as a non-enumerable property so pages enumerating globals do not see it. The installer is
+ * registered with {@code Page.addScriptToEvaluateOnNewDocument}, so the browser reinstalls the
+ * script in every document the tab loads after a navigation, before the page's own scripts run. A
+ * document that has no copy, e.g. in a different tab, gets one installed on first call.
+ */
+class PinnedScripts {
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private final StealthyChromiumDriver driver;
+    private final String registryName = newIdentifier();
+    private final String missingMarker = newIdentifier();
+    private final Map<ScriptKey, PinnedScript> scripts = new ConcurrentHashMap<>();
+
+    PinnedScripts(StealthyChromiumDriver driver) {
+        this.driver = driver;
+    }
+
+    ScriptKey pin(String script) {
+        String id = newIdentifier();
+        String installer = getInstaller(id, script);
+
+        Map<String, Object> result = driver.executeCdpCommand(
+                "Page.addScriptToEvaluateOnNewDocument",
+                ImmutableMap.of("source", installer));
+        String documentScriptId = (String) result.get("identifier");
+
+        ScriptKey key = new ScriptKey(id);
+        scripts.put(key, new PinnedScript(id, installer, documentScriptId));
+        driver.executeScript(installer);
+        return key;
+    }
+
+    void unpin(ScriptKey key) {
+        PinnedScript pinned = scripts.remove(key);
+        if (pinned == null) {
+            return;
+        }
+
+        driver.executeCdpCommand(
+                "Page.removeScriptToEvaluateOnNewDocument",
+                ImmutableMap.of("identifier", pinned.documentScriptId));
+        driver.executeScript(String.format(
+                "var registry = window['%s']; if (registry) { delete registry['%s']; }",
+                registryName, pinned.id));
+    }
+
+    Set<ScriptKey> getKeys() {
+        return Collections.unmodifiableSet(scripts.keySet());
+    }
+
+    Object execute(ScriptKey key, Object... args) {
+        PinnedScript pinned = scripts.get(key);
+        if (pinned == null) {
+            throw new JavascriptException("Script is not pinned: " + key);
+        }
+
+        Object result = driver.executeScript(pinned.call, args);
+        if (missingMarker.equals(result)) {
+            driver.executeScript(pinned.installer);
+            result = driver.executeScript(pinned.call, args);
+            if (missingMarker.equals(result)) {
+                throw new WebDriverException("Unable to install pinned script in the current document");
+            }
+        }
+        return result;
+    }
+
+    private String getInstaller(String id, String script) {
+        return String.format(
+                "(function() {"
+                        + "var registry = window['%1$s'];"
+                        + "if (!registry) {"
+                        + "registry = {};"
+                        + "Object.defineProperty(window, '%1$s', {value: registry, enumerable: false, configurable: true});"
+                        + "}"
+                        + "registry['%2$s'] = function() {%n%3$s%n};"
+                        + "})();",
+                registryName, id, script);
+    }
+
+    private static String newIdentifier() {
+        // Leading letter so the identifier is valid wherever a JavaScript name is expected
+        StringBuilder identifier = new StringBuilder("k");
+        for (int i = 0; i < 15; i++) {
+            identifier.append(Character.forDigit(random.nextInt(36), 36));
+        }
+        return identifier.toString();
+    }
+
+    private class PinnedScript {
+        private final String id;
+        private final String installer;
+        private final String documentScriptId;
+        /**
+         * Script sent on every call, looking the function up by key.
+         */
+        private final String call;
+
+        private PinnedScript(String id, String installer, String documentScriptId) {
+            this.id = id;
+            this.installer = installer;
+            this.documentScriptId = documentScriptId;
+            this.call = String.format(
+                    "var registry = window['%s'], script = registry && registry['%s'];"
+                            + "return script ? script.apply(this, arguments) : '%s';",
+                    registryName, id, missingMarker);
+        }
+    }
+}
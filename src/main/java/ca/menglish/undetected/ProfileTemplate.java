@@ -0,0 +1,349 @@
+package ca.menglish.undetected;
+
+import org.openqa.selenium.WebDriverException;
+import org.openqa.selenium.chrome.ChromeOptions;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A Chrome profile prepared once and copied for every session, so the browser starts with an
+ * initialised profile, component data and caches instead of creating them on every launch.
+ *
+ * <pre>
+ * ProfileTemplate template = ProfileTemplate.create(Paths.get("profile-template"), new ChromeOptions(), Duration.ofSeconds(10));
+ * StealthyChromiumDriver driver = new StealthyChromiumDriver(template.applyTo(new ChromeOptions()));
+ * </pre>
+ *
+ * <p>Every copy is a new directory passed to Chrome with {@code --user-data-dir}. It is deleted
+ * when the driver using it quits, and any copy still left is deleted when the JVM exits. Copies are
+ * made as cheap as the file system allows, see {@link CopyMode}.
+ */
+public class ProfileTemplate {
+
+    private static final Logger LOG = Logger.getLogger(ProfileTemplate.class.getName());
+
+    static final String USER_DATA_DIR_ARGUMENT = "--user-data-dir=";
+
+    /**
+     * Files Chrome creates to lock a profile while it runs. Copying them would make Chrome think the
+     * copy is in use by another browser.
+     */
+    private static final List<String> lockFiles = Arrays.asList("SingletonLock", "SingletonSocket", "SingletonCookie", "lockfile");
+
+    /**
+     * Copies not deleted yet, by their absolute path.
+     */
+    private static final Map<Path, ProfileTemplate> copies = new ConcurrentHashMap<>();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> copies.keySet().forEach(ProfileTemplate::deleteCopy), "profile-template-cleanup"));
+    }
+
+    private final Path directory;
+    private final CopyMode copyMode;
+    private final int parallelism;
+    /**
+     * Set once reflinks failed, so later copies go straight to copying file contents.
+     */
+    private volatile boolean reflinkUnsupported;
+
+    /**
+     * Uses an existing profile directory as template, with {@link CopyMode#AUTO}.
+     *
+     * @param directory The profile, e.g. the {@code --user-data-dir} of a browser that was quit.
+     */
+    public ProfileTemplate(Path directory) {
+        this(directory, CopyMode.AUTO, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param directory   The profile, e.g. the {@code --user-data-dir} of a browser that was quit.
+     * @param copyMode    How copies are made.
+     * @param parallelism Number of files copied at the same time when contents are copied.
+     */
+    public ProfileTemplate(Path directory, CopyMode copyMode, int parallelism) {
+        if (!Files.isDirectory(directory)) {
+            throw new IllegalArgumentException("Profile template is not a directory: " + directory);
+        }
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1: " + parallelism);
+        }
+        this.directory = directory.toAbsolutePath();
+        this.copyMode = copyMode;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Prepares a template by running the browser once on an empty profile, giving it time to
+     * initialise the profile and fetch its components, and quitting it.
+     *
+     * @param directory Empty or missing directory to create the template in.
+     * @param options   Options of the browser preparing the template, without {@code --user-data-dir}.
+     * @param warmUp    How long the browser runs before it is quit.
+     * @return The template.
+     */
+    public static ProfileTemplate create(Path directory, ChromeOptions options, Duration warmUp) throws IOException {
+        Files.createDirectories(directory);
+        ChromeOptions warmUpOptions = new ChromeOptions().merge(options);
+        warmUpOptions.addArguments(USER_DATA_DIR_ARGUMENT + directory.toAbsolutePath());
+
+        StealthyChromiumDriver driver = new StealthyChromiumDriver(warmUpOptions);
+        try {
+            driver.get("about:blank");
+            Thread.sleep(warmUp.toMillis());
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new WebDriverException("Interrupted while warming up the profile template", exception);
+        } finally {
+            driver.quit();
+        }
+
+        ProfileTemplate template = new ProfileTemplate(directory);
+        for (String lockFile : lockFiles) {
+            Files.deleteIfExists(directory.resolve(lockFile));
+        }
+        return template;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Copies the template and points the options at the copy. The copy is deleted when the driver
+     * created with the options quits.
+     *
+     * @param options Options to add {@code --user-data-dir} to.
+     * @return The same options.
+     */
+    public ChromeOptions applyTo(ChromeOptions options) {
+        try {
+            options.addArguments(USER_DATA_DIR_ARGUMENT + newCopy());
+        } catch (IOException exception) {
+            throw new UncheckedIOException("Unable to copy profile template " + directory, exception);
+        }
+        return options;
+    }
+
+    /**
+     * Copies the template into a new directory next to it. The copy is deleted on
+     * {@link #deleteCopy(Path)} or when the JVM exits.
+     *
+     * @return The copy.
+     */
+    public Path newCopy() throws IOException {
+        long start = System.nanoTime();
+        // Next to the template, reflinks and hard links only work within one file system
+        Path copy = Files.createTempDirectory(directory.getParent(), directory.getFileName() + "-");
+        copies.put(copy.toAbsolutePath(), this);
+
+        try {
+            CopyMode used = copy(copy);
+            LOG.log(Level.FINE, String.format("Copied profile template %s to %s by %s in %.3fms", directory, copy, used, (System.nanoTime() - start) / 1e6));
+        } catch (IOException | RuntimeException exception) {
+            deleteCopy(copy);
+            throw exception;
+        }
+        return copy;
+    }
+
+    /**
+     * Deletes a copy made from any template, doing nothing for other directories, so it can be
+     * called with any user data directory.
+     *
+     * @param copy The copy.
+     * @return Whether the directory was a copy.
+     */
+    public static boolean deleteCopy(Path copy) {
+        if (copy == null || copies.remove(copy.toAbsolutePath()) == null) {
+            return false;
+        }
+
+        try (Stream<Path> paths = Files.walk(copy)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.deleteIfExists(path);
+            }
+        } catch (IOException | UncheckedIOException exception) {
+            LOG.log(Level.WARNING, "Unable to delete profile copy " + copy, exception);
+        }
+        return true;
+    }
+
+    private CopyMode copy(Path copy) throws IOException {
+        if (copyMode == CopyMode.REFLINK || (copyMode == CopyMode.AUTO && !reflinkUnsupported)) {
+            if (reflink(copy)) {
+                return CopyMode.REFLINK;
+            }
+            if (copyMode == CopyMode.REFLINK) {
+                throw new IOException("The file system does not support reflinks: " + directory);
+            }
+            reflinkUnsupported = true;
+        }
+
+        copyFiles(copy, copyMode == CopyMode.HARDLINK);
+        return copyMode == CopyMode.HARDLINK ? CopyMode.HARDLINK : CopyMode.COPY;
+    }
+
+    /**
+     * Clones the template with copy-on-write reflinks, sharing every block until either side
+     * writes to it. Java has no API for reflinks, so the system's {@code cp} is used.
+     *
+     * @return Whether the file system supports reflinks.
+     */
+    private boolean reflink(Path copy) throws IOException {
+        String os = System.getProperty("os.name").toLowerCase(Locale.ENGLISH);
+        List<String> command;
+        if (os.contains("linux")) {
+            command = Arrays.asList("cp", "-R", "--reflink=always", "--preserve=mode,timestamps", directory + "/.", copy.toString());
+        }
+        else if (os.contains("mac")) {
+            command = Arrays.asList("cp", "-R", "-c", "-p", directory + "/.", copy.toString());
+        }
+        else {
+            return false;
+        }
+
+        try {
+            Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            process.getInputStream().transferTo(OutputStream.nullOutputStream());
+            if (process.waitFor(5, TimeUnit.MINUTES) && process.exitValue() == 0) {
+                removeLockFiles(copy);
+                return true;
+            }
+            process.destroyForcibly();
+        } catch (IOException exception) {
+            LOG.log(Level.FINE, "Unable to run cp for reflinks", exception);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while cloning profile template", exception);
+        }
+
+        // Start over from an empty directory after a partial clone
+        clear(copy);
+        return false;
+    }
+
+    /**
+     * Copies, or hard links, every file of the template on {@code parallelism} threads, most of a
+     * profile being small files where the copy is dominated by per-file overhead.
+     */
+    private void copyFiles(Path copy, boolean hardlink) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.collect(Collectors.toList())) {
+                Path relative = directory.relativize(path);
+                if (lockFiles.contains(relative.toString())) {
+                    continue;
+                }
+                if (Files.isDirectory(path)) {
+                    Files.createDirectories(copy.resolve(relative.toString()));
+                }
+                else if (Files.isRegularFile(path)) {
+                    files.add(relative);
+                }
+            }
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.submit(() -> files.parallelStream().forEach(relative -> copyFile(relative, copy, hardlink))).get();
+        } catch (ExecutionException exception) {
+            Throwable cause = exception.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            throw new IOException("Unable to copy profile template " + directory, cause);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while copying profile template", exception);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private void copyFile(Path relative, Path copy, boolean hardlink) {
+        Path source = directory.resolve(relative);
+        Path target = copy.resolve(relative.toString());
+        try {
+            if (hardlink) {
+                try {
+                    Files.createLink(target, source);
+                    return;
+                } catch (FileSystemException | UnsupportedOperationException exception) {
+                    // Different file system or no hard links at all, copy this file instead
+                }
+            }
+            Files.copy(source, target, StandardCopyOption.COPY_ATTRIBUTES);
+        } catch (IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+    }
+
+    private static void removeLockFiles(Path copy) throws IOException {
+        for (String lockFile : lockFiles) {
+            Files.deleteIfExists(copy.resolve(lockFile));
+        }
+    }
+
+    private static void clear(Path copy) throws IOException {
+        try (Stream<Path> paths = Files.walk(copy)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                if (!path.equals(copy)) {
+                    Files.deleteIfExists(path);
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ProfileTemplate(%s, %s)", directory, copyMode);
+    }
+
+    /**
+     * How a template is copied for each session.
+     */
+    public enum CopyMode {
+        /**
+         * Reflinks where the file system supports them, such as Btrfs, XFS or APFS, otherwise
+         * copies.
+         */
+        AUTO,
+        /**
+         * Copy-on-write clones sharing the template's blocks, failing where the file system does
+         * not support them.
+         */
+        REFLINK,
+        /**
+         * Hard links to the template's files. Chrome rewrites some profile files, e.g. its SQLite
+         * databases, in place, which would change the template and every other copy, so this is only
+         * safe for templates that are thrown away along with their copies.
+         */
+        HARDLINK,
+        /**
+         * Copies of every file's contents, made in parallel.
+         */
+        COPY,
+    }
+}
@@ -0,0 +1,248 @@
+package ca.menglish.undetected;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Which requests a page may make. Requests are blocked by CDP resource type, such as
+ * {@code Image}, {@code Font} or {@code Media}, or by URL pattern, unless their host is
+ * allow-listed.
+ *
+ * <pre>
+ * ResourcePolicy policy = new ResourcePolicy.Builder()
+ *         .withBlockedTypes(ResourcePolicy.IMAGE, ResourcePolicy.FONT, ResourcePolicy.MEDIA)
+ *         .withBlockedUrls("*google-analytics.com*", "*doubleclick.net*")
+ *         .withAllowedHosts("cdn.example.com")
+ *         .build();
+ * ResourceStats stats = driver.setResourcePolicy(policy);
+ * </pre>
+ *
+ * <p>URL patterns use the wildcards of {@code Network.setBlockedURLs}: {@code *} matches any
+ * sequence of characters and every other character matches itself.
+ */
+public class ResourcePolicy {
+
+    public static final String IMAGE = "Image";
+    public static final String FONT = "Font";
+    public static final String MEDIA = "Media";
+    public static final String STYLESHEET = "Stylesheet";
+
+    /**
+     * URL patterns that stand in for resource types where requests can only be blocked by URL.
+     */
+    private static final Map<String, List<String>> typeExtensions = ImmutableMap.of(
+            IMAGE, Arrays.asList("*.png*", "*.jpg*", "*.jpeg*", "*.gif*", "*.webp*", "*.avif*", "*.svg*", "*.ico*"),
+            FONT, Arrays.asList("*.woff*", "*.woff2*", "*.ttf*", "*.otf*", "*.eot*"),
+            MEDIA, Arrays.asList("*.mp4*", "*.webm*", "*.mp3*", "*.ogg*", "*.m3u8*"),
+            STYLESHEET, Collections.singletonList("*.css*"));
+
+    /**
+     * Rough transfer sizes of a single request of the commonly blocked types, used to estimate the
+     * bytes saved when no request of the type loaded to measure it from.
+     */
+    private static final Map<String, Long> defaultEstimatedSizes = ImmutableMap.of(
+            IMAGE, 25L * 1024,
+            FONT, 30L * 1024,
+            MEDIA, 250L * 1024,
+            STYLESHEET, 10L * 1024);
+
+    private final Set<String> blockedTypes;
+    private final List<String> blockedUrls;
+    private final List<Pattern> blockedUrlPatterns = new ArrayList<>();
+    private final Set<String> allowedHosts;
+    private final Map<String, Long> estimatedSizes;
+
+    private ResourcePolicy(Builder builder) {
+        this.blockedTypes = Collections.unmodifiableSet(new LinkedHashSet<>(builder.blockedTypes));
+        this.blockedUrls = Collections.unmodifiableList(new ArrayList<>(builder.blockedUrls));
+        this.allowedHosts = Collections.unmodifiableSet(new LinkedHashSet<>(builder.allowedHosts));
+        this.estimatedSizes = Collections.unmodifiableMap(new HashMap<>(builder.estimatedSizes));
+        for (String url : blockedUrls) {
+            blockedUrlPatterns.add(toPattern(url));
+        }
+    }
+
+    public Set<String> getBlockedTypes() {
+        return blockedTypes;
+    }
+
+    public List<String> getBlockedUrls() {
+        return blockedUrls;
+    }
+
+    public Set<String> getAllowedHosts() {
+        return allowedHosts;
+    }
+
+    /**
+     * @return Bytes a single request is assumed to cost, by resource type, for types of which no
+     * request loaded to measure the size from.
+     */
+    public Map<String, Long> getEstimatedSizes() {
+        return estimatedSizes;
+    }
+
+    /**
+     * @param url          URL of the request.
+     * @param resourceType CDP resource type of the request, e.g. {@code Image}.
+     * @return {@code true} if the policy blocks the request.
+     */
+    public boolean isBlocked(String url, String resourceType) {
+        if (isAllowed(url)) {
+            return false;
+        }
+        if (resourceType != null && blockedTypes.contains(resourceType)) {
+            return true;
+        }
+        for (Pattern pattern : blockedUrlPatterns) {
+            if (pattern.matcher(url).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isAllowed(String url) {
+        if (allowedHosts.isEmpty()) {
+            return false;
+        }
+
+        String host;
+        try {
+            host = URI.create(url).getHost();
+        } catch (IllegalArgumentException exception) {
+            return false;
+        }
+        if (host == null) {
+            return false;
+        }
+
+        host = host.toLowerCase(Locale.ROOT);
+        for (String allowed : allowedHosts) {
+            if (host.equals(allowed) || host.endsWith("." + allowed)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return {@code Fetch.enable} patterns pausing only the requests the policy may block.
+     */
+    List<Map<String, Object>> getFetchPatterns() {
+        List<Map<String, Object>> patterns = new ArrayList<>();
+        for (String type : blockedTypes) {
+            patterns.add(ImmutableMap.of("urlPattern", "*", "resourceType", type, "requestStage", "Request"));
+        }
+        for (String url : blockedUrls) {
+            patterns.add(ImmutableMap.of("urlPattern", url, "requestStage", "Request"));
+        }
+        return patterns;
+    }
+
+    /**
+     * @return {@code Network.setBlockedURLs} patterns approximating the policy, resource types
+     * being replaced with their common file extensions. Allowed hosts can not be expressed.
+     */
+    List<String> getUrlPatterns() {
+        List<String> patterns = new ArrayList<>(blockedUrls);
+        for (String type : blockedTypes) {
+            patterns.addAll(typeExtensions.getOrDefault(type, Collections.emptyList()));
+        }
+        return patterns;
+    }
+
+    private static Pattern toPattern(String wildcard) {
+        StringBuilder regex = new StringBuilder();
+        for (String literal : wildcard.split("\\*", -1)) {
+            if (regex.length() > 0) {
+                regex.append(".*");
+            }
+            regex.append(Pattern.quote(literal));
+        }
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ResourcePolicy(blockedTypes=%s, blockedUrls=%s, allowedHosts=%s)", blockedTypes, blockedUrls, allowedHosts);
+    }
+
+    /**
+     * Builder used to configure new {@link ResourcePolicy} instances.
+     */
+    public static class Builder {
+
+        private final Set<String> blockedTypes = new LinkedHashSet<>();
+        private final List<String> blockedUrls = new ArrayList<>();
+        private final Set<String> allowedHosts = new LinkedHashSet<>();
+        private final Map<String, Long> estimatedSizes = new HashMap<>(defaultEstimatedSizes);
+
+        /**
+         * Blocks requests by resource type.
+         *
+         * @param types CDP resource types, e.g. {@link #IMAGE} or {@code XHR}.
+         * @return A self reference.
+         */
+        public Builder withBlockedTypes(String... types) {
+            blockedTypes.addAll(Arrays.asList(types));
+            return this;
+        }
+
+        /**
+         * Blocks requests by URL.
+         *
+         * @param patterns URL patterns, {@code *} matching any sequence of characters.
+         * @return A self reference.
+         */
+        public Builder withBlockedUrls(String... patterns) {
+            blockedUrls.addAll(Arrays.asList(patterns));
+            return this;
+        }
+
+        /**
+         * Exempts hosts from blocking, including their subdomains.
+         *
+         * @param hosts Host names, e.g. {@code example.com}.
+         * @return A self reference.
+         */
+        public Builder withAllowedHosts(String... hosts) {
+            for (String host : hosts) {
+                allowedHosts.add(host.toLowerCase(Locale.ROOT));
+            }
+            return this;
+        }
+
+        /**
+         * Sets the bytes a single request of a type is assumed to cost when no request of the type
+         * loaded. {@link #IMAGE}, {@link #FONT}, {@link #MEDIA} and {@link #STYLESHEET} have
+         * defaults.
+         *
+         * @param type  CDP resource type, e.g. {@link #IMAGE} or {@code Script}.
+         * @param bytes Estimated transfer size of one request.
+         * @return A self reference.
+         */
+        public Builder withEstimatedSize(String type, long bytes) {
+            if (bytes < 0) {
+                throw new IllegalArgumentException("Estimated size must not be negative: " + bytes);
+            }
+            estimatedSizes.put(type, bytes);
+            return this;
+        }
+
+        public ResourcePolicy build() {
+            return new ResourcePolicy(this);
+        }
+    }
+}
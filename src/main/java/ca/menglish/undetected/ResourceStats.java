@@ -0,0 +1,251 @@
+package ca.menglish.undetected;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Enforces a {@link ResourcePolicy} on one tab and counts what it blocked and what was still
+ * loaded.
+ *
+ * <p>Only requests the policy may block are paused, through {@code Fetch.enable} patterns on their
+ * resource type and URL, so every other request loads without an extra round trip. The bytes a
+ * blocked request would have cost are estimated from the mean size of the requests of the same
+ * type that did load in the tab, or from the {@link ResourcePolicy#getEstimatedSizes() estimated
+ * size} of the type when none did. Page load times are recorded from the start of loading the
+ * main frame to its load event, so runs with and without a policy can be compared.
+ */
+public class ResourceStats implements AutoCloseable {
+
+    private static final Logger LOG = Logger.getLogger(ResourceStats.class.getName());
+
+    private final CdpSession session;
+    private final ResourcePolicy policy;
+    private final List<CdpConnection.Subscription> subscriptions = new ArrayList<>();
+
+    private final LongAdder continuedRequests = new LongAdder();
+    private final Map<String, LongAdder> blockedByType = new ConcurrentHashMap<>();
+    private final Map<String, TypeTotals> loadedByType = new ConcurrentHashMap<>();
+    /**
+     * Types of the responses still loading, by network request id.
+     */
+    private final Map<String, String> loadingTypes = new ConcurrentHashMap<>();
+    private final LatencyHistogram pageLoadTimes = new LatencyHistogram();
+    private volatile long pageLoadStart;
+
+    private ResourceStats(CdpSession session, ResourcePolicy policy) {
+        this.session = session;
+        this.policy = policy;
+    }
+
+    /**
+     * Starts enforcing the policy on the target of the session.
+     */
+    static ResourceStats intercept(CdpSession session, ResourcePolicy policy) {
+        ResourceStats stats = new ResourceStats(session, policy);
+        stats.subscriptions.add(session.addListener("Fetch.requestPaused", stats::onRequestPaused));
+        stats.subscriptions.add(session.addListener("Network.responseReceived", stats::onResponseReceived));
+        stats.subscriptions.add(session.addListener("Network.loadingFinished", stats::onLoadingFinished));
+        stats.subscriptions.add(session.addListener("Network.loadingFailed", event -> stats.loadingTypes.remove(getString(event, "requestId"))));
+        stats.subscriptions.add(session.addListener("Page.frameStartedLoading", stats::onFrameStartedLoading));
+        stats.subscriptions.add(session.addListener("Page.loadEventFired", stats::onLoadEventFired));
+
+        session.execute("Network.enable", Collections.emptyMap());
+        session.execute("Page.enable", Collections.emptyMap());
+        List<Map<String, Object>> patterns = policy.getFetchPatterns();
+        if (!patterns.isEmpty()) {
+            session.execute("Fetch.enable", ImmutableMap.of("patterns", patterns));
+        }
+        return stats;
+    }
+
+    public ResourcePolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return Number of requests the policy blocked.
+     */
+    public long getBlockedRequests() {
+        return blockedByType.values().stream().mapToLong(LongAdder::sum).sum();
+    }
+
+    /**
+     * @return Number of blocked requests, by resource type.
+     */
+    public Map<String, Long> getBlockedByType() {
+        Map<String, Long> counts = new TreeMap<>();
+        blockedByType.forEach((type, count) -> counts.put(type, count.sum()));
+        return counts;
+    }
+
+    /**
+     * @return Number of requests paused for the policy and then allowed, e.g. because their host
+     * is allow-listed.
+     */
+    public long getContinuedRequests() {
+        return continuedRequests.sum();
+    }
+
+    /**
+     * @return Number of responses that finished loading.
+     */
+    public long getLoadedRequests() {
+        return loadedByType.values().stream().mapToLong(totals -> totals.count.sum()).sum();
+    }
+
+    /**
+     * @return Bytes received over the network for the responses that finished loading.
+     */
+    public long getLoadedBytes() {
+        return loadedByType.values().stream().mapToLong(totals -> totals.bytes.sum()).sum();
+    }
+
+    /**
+     * @return Estimate of the bytes the blocked requests would have cost, leaving out the
+     * {@link #getUnestimatedRequests() requests without an estimate}.
+     */
+    public long getEstimatedBytesSaved() {
+        double saved = 0;
+        for (Map.Entry<String, LongAdder> blocked : blockedByType.entrySet()) {
+            double size = getEstimatedSize(blocked.getKey());
+            if (!Double.isNaN(size)) {
+                saved += blocked.getValue().sum() * size;
+            }
+        }
+        return Math.round(saved);
+    }
+
+    /**
+     * @return Number of blocked requests left out of {@link #getEstimatedBytesSaved()}, because
+     * nothing of their type loaded and the policy has no estimated size for it.
+     */
+    public long getUnestimatedRequests() {
+        long unestimated = 0;
+        for (Map.Entry<String, LongAdder> blocked : blockedByType.entrySet()) {
+            if (Double.isNaN(getEstimatedSize(blocked.getKey()))) {
+                unestimated += blocked.getValue().sum();
+            }
+        }
+        return unestimated;
+    }
+
+    /**
+     * @return Mean size of the loaded requests of the type, else its size estimated by the policy,
+     * else {@code NaN}.
+     */
+    private double getEstimatedSize(String type) {
+        TypeTotals loaded = loadedByType.get(type);
+        long count = loaded == null ? 0 : loaded.count.sum();
+        if (count > 0) {
+            return (double) loaded.bytes.sum() / count;
+        }
+        Long estimated = policy.getEstimatedSizes().get(type);
+        return estimated == null ? Double.NaN : estimated;
+    }
+
+    /**
+     * @return Time from the start of loading the main frame until its load event, per page.
+     */
+    public LatencyHistogram getPageLoadTimes() {
+        return pageLoadTimes;
+    }
+
+    /**
+     * Stops enforcing the policy, the counters keep their values.
+     */
+    @Override
+    public void close() {
+        subscriptions.forEach(CdpConnection.Subscription::unsubscribe);
+        subscriptions.clear();
+        if (!session.getConnection().isClosed()) {
+            session.send("Fetch.disable", Collections.emptyMap());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void onRequestPaused(CdpConnection.Event event) {
+        String requestId = getString(event, "requestId");
+        Map<String, Object> request = (Map<String, Object>) event.getParams().get("request");
+        String url = request == null ? "" : String.valueOf(request.get("url"));
+        String resourceType = getString(event, "resourceType");
+
+        if (policy.isBlocked(url, resourceType)) {
+            blockedByType.computeIfAbsent(String.valueOf(resourceType), type -> new LongAdder()).increment();
+            session.send("Fetch.failRequest", ImmutableMap.of("requestId", requestId, "errorReason", "BlockedByClient"))
+                    .whenComplete((result, error) -> logFailure(error, url));
+        }
+        else {
+            continuedRequests.increment();
+            session.send("Fetch.continueRequest", ImmutableMap.of("requestId", requestId))
+                    .whenComplete((result, error) -> logFailure(error, url));
+        }
+    }
+
+    private void onResponseReceived(CdpConnection.Event event) {
+        Object type = event.getParams().get("type");
+        loadingTypes.put(getString(event, "requestId"), type == null ? "Other" : type.toString());
+    }
+
+    private void onLoadingFinished(CdpConnection.Event event) {
+        String type = loadingTypes.remove(getString(event, "requestId"));
+        Object bytes = event.getParams().get("encodedDataLength");
+        TypeTotals totals = loadedByType.computeIfAbsent(type == null ? "Other" : type, key -> new TypeTotals());
+        totals.count.increment();
+        if (bytes instanceof Number) {
+            totals.bytes.add(((Number) bytes).longValue());
+        }
+    }
+
+    private void onFrameStartedLoading(CdpConnection.Event event) {
+        // The main frame of a page target has the id of the target
+        if (session.getTargetId().equals(getString(event, "frameId"))) {
+            pageLoadStart = System.nanoTime();
+        }
+    }
+
+    private void onLoadEventFired(CdpConnection.Event event) {
+        long start = pageLoadStart;
+        if (start != 0) {
+            pageLoadTimes.recordSince(start);
+            pageLoadStart = 0;
+        }
+    }
+
+    private static void logFailure(Throwable error, String url) {
+        if (error != null) {
+            LOG.log(Level.FINE, "Unable to resolve paused request " + url, error);
+        }
+    }
+
+    private static String getString(CdpConnection.Event event, String name) {
+        Object value = event.getParams().get(name);
+        return value == null ? null : value.toString();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("blocked=%d %s continued=%d loaded=%d (%dB) estimatedSaved=%dB unestimated=%d pageLoad=%s",
+                getBlockedRequests(),
+                getBlockedByType(),
+                getContinuedRequests(),
+                getLoadedRequests(),
+                getLoadedBytes(),
+                getEstimatedBytesSaved(),
+                getUnestimatedRequests(),
+                pageLoadTimes);
+    }
+
+    private static class TypeTotals {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+    }
+}
@@ -0,0 +1,604 @@
+package ca.menglish.undetected;
+
+import com.google.common.collect.ImmutableMap;
+import org.openqa.selenium.TimeoutException;
+import org.openqa.selenium.WebDriverException;
+import org.openqa.selenium.chrome.ChromeOptions;
+
+import java.io.Closeable;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pool of browser sessions that are created ahead of time and handed out through leases, so a job
+ * does not pay for launching the browser and creating the session.
+ *
+ * <p>When a lease is closed the session is reset, closing every window but one, clearing cookies,
+ * clearing the storage of the origins its windows show at that point and navigating to
+ * {@code about:blank}, and returned to the pool. Storage of origins a window navigated away from
+ * during the lease is not cleared, {@code maxUses} bounds how long it can carry over. A session is
+ * quit instead once it was used {@code maxUses} times, is older than {@code maxAge}, failed to
+ * reset or was {@link Lease#invalidate() invalidated}. Idle sessions are health checked in the background
+ * and the pool is refilled to keep {@code minIdle} sessions ready.
+ *
+ * <pre>
+ * try (SessionPool pool = new SessionPool.Builder().withMaxSize(8).build();
+ *      SessionPool.Lease lease = pool.lease()) {
+ *     lease.getDriver().get("https://example.com");
+ * }
+ * </pre>
+ */
+public class SessionPool implements Closeable {
+
+    private static final Logger LOG = Logger.getLogger(SessionPool.class.getName());
+
+    private static final String CLEAR_STORAGE_SCRIPT =
+            "try { window.localStorage.clear(); } catch (e) {}"
+                    + "try { window.sessionStorage.clear(); } catch (e) {}";
+
+    private final Supplier<StealthyChromiumDriver> driverFactory;
+    private final int minIdle;
+    private final int maxSize;
+    private final int maxUses;
+    private final Duration maxAge;
+    private final Duration acquireTimeout;
+
+    private final ConcurrentLinkedDeque<PooledSession> idle = new ConcurrentLinkedDeque<>();
+    private final Semaphore leases;
+    private final AtomicInteger sessions = new AtomicInteger();
+    private final ScheduledExecutorService maintenanceExecutor;
+    private final ExecutorService sessionExecutor;
+    private volatile boolean closed;
+
+    private final LatencyHistogram leaseWaitTimes = new LatencyHistogram();
+    private final LatencyHistogram creationTimes = new LatencyHistogram();
+    private final LatencyHistogram resetTimes = new LatencyHistogram();
+    private final AtomicLong createdSessions = new AtomicLong();
+    private final AtomicLong recycledSessions = new AtomicLong();
+    private final AtomicLong discardedSessions = new AtomicLong();
+
+    private SessionPool(Builder builder) {
+        this.driverFactory = builder.driverFactory;
+        this.maxSize = builder.maxSize;
+        this.minIdle = Math.min(builder.minIdle, builder.maxSize);
+        this.maxUses = builder.maxUses;
+        this.maxAge = builder.maxAge;
+        this.acquireTimeout = builder.acquireTimeout;
+        this.leases = new Semaphore(builder.maxSize, true);
+
+        this.maintenanceExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> newDaemonThread(runnable, "session-pool-maintenance"));
+        this.sessionExecutor = Executors.newCachedThreadPool(runnable -> newDaemonThread(runnable, "session-pool-session"));
+
+        long interval = builder.healthCheckInterval.toMillis();
+        maintenanceExecutor.scheduleWithFixedDelay(this::maintain, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Leases a session, waiting up to the configured acquire timeout when {@code maxSize} sessions
+     * are leased already. A new session is created on the calling thread when none is idle.
+     *
+     * @return The lease, to be closed when the caller is done with the session.
+     * @throws TimeoutException If no session became available in time.
+     */
+    public Lease lease() {
+        if (closed) {
+            throw new IllegalStateException("Pool is closed");
+        }
+
+        long leaseStart = System.nanoTime();
+        try {
+            if (!leases.tryAcquire(acquireTimeout.toNanos(), TimeUnit.NANOSECONDS)) {
+                throw new TimeoutException("No session became available within " + acquireTimeout);
+            }
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new WebDriverException("Interrupted while waiting for a session", exception);
+        }
+
+        try {
+            PooledSession session;
+            while ((session = idle.pollFirst()) != null) {
+                if (!isExpired(session)) {
+                    break;
+                }
+                recycle(session);
+            }
+            if (session == null) {
+                session = createSession();
+            }
+
+            session.uses++;
+            leaseWaitTimes.recordSince(leaseStart);
+            return new Lease(session);
+        } catch (RuntimeException exception) {
+            leases.release();
+            throw exception;
+        } finally {
+            scheduleRefill();
+        }
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    public int getLeasedCount() {
+        return maxSize - leases.availablePermits();
+    }
+
+    /**
+     * @return Fraction of the maximum pool size that is currently leased, between 0 and 1.
+     */
+    public double getUtilisation() {
+        return (double) getLeasedCount() / maxSize;
+    }
+
+    /**
+     * @return Time callers spent in {@link #lease()}, including waiting for a free slot and creating
+     * sessions on the calling thread.
+     */
+    public LatencyHistogram getLeaseWaitTimes() {
+        return leaseWaitTimes;
+    }
+
+    /**
+     * @return Time it took to create every session, in the background or on the calling thread.
+     */
+    public LatencyHistogram getCreationTimes() {
+        return creationTimes;
+    }
+
+    /**
+     * @return Time it took to reset sessions between leases.
+     */
+    public LatencyHistogram getResetTimes() {
+        return resetTimes;
+    }
+
+    public long getCreatedSessions() {
+        return createdSessions.get();
+    }
+
+    /**
+     * @return Number of sessions quit because they reached the maximum number of uses or age.
+     */
+    public long getRecycledSessions() {
+        return recycledSessions.get();
+    }
+
+    /**
+     * @return Number of sessions quit because they were invalidated, failed to reset or failed a
+     * health check.
+     */
+    public long getDiscardedSessions() {
+        return discardedSessions.get();
+    }
+
+    /**
+     * Quits every idle session. Leased sessions are quit when their lease is closed.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        maintenanceExecutor.shutdownNow();
+
+        List<PooledSession> remaining = new ArrayList<>();
+        PooledSession session;
+        while ((session = idle.pollFirst()) != null) {
+            remaining.add(session);
+        }
+        remaining.parallelStream().forEach(this::quit);
+        sessionExecutor.shutdown();
+    }
+
+    private void release(PooledSession session, boolean invalid) {
+        try {
+            if (closed) {
+                quit(session);
+            }
+            else if (invalid) {
+                discard(session);
+            }
+            else if (isExpired(session)) {
+                recycle(session);
+            }
+            else if (reset(session)) {
+                addIdle(session, true);
+            }
+            else {
+                discard(session);
+            }
+        } finally {
+            leases.release();
+        }
+    }
+
+    /**
+     * Brings a session back to a blank state: a single window on {@code about:blank}, without
+     * cookies and without the storage of the origins its windows show.
+     *
+     * @return Whether the reset succeeded.
+     */
+    private boolean reset(PooledSession session) {
+        long start = System.nanoTime();
+        StealthyChromiumDriver driver = session.driver;
+        try {
+            List<String> handles = new ArrayList<>(driver.getWindowHandles());
+            String kept = handles.contains(session.windowHandle) ? session.windowHandle : handles.get(0);
+            Set<String> origins = new LinkedHashSet<>();
+            for (String handle : handles) {
+                driver.switchTo().window(handle);
+                String origin = getOrigin(driver.getCurrentUrl());
+                if (origin != null) {
+                    origins.add(origin);
+                }
+                if (!handle.equals(kept)) {
+                    driver.close();
+                }
+            }
+            driver.switchTo().window(kept);
+            session.windowHandle = kept;
+
+            driver.executeScript(CLEAR_STORAGE_SCRIPT);
+            driver.executeCdpCommand("Network.clearBrowserCookies", Collections.emptyMap());
+            for (String origin : origins) {
+                try {
+                    driver.executeCdpCommand("Storage.clearDataForOrigin", ImmutableMap.of("origin", origin, "storageTypes", "all"));
+                } catch (WebDriverException exception) {
+                    LOG.log(Level.FINE, "Failed to clear storage of " + origin, exception);
+                }
+            }
+            driver.get("about:blank");
+            resetTimes.recordSince(start);
+            return true;
+        } catch (WebDriverException exception) {
+            LOG.log(Level.FINE, "Failed to reset a pooled session", exception);
+            return false;
+        }
+    }
+
+    /**
+     * @return The origin of a web page, or null for pages without one such as {@code about:blank}.
+     */
+    static String getOrigin(String url) {
+        if (url == null) {
+            return null;
+        }
+        URI uri;
+        try {
+            uri = new URI(url);
+        } catch (URISyntaxException exception) {
+            return null;
+        }
+        String scheme = uri.getScheme();
+        if (uri.getHost() == null || !("http".equalsIgnoreCase(scheme) || "https".equalsIgnoreCase(scheme))) {
+            return null;
+        }
+        scheme = scheme.toLowerCase(Locale.ROOT);
+        String origin = scheme + "://" + uri.getHost().toLowerCase(Locale.ROOT);
+        int defaultPort = scheme.equals("https") ? 443 : 80;
+        return uri.getPort() == -1 || uri.getPort() == defaultPort ? origin : origin + ":" + uri.getPort();
+    }
+
+    private void maintain() {
+        try {
+            Iterator<PooledSession> iterator = idle.iterator();
+            while (iterator.hasNext()) {
+                PooledSession session = iterator.next();
+                if (isExpired(session)) {
+                    if (idle.removeFirstOccurrence(session)) {
+                        recycle(session);
+                    }
+                }
+                else if (!isAlive(session) && idle.removeFirstOccurrence(session)) {
+                    discard(session);
+                }
+            }
+
+            while (sessions.get() > maxSize) {
+                PooledSession session = idle.pollLast();
+                if (session == null) {
+                    break;
+                }
+                recycle(session);
+            }
+
+            refill();
+        } catch (RuntimeException exception) {
+            LOG.log(Level.WARNING, "Session pool maintenance failed", exception);
+        }
+    }
+
+    /**
+     * Refills the pool on the maintenance thread, unless the pool was closed in the meantime.
+     */
+    private void scheduleRefill() {
+        if (closed) {
+            return;
+        }
+        try {
+            maintenanceExecutor.execute(this::refill);
+        } catch (RejectedExecutionException exception) {
+            // Closed since the check, there is nothing left to refill
+        }
+    }
+
+    /**
+     * Returns a session to the idle sessions, or quits it when the pool was closed before it could
+     * be added.
+     */
+    private void addIdle(PooledSession session, boolean first) {
+        if (first) {
+            idle.addFirst(session);
+        }
+        else {
+            idle.addLast(session);
+        }
+        // close() may have drained the pool before the session was added, whoever removes the
+        // session quits it
+        if (closed && idle.removeFirstOccurrence(session)) {
+            quit(session);
+        }
+    }
+
+    private void refill() {
+        while (!closed && idle.size() < minIdle) {
+            int current = sessions.get();
+            if (current >= maxSize) {
+                return;
+            }
+            if (!sessions.compareAndSet(current, current + 1)) {
+                continue;
+            }
+
+            sessionExecutor.execute(() -> {
+                try {
+                    addIdle(newSession(), false);
+                } catch (RuntimeException exception) {
+                    sessions.decrementAndGet();
+                    LOG.log(Level.WARNING, "Failed to create a pooled session", exception);
+                }
+            });
+        }
+    }
+
+    private PooledSession createSession() {
+        sessions.incrementAndGet();
+        try {
+            return newSession();
+        } catch (RuntimeException exception) {
+            sessions.decrementAndGet();
+            throw exception;
+        }
+    }
+
+    private PooledSession newSession() {
+        long start = System.nanoTime();
+        StealthyChromiumDriver driver = driverFactory.get();
+        creationTimes.recordSince(start);
+        createdSessions.incrementAndGet();
+        return new PooledSession(driver, driver.getWindowHandle(), System.nanoTime());
+    }
+
+    private boolean isExpired(PooledSession session) {
+        return session.uses >= maxUses || System.nanoTime() - session.createdAt > maxAge.toNanos();
+    }
+
+    private boolean isAlive(PooledSession session) {
+        try {
+            return !session.driver.getWindowHandles().isEmpty();
+        } catch (WebDriverException exception) {
+            return false;
+        }
+    }
+
+    private void recycle(PooledSession session) {
+        recycledSessions.incrementAndGet();
+        quitLater(session);
+    }
+
+    private void discard(PooledSession session) {
+        discardedSessions.incrementAndGet();
+        quitLater(session);
+    }
+
+    private void quitLater(PooledSession session) {
+        try {
+            sessionExecutor.execute(() -> quit(session));
+        } catch (RejectedExecutionException exception) {
+            quit(session);
+        }
+    }
+
+    private void quit(PooledSession session) {
+        sessions.decrementAndGet();
+        try {
+            session.driver.quit();
+        } catch (WebDriverException exception) {
+            LOG.log(Level.FINE, "Failed to quit a pooled session", exception);
+        }
+    }
+
+    private static Thread newDaemonThread(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private static class PooledSession {
+        private final StealthyChromiumDriver driver;
+        private final long createdAt;
+        private String windowHandle;
+        private int uses;
+
+        private PooledSession(StealthyChromiumDriver driver, String windowHandle, long createdAt) {
+            this.driver = driver;
+            this.windowHandle = windowHandle;
+            this.createdAt = createdAt;
+        }
+    }
+
+    /**
+     * Exclusive use of one pooled session until the lease is closed.
+     */
+    public class Lease implements AutoCloseable {
+
+        private final PooledSession session;
+        private boolean invalid;
+        private boolean closed;
+
+        private Lease(PooledSession session) {
+            this.session = session;
+        }
+
+        public StealthyChromiumDriver getDriver() {
+            if (closed) {
+                throw new IllegalStateException("Lease is closed");
+            }
+            return session.driver;
+        }
+
+        /**
+         * @return Number of leases this session has served, including this one.
+         */
+        public int getUses() {
+            return session.uses;
+        }
+
+        /**
+         * Marks the session as unfit for reuse, it is quit instead of reset when the lease is
+         * closed.
+         */
+        public void invalidate() {
+            invalid = true;
+        }
+
+        /**
+         * Resets the session and returns it to the pool, or quits it when it should not be reused.
+         */
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            release(session, invalid);
+        }
+    }
+
+    /**
+     * Builder used to configure new {@link SessionPool} instances.
+     */
+    public static class Builder {
+
+        private Supplier<StealthyChromiumDriver> driverFactory = () -> new StealthyChromiumDriver(new ChromeOptions());
+        private int minIdle = 1;
+        private int maxSize = 4;
+        private int maxUses = 50;
+        private Duration maxAge = Duration.ofMinutes(30);
+        private Duration acquireTimeout = Duration.ofMinutes(1);
+        private Duration healthCheckInterval = Duration.ofSeconds(30);
+
+        /**
+         * Configures how new sessions are created, e.g. with specific options or a
+         * {@link DriverServicePool}.
+         *
+         * @param driverFactory Creates a new driver with a started session.
+         * @return A self reference.
+         */
+        public Builder withDriverFactory(Supplier<StealthyChromiumDriver> driverFactory) {
+            this.driverFactory = driverFactory;
+            return this;
+        }
+
+        /**
+         * Configures the number of sessions the pool keeps ready.
+         *
+         * @param minIdle Minimum number of idle sessions.
+         * @return A self reference.
+         */
+        public Builder withMinIdle(int minIdle) {
+            this.minIdle = minIdle;
+            return this;
+        }
+
+        /**
+         * Configures the number of sessions that may be leased at the same time.
+         *
+         * @param maxSize Maximum number of sessions.
+         * @return A self reference.
+         */
+        public Builder withMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+            return this;
+        }
+
+        /**
+         * Configures after how many leases a session is quit and replaced.
+         *
+         * @param maxUses Maximum number of leases per session.
+         * @return A self reference.
+         */
+        public Builder withMaxUses(int maxUses) {
+            this.maxUses = maxUses;
+            return this;
+        }
+
+        /**
+         * Configures after how long a session is quit and replaced.
+         *
+         * @param maxAge Maximum age of a session.
+         * @return A self reference.
+         */
+        public Builder withMaxAge(Duration maxAge) {
+            this.maxAge = maxAge;
+            return this;
+        }
+
+        /**
+         * Configures how long {@link #lease()} waits for a session when the pool is exhausted.
+         *
+         * @param acquireTimeout Maximum wait for a session.
+         * @return A self reference.
+         */
+        public Builder withAcquireTimeout(Duration acquireTimeout) {
+            this.acquireTimeout = acquireTimeout;
+            return this;
+        }
+
+        /**
+         * Configures how often idle sessions are health checked and the pool is refilled.
+         *
+         * @param healthCheckInterval Delay between maintenance runs.
+         * @return A self reference.
+         */
+        public Builder withHealthCheckInterval(Duration healthCheckInterval) {
+            this.healthCheckInterval = healthCheckInterval;
+            return this;
+        }
+
+        public SessionPool build() {
+            return new SessionPool(this);
+        }
+    }
+}
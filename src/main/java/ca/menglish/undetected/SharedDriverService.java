@@ -0,0 +1,247 @@
+package ca.menglish.undetected;
+
+import org.openqa.selenium.WebDriverException;
+import org.openqa.selenium.net.PortProber;
+import org.openqa.selenium.remote.SessionId;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One chromedriver process shared by many drivers, chromedriver hosts any number of sessions on a
+ * single port.
+ *
+ * <p>Every driver gets its own {@link #newReference() reference} to the service. A reference
+ * behaves like an ordinary service towards the driver's command executor: starting it retains the
+ * shared process, starting it first if needed, and stopping it when the driver quits releases the
+ * process again. The process is stopped once the last reference is released and no new one was
+ * retained within the idle timeout, so short gaps between sessions do not restart chromedriver.
+ *
+ * <pre>
+ * SharedDriverService shared = SharedDriverService.getDefault();
+ * StealthyChromiumDriver first = new StealthyChromiumDriver(shared, new ChromeOptions());
+ * StealthyChromiumDriver second = new StealthyChromiumDriver(shared, new ChromeOptions());
+ * </pre>
+ *
+ * Service level settings such as the log level come from the shared service, not from the options
+ * of each driver.
+ */
+public class SharedDriverService implements Closeable {
+
+    /**
+     * System property that defines how many milliseconds the {@link #getDefault() default} shared
+     * service keeps running without sessions.
+     */
+    public static final String UNDETECTED_SHARED_SERVICE_IDLE_TIMEOUT_PROPERTY =
+            "webdriver.undetected.sharedServiceIdleTimeout";
+
+    private static final Duration DEFAULT_IDLE_TIMEOUT = Duration.ofSeconds(30);
+
+    private static final ScheduledExecutorService idleStopExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "shared-driver-service-idle-stop");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final HttpClient sessionClient = HttpClient.newHttpClient();
+
+    private static SharedDriverService defaultService;
+
+    private final StealthyChromiumDriverService.Builder builder;
+    private final File executable;
+    private final int port;
+    private final Duration idleTimeout;
+    private StealthyChromiumDriverService service;
+    private int references;
+    private ScheduledFuture<?> pendingStop;
+
+    /**
+     * @param builder     Configuration of the shared service. A stopped service cannot be started
+     *                    again, so a new one is built from it whenever the process is restarted,
+     *                    always on the same port.
+     * @param idleTimeout How long the service keeps running after the last session quit, zero to
+     *                    stop it immediately.
+     */
+    public SharedDriverService(StealthyChromiumDriverService.Builder builder, Duration idleTimeout) {
+        if (builder.getConfiguredPort() == 0) {
+            builder.usingPort(PortProber.findFreePort());
+        }
+        this.builder = builder;
+        this.idleTimeout = idleTimeout;
+        this.service = builder.build();
+        this.executable = service.getExecutable();
+        this.port = service.getUrl().getPort();
+    }
+
+    /**
+     * @return The process-wide shared service, using the
+     * {@link StealthyChromiumDriverService#createDefaultService() default} configuration.
+     */
+    public static synchronized SharedDriverService getDefault() {
+        if (defaultService == null) {
+            long idleMillis = Long.getLong(UNDETECTED_SHARED_SERVICE_IDLE_TIMEOUT_PROPERTY, DEFAULT_IDLE_TIMEOUT.toMillis());
+            defaultService = new SharedDriverService(new StealthyChromiumDriverService.Builder(), Duration.ofMillis(idleMillis));
+        }
+        return defaultService;
+    }
+
+    /**
+     * Creates a reference to pass to a single driver. The reference retains the shared process
+     * when the driver starts its session and releases it when the driver quits.
+     *
+     * @return A new, not yet retained, reference.
+     */
+    public StealthyChromiumDriverService newReference() {
+        try {
+            return new Reference(this);
+        } catch (IOException e) {
+            throw new WebDriverException(e);
+        }
+    }
+
+    /**
+     * @return Number of references currently retaining the process.
+     */
+    public synchronized int getReferenceCount() {
+        return references;
+    }
+
+    public synchronized boolean isRunning() {
+        return service != null && service.isRunning();
+    }
+
+    /**
+     * Stops the process immediately, regardless of the sessions still using it.
+     */
+    @Override
+    public synchronized void close() {
+        cancelPendingStop();
+        stopService();
+    }
+
+    private synchronized void retain() throws IOException {
+        cancelPendingStop();
+        references++;
+        try {
+            if (service == null) {
+                service = builder.build();
+            }
+            service.start();
+        } catch (IOException | RuntimeException exception) {
+            references--;
+            stopService();
+            throw exception;
+        }
+    }
+
+    private synchronized void release() {
+        references--;
+        if (references > 0) {
+            return;
+        }
+
+        if (idleTimeout.isZero()) {
+            stopService();
+        }
+        else {
+            pendingStop = idleStopExecutor.schedule(this::stopIfIdle, idleTimeout.toMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void stopIfIdle() {
+        if (references == 0) {
+            stopService();
+        }
+        pendingStop = null;
+    }
+
+    private void stopService() {
+        if (service != null) {
+            // A service is not started again once stopped, even if stopping failed
+            StealthyChromiumDriverService stopped = service;
+            service = null;
+            stopped.stop();
+        }
+    }
+
+    private void cancelPendingStop() {
+        if (pendingStop != null) {
+            pendingStop.cancel(false);
+            pendingStop = null;
+        }
+    }
+
+    /**
+     * Per-driver view of the shared service, handed to the driver's command executor in place of
+     * a service of its own.
+     *
+     * <p>A reference has no process of its own to wait for when the driver quits, so the command
+     * executor {@link #deleteSession deletes the session} itself and then releases the reference.
+     */
+    static class Reference extends StealthyChromiumDriverService {
+
+        private final SharedDriverService shared;
+        private boolean retained;
+
+        private Reference(SharedDriverService shared) throws IOException {
+            super(shared.executable, shared.port, Collections.emptyList(), Collections.emptyMap());
+            this.shared = shared;
+        }
+
+        @Override
+        public synchronized void start() throws IOException {
+            if (!retained) {
+                shared.retain();
+                retained = true;
+            }
+        }
+
+        @Override
+        public synchronized void stop() {
+            if (retained) {
+                retained = false;
+                shared.release();
+            }
+        }
+
+        @Override
+        public synchronized boolean isRunning() {
+            return retained && shared.isRunning();
+        }
+
+        /**
+         * Ends a session on the shared process, leaving the process and its other sessions running.
+         *
+         * @param sessionId The session to end.
+         * @throws IOException If chromedriver could not be reached or did not end the session.
+         */
+        void deleteSession(SessionId sessionId) throws IOException {
+            HttpRequest request = HttpRequest.newBuilder(URI.create(getUrl() + "/session/" + sessionId))
+                    .timeout(getTimeout())
+                    .DELETE()
+                    .build();
+            try {
+                HttpResponse<String> response = sessionClient.send(request, HttpResponse.BodyHandlers.ofString());
+                if (response.statusCode() != 200) {
+                    throw new IOException("Failed to delete session " + sessionId + ": HTTP "
+                            + response.statusCode() + " " + response.body());
+                }
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while deleting session " + sessionId);
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package ca.menglish.undetected;
+
+import lombok.Getter;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A byte sequence {@link ExecutablePatcher} looks for in the chromedriver executable.
+ *
+ * <p>Reporting signatures are only counted. Replacing signatures additionally overwrite the bytes
+ * starting at the match with their replacement. When the replacement is longer than the pattern,
+ * the bytes following the pattern are treated as the rest of an identifier (like the random suffix
+ * of the {@code cdc_} variable) and the match is only replaced when all of them are identifier
+ * characters, so a stray occurrence of the pattern never clobbers unrelated data.
+ */
+public class Signature {
+
+    @Getter
+    private final String name;
+    private final byte[] pattern;
+    private final byte[] replacement;
+
+    private Signature(String name, byte[] pattern, byte[] replacement) {
+        if (pattern.length == 0) {
+            throw new IllegalArgumentException("Signature pattern must not be empty: " + name);
+        }
+        if (replacement != null && replacement.length < pattern.length) {
+            throw new IllegalArgumentException("Replacement must be at least as long as the pattern: " + name);
+        }
+        this.name = name;
+        this.pattern = pattern;
+        this.replacement = replacement;
+    }
+
+    /**
+     * @param name    Name the hits are reported under.
+     * @param pattern Text to look for.
+     * @return A signature that is only counted.
+     */
+    public static Signature report(String name, String pattern) {
+        return new Signature(name, pattern.getBytes(StandardCharsets.UTF_8), null);
+    }
+
+    /**
+     * @param name        Name the hits are reported under.
+     * @param pattern     Text to look for.
+     * @param replacement Text written over the match, at least as long as the pattern.
+     * @return A signature whose matches are replaced.
+     */
+    public static Signature replace(String name, String pattern, String replacement) {
+        return new Signature(
+                name,
+                pattern.getBytes(StandardCharsets.UTF_8),
+                replacement.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public boolean isReplacing() {
+        return replacement != null;
+    }
+
+    /**
+     * @return Number of bytes, starting at the match, that are read or written for a match.
+     */
+    public int getSpan() {
+        return replacement == null ? pattern.length : replacement.length;
+    }
+
+    byte[] getPattern() {
+        return pattern;
+    }
+
+    byte[] getReplacement() {
+        return replacement;
+    }
+
+    /**
+     * @param buffer Buffer holding at least {@link #getSpan()} bytes starting at {@code offset}.
+     * @param offset Offset in the buffer the pattern matched at.
+     * @return Whether the bytes following the pattern look like the rest of an identifier.
+     */
+    boolean canReplaceAt(ByteBuffer buffer, int offset) {
+        if (replacement == null) {
+            return false;
+        }
+        for (int i = offset + pattern.length; i < offset + replacement.length; i++) {
+            if (!isIdentifierByte(buffer.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isIdentifierByte(byte value) {
+        return (value >= 'a' && value <= 'z')
+                || (value >= 'A' && value <= 'Z')
+                || (value >= '0' && value <= '9')
+                || value == '_'
+                || value == '$';
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
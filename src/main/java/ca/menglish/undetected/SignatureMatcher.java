@@ -0,0 +1,48 @@
+package ca.menglish.undetected;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Finds every occurrence of a fixed set of {@link Signature signatures} in a buffer in a single pass.
+ */
+public interface SignatureMatcher {
+
+    /**
+     * Compiles the signatures into the cheapest matcher that can find all of them: Boyer-Moore
+     * for a single signature, Aho-Corasick for several.
+     *
+     * @param signatures Signatures to look for. Indices into this list are reported on a match.
+     * @return A matcher for the signatures, safe to share between threads.
+     */
+    static SignatureMatcher compile(List<Signature> signatures) {
+        if (signatures.size() == 1) {
+            return new BoyerMooreMatcher(signatures.get(0).getPattern());
+        }
+        return new AhoCorasickMatcher(signatures);
+    }
+
+    /**
+     * Reports every match that lies entirely between {@code from} and {@code to}.
+     *
+     * @param buffer   Buffer to search, only absolute gets are used so its position is ignored.
+     * @param from     Index of the first byte to search.
+     * @param to       Index after the last byte to search.
+     * @param listener Called for every match, not necessarily in order of the match offsets.
+     */
+    void scan(ByteBuffer buffer, int from, int to, MatchListener listener);
+
+    /**
+     * @return Length of the longest signature pattern.
+     */
+    int getMaxPatternLength();
+
+    @FunctionalInterface
+    interface MatchListener {
+        /**
+         * @param signatureIndex Index of the matched signature.
+         * @param offset         Index in the buffer of the first byte of the match.
+         */
+        void onMatch(int signatureIndex, int offset);
+    }
+}
@@ -0,0 +1,45 @@
+package ca.menglish.undetected;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.time.Duration;
+
+/**
+ * Where the time to create one driver's session went. Phases the driver did not wait for, such as
+ * starting a service that was already running, are zero.
+ */
+@AllArgsConstructor
+@Getter
+public class StartupBreakdown {
+
+    /**
+     * Time to launch the chromedriver process.
+     */
+    private final long processSpawnNanos;
+    /**
+     * Time from launching the process until it accepted connections.
+     */
+    private final long readinessNanos;
+    /**
+     * Time to create the browser session, excluding starting the service.
+     */
+    private final long sessionStartNanos;
+
+    public long getTotalNanos() {
+        return processSpawnNanos + readinessNanos + sessionStartNanos;
+    }
+
+    public Duration getTotal() {
+        return Duration.ofNanos(getTotalNanos());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("processSpawn=%.3fms readiness=%.3fms sessionStart=%.3fms total=%.3fms",
+                processSpawnNanos / 1e6,
+                readinessNanos / 1e6,
+                sessionStartNanos / 1e6,
+                getTotalNanos() / 1e6);
+    }
+}
@@ -0,0 +1,62 @@
+package ca.menglish.undetected;
+
+/**
+ * Receives the time spent in each phase of getting a driver ready, from downloading chromedriver
+ * to creating the session. Install one with {@link StartupMetrics#setListener(StartupListener)}.
+ *
+ * <p>Listeners are called on the thread that completed the phase, often concurrently, and should
+ * return quickly.
+ */
+@FunctionalInterface
+public interface StartupListener {
+
+    /**
+     * Listener that ignores every phase, installed by default.
+     */
+    StartupListener NOOP = (phase, nanos) -> {
+    };
+
+    /**
+     * @param phase The completed phase.
+     * @param nanos Time spent in the phase.
+     */
+    void onPhase(Phase phase, long nanos);
+
+    /**
+     * @param other Listener to call after this one.
+     * @return A listener calling both listeners.
+     */
+    default StartupListener andThen(StartupListener other) {
+        return (phase, nanos) -> {
+            onPhase(phase, nanos);
+            other.onPhase(phase, nanos);
+        };
+    }
+
+    enum Phase {
+        /**
+         * Fetching the chromedriver archive, see {@link Downloader}.
+         */
+        DOWNLOAD,
+        /**
+         * Inflating the executable out of the archive.
+         */
+        EXTRACT,
+        /**
+         * Patching the executable, see {@link ExecutablePatcher}.
+         */
+        PATCH,
+        /**
+         * Launching the chromedriver process.
+         */
+        PROCESS_SPAWN,
+        /**
+         * Waiting for the launched process to accept connections.
+         */
+        READINESS,
+        /**
+         * Creating the browser session once chromedriver is ready.
+         */
+        SESSION_START
+    }
+}
@@ -0,0 +1,31 @@
+package ca.menglish.undetected;
+
+/**
+ * Holds the {@link StartupListener} that startup phases are reported to.
+ *
+ * <p>Reporting a phase is a volatile read and an interface call with primitive arguments, so with
+ * the default {@link StartupListener#NOOP no-op} listener instrumentation allocates nothing.
+ */
+public final class StartupMetrics {
+
+    private static volatile StartupListener listener = StartupListener.NOOP;
+
+    private StartupMetrics() {
+    }
+
+    /**
+     * @param startupListener Listener to report every startup phase to, {@code null} to stop
+     *                        reporting.
+     */
+    public static void setListener(StartupListener startupListener) {
+        listener = startupListener == null ? StartupListener.NOOP : startupListener;
+    }
+
+    public static StartupListener getListener() {
+        return listener;
+    }
+
+    static void record(StartupListener.Phase phase, long nanos) {
+        listener.onPhase(phase, nanos);
+    }
+}
@@ -21,15 +21,44 @@ import org.openqa.selenium.remote.service.DriverService;
 import org.openqa.selenium.virtualauthenticator.VirtualAuthenticator;
 import org.openqa.selenium.virtualauthenticator.VirtualAuthenticatorOptions;
 
+import java.io.IOException;
 import java.net.URI;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.BiFunction;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
 import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public class StealthyChromiumDriver extends ChromiumDriver {
 
+    private static final Logger LOG = Logger.getLogger(StealthyChromiumDriver.class.getName());
+
+    /**
+     * Set while the superclass constructor starts the session, so it must not have an initializer.
+     */
+    private StartupBreakdown startupBreakdown;
+
+    /**
+     * The {@code --user-data-dir} the session was requested with, set while the superclass
+     * constructor starts the session, so it must not have an initializer.
+     */
+    private Path requestedUserDataDir;
+
+    private final PinnedScripts pinnedScripts = new PinnedScripts(this);
+
+    private final Map<String, CdpSession> cdpSessions = new ConcurrentHashMap<>();
+    private CdpConnection cdpConnection;
+
+    private ResourceStats resourceStats;
+
+    private final LatencyHistogram navigationTimes = new LatencyHistogram();
+    private volatile NavigationTiming lastNavigationTiming;
+
     /**
      * Creates a new StealthyChromiumDriver using the {@link StealthyChromiumDriverService#createDefaultService default}
      * server configuration.
@@ -85,6 +114,31 @@ public class StealthyChromiumDriver extends ChromiumDriver {
         this(service, (Capabilities) options);
     }
 
+    /**
+     * Creates a new StealthyChromiumDriver instance using an already started service leased from the
+     * {@code pool}. The service belongs to this driver and is shutdown upon calling {@link #quit()}.
+     *
+     * @param pool    The pool to lease the service from.
+     * @param options The options to use.
+     * @see DriverServicePool#lease()
+     */
+    public StealthyChromiumDriver(DriverServicePool pool, ChromeOptions options) {
+        this(pool.lease(), options);
+    }
+
+    /**
+     * Creates a new StealthyChromiumDriver instance whose session runs on the {@code shared} service.
+     * The service is started along with the first driver using it, and shutdown once the last of
+     * them called {@link #quit()}.
+     *
+     * @param shared  The shared service to use.
+     * @param options The options to use.
+     * @see SharedDriverService#newReference()
+     */
+    public StealthyChromiumDriver(SharedDriverService shared, ChromeOptions options) {
+        this(shared.newReference(), options);
+    }
+
     /**
      * Creates a new StealthyChromiumDriver instance. The {@code service} will be started along with the
      * driver, and shutdown upon calling {@link #quit()}.
@@ -219,9 +273,231 @@ public class StealthyChromiumDriver extends ChromiumDriver {
         super.deleteNetworkConditions();
     }
 
+    /**
+     * Also called by the superclass constructor when the session could not be started, before the
+     * fields of this class are initialised. The service is then stopped here, as there is no
+     * session to quit.
+     */
     @Override
     public void quit() {
-        super.quit();
+        if (cdpSessions != null) {
+            synchronized (cdpSessions) {
+                if (cdpConnection != null) {
+                    cdpConnection.close();
+                    cdpConnection = null;
+                }
+                cdpSessions.clear();
+            }
+        }
+
+        boolean sessionStarted = getSessionId() != null;
+        Object chrome = sessionStarted ? getCapabilities().getCapability("chrome") : null;
+        Object userDataDir = chrome instanceof Map ? ((Map<?, ?>) chrome).get("userDataDir") : null;
+        try {
+            if (sessionStarted) {
+                super.quit();
+            }
+            else if (getCommandExecutor() instanceof StealthyChromiumDriverCommandExecutor) {
+                ((StealthyChromiumDriverCommandExecutor) getCommandExecutor()).service.stop();
+            }
+        } finally {
+            if (userDataDir != null) {
+                ProfileTemplate.deleteCopy(Paths.get(userDataDir.toString()));
+            }
+            ProfileTemplate.deleteCopy(requestedUserDataDir);
+        }
+    }
+
+    /**
+     * Opens, on first use, a DevTools connection straight to the browser's debugger, without going
+     * through chromedriver. Commands on it are pipelined and it can drive several targets at once.
+     *
+     * @return The connection to the browser target, closed on {@link #quit()}.
+     */
+    public CdpConnection getCdpConnection() {
+        synchronized (cdpSessions) {
+            if (cdpConnection == null || cdpConnection.isClosed()) {
+                Object chromeOptions = getCapabilities().getCapability("goog:chromeOptions");
+                Object debuggerAddress = chromeOptions instanceof Map ? ((Map<?, ?>) chromeOptions).get("debuggerAddress") : null;
+                if (debuggerAddress == null) {
+                    throw new WebDriverException("The browser did not report a debugger address");
+                }
+
+                cdpSessions.clear();
+                cdpConnection = CdpConnection.connectToDebugger(debuggerAddress.toString());
+                cdpConnection.addListener("Target.detachedFromTarget", event ->
+                        cdpSessions.values().removeIf(session -> session.getSessionId().equals(event.getParams().get("sessionId"))));
+            }
+            return cdpConnection;
+        }
+    }
+
+    /**
+     * @return A DevTools session attached to the current window, reused until the window closes.
+     */
+    public CdpSession getCdpSession() {
+        return getCdpSession(getWindowHandle());
+    }
+
+    /**
+     * @param windowHandle Handle of the window to attach to.
+     * @return A DevTools session attached to the window, reused until the window closes.
+     */
+    public CdpSession getCdpSession(String windowHandle) {
+        CdpConnection connection = getCdpConnection();
+        CdpSession session = cdpSessions.get(windowHandle);
+        if (session != null) {
+            return session;
+        }
+
+        // Attached outside the map, a round trip to the browser must not block other windows
+        CdpSession attached = connection.attachToTarget(getTargetId(windowHandle));
+        session = cdpSessions.putIfAbsent(windowHandle, attached);
+        if (session != null) {
+            attached.detach();
+            return session;
+        }
+        return attached;
+    }
+
+    /**
+     * Starts a batch of independent CDP commands and scripts for the current window, sent
+     * together over {@link #getCdpConnection()} so the batch costs about one round trip.
+     *
+     * @return An empty batch.
+     */
+    public CommandBatch newBatch() {
+        return new CommandBatch(this);
+    }
+
+    /**
+     * Reads properties of every node the locator selects in a single script call, instead of a
+     * round trip per element per property.
+     *
+     * @param locator    Selects the nodes in the current document.
+     * @param properties DOM properties to read, e.g. {@code innerText}, or {@code @name} for
+     *                   attributes.
+     * @return Columnar snapshot of the values, a row per node in document order.
+     * @see DomSnapshot
+     */
+    public DomSnapshot snapshot(By locator, String... properties) {
+        return DomSnapshot.capture(this, locator, properties);
+    }
+
+    /**
+     * Blocks requests of the current window according to the policy, replacing any previous
+     * policy. Requests are intercepted over {@link #getCdpConnection()}; when the browser has no
+     * reachable debugger, the policy is approximated with {@code Network.setBlockedURLs} instead,
+     * which cannot allow-list hosts and keeps no counters.
+     *
+     * @param policy The policy, {@code null} to stop blocking.
+     * @return Counters of the requests blocked and loaded under the policy, or {@code null} if the
+     * policy was removed or could only be approximated.
+     */
+    public synchronized ResourceStats setResourcePolicy(ResourcePolicy policy) {
+        if (resourceStats != null) {
+            resourceStats.close();
+            resourceStats = null;
+        }
+
+        CdpSession session;
+        try {
+            session = getCdpSession();
+        } catch (WebDriverException exception) {
+            LOG.log(Level.FINE, "Unable to connect to the debugger, blocking requests by URL only", exception);
+            executeCdpCommand("Network.enable", Collections.emptyMap());
+            executeCdpCommand("Network.setBlockedURLs", ImmutableMap.of(
+                    "urls", policy == null ? Collections.emptyList() : policy.getUrlPatterns()));
+            return null;
+        }
+
+        if (policy != null) {
+            resourceStats = ResourceStats.intercept(session, policy);
+        }
+        return resourceStats;
+    }
+
+    /**
+     * @return Counters of the current resource policy, or {@code null} if none is intercepting.
+     */
+    public synchronized ResourceStats getResourceStats() {
+        return resourceStats;
+    }
+
+    /**
+     * Opens tabs in this browser to lease to concurrent tasks, each driven through its own
+     * {@link CdpSession} rather than the driver's current window.
+     *
+     * @param size Number of tabs.
+     * @return The pool, to be closed when no longer needed.
+     * @see TabPool.Builder
+     */
+    public TabPool newTabPool(int size) {
+        return new TabPool.Builder(this).withSize(size).build();
+    }
+
+    /**
+     * @return A view of this driver whose calls return futures instead of blocking the caller,
+     * running on virtual threads on Java 21 and later.
+     */
+    public AsyncDriver async() {
+        return new AsyncDriver(this);
+    }
+
+    /**
+     * Loads a page in the current window and returns as soon as the condition is met, e.g. once
+     * the DOM is parsed or the network went quiet, instead of after a fixed delay or polling. When
+     * the browser has no reachable debugger, this falls back to {@link #get(String)}.
+     *
+     * @param url       URL to load.
+     * @param condition When the page counts as ready.
+     * @param timeout   Maximum wait for the condition.
+     * @return When the page became ready and when each lifecycle event fired.
+     * @throws TimeoutException If the condition was not met in time.
+     */
+    public NavigationTiming navigateTo(String url, PageLoadCondition condition, Duration timeout) {
+        CdpSession session;
+        try {
+            session = getCdpSession();
+        } catch (WebDriverException exception) {
+            LOG.log(Level.FINE, "Unable to connect to the debugger, navigating through chromedriver", exception);
+            session = null;
+        }
+
+        NavigationTiming timing;
+        if (session != null) {
+            timing = PageNavigator.navigate(session, url, condition, timeout);
+        }
+        else {
+            long start = System.nanoTime();
+            get(url);
+            timing = new NavigationTiming(url, PageLoadCondition.load(), Collections.emptyMap(), System.nanoTime() - start, 0);
+        }
+
+        navigationTimes.record(timing.getReadyNanos());
+        lastNavigationTiming = timing;
+        return timing;
+    }
+
+    /**
+     * @return Time until the page was ready for every {@link #navigateTo} call.
+     */
+    public LatencyHistogram getNavigationTimes() {
+        return navigationTimes;
+    }
+
+    /**
+     * @return Timing of the last {@link #navigateTo} call, or {@code null} if there was none.
+     */
+    public NavigationTiming getLastNavigationTiming() {
+        return lastNavigationTiming;
+    }
+
+    /**
+     * Older chromedriver versions prefix the target id of a window to form its handle.
+     */
+    private static String getTargetId(String windowHandle) {
+        return windowHandle.startsWith("CDwindow-") ? windowHandle.substring("CDwindow-".length()) : windowHandle;
     }
 
     @Override
@@ -231,7 +507,7 @@ public class StealthyChromiumDriver extends ChromiumDriver {
 
     @Override
     public DevTools getDevTools() {
-        return null;
+        return super.getDevTools();
     }
 
     @Override
@@ -246,7 +522,63 @@ public class StealthyChromiumDriver extends ChromiumDriver {
 
     @Override
     protected void startSession(Capabilities capabilities) {
+        requestedUserDataDir = getUserDataDir(capabilities);
+        long start = System.nanoTime();
         super.startSession(capabilities);
+        recordStartup(start, System.nanoTime() - start);
+    }
+
+    private static Path getUserDataDir(Capabilities capabilities) {
+        Object chromeOptions = capabilities.getCapability(ChromeOptions.CAPABILITY);
+        Object args = chromeOptions instanceof Map ? ((Map<?, ?>) chromeOptions).get("args") : null;
+        if (args instanceof Collection) {
+            for (Object arg : (Collection<?>) args) {
+                String argument = String.valueOf(arg);
+                if (argument.startsWith(ProfileTemplate.USER_DATA_DIR_ARGUMENT)) {
+                    return Paths.get(argument.substring(ProfileTemplate.USER_DATA_DIR_ARGUMENT.length()));
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return Where the time to create this driver's session went, or {@code null} while the session
+     * was not created.
+     */
+    public StartupBreakdown getStartupBreakdown() {
+        return startupBreakdown;
+    }
+
+    /**
+     * @return Latency, in-flight and error counts of every command this driver sent, or {@code null}
+     * when a custom command executor is used.
+     */
+    public CommandMetrics getCommandMetrics() {
+        if (getCommandExecutor() instanceof StealthyChromiumDriverCommandExecutor) {
+            return ((StealthyChromiumDriverCommandExecutor) getCommandExecutor()).metrics;
+        }
+        return null;
+    }
+
+    private void recordStartup(long start, long totalNanos) {
+        long processSpawnNanos = 0;
+        long readinessNanos = 0;
+        if (getCommandExecutor() instanceof StealthyChromiumDriverCommandExecutor) {
+            DriverService service = ((StealthyChromiumDriverCommandExecutor) getCommandExecutor()).service;
+            if (service instanceof StealthyChromiumDriverService) {
+                StealthyChromiumDriverService stealthyService = (StealthyChromiumDriverService) service;
+                // Only count a start this session waited for, not one done earlier by a pool
+                if (stealthyService.getStartNanos() - start >= 0 && stealthyService.getReadinessNanos() >= 0) {
+                    processSpawnNanos = stealthyService.getProcessSpawnNanos();
+                    readinessNanos = stealthyService.getReadinessNanos();
+                }
+            }
+        }
+
+        long sessionStartNanos = Math.max(0, totalNanos - processSpawnNanos - readinessNanos);
+        startupBreakdown = new StartupBreakdown(processSpawnNanos, readinessNanos, sessionStartNanos);
+        StartupMetrics.record(StartupListener.Phase.SESSION_START, sessionStartNanos);
     }
 
     @Override
@@ -449,24 +781,31 @@ public class StealthyChromiumDriver extends ChromiumDriver {
         return super.toString();
     }
 
+    /**
+     * Sends the script to the browser once. It is reinstalled in every document the current tab
+     * loads, so calling it by key only sends the key and the arguments.
+     *
+     * @param script The script, written like a script passed to {@link #executeScript(String, Object...)}.
+     * @return The key to call the script with.
+     */
     @Override
     public ScriptKey pin(String script) {
-        return null;
+        return pinnedScripts.pin(script);
     }
 
     @Override
     public void unpin(ScriptKey key) {
-
+        pinnedScripts.unpin(key);
     }
 
     @Override
     public Set<ScriptKey> getPinnedScripts() {
-        return null;
+        return pinnedScripts.getKeys();
     }
 
     @Override
     public Object executeScript(ScriptKey key, Object... args) {
-        return null;
+        return pinnedScripts.execute(key, args);
     }
 
     @Override
@@ -490,8 +829,42 @@ public class StealthyChromiumDriver extends ChromiumDriver {
     }
 
     private static class StealthyChromiumDriverCommandExecutor extends ChromiumDriverCommandExecutor {
+        private final DriverService service;
+        private final CommandMetrics metrics = new CommandMetrics();
+
         public StealthyChromiumDriverCommandExecutor(DriverService service) {
             super(service, getExtraCommands());
+            this.service = service;
+        }
+
+        @Override
+        public Response execute(Command command) throws IOException {
+            if (DriverCommand.QUIT.equals(command.getName()) && service instanceof SharedDriverService.Reference) {
+                return metrics.record(command, () -> quitSharedSession(command));
+            }
+            return metrics.record(command, () -> super.execute(command));
+        }
+
+        /**
+         * Quits a session on a shared service. The superclass would wait for the process to exit,
+         * but the shared process outlives the session, so only the session is deleted before the
+         * reference is released.
+         */
+        private Response quitSharedSession(Command command) throws IOException {
+            try {
+                ((SharedDriverService.Reference) service).deleteSession(command.getSessionId());
+            } finally {
+                try {
+                    service.stop();
+                } finally {
+                    close();
+                }
+            }
+
+            Response response = new Response(command.getSessionId());
+            response.setStatus(ErrorCodes.SUCCESS);
+            response.setState(ErrorCodes.SUCCESS_STRING);
+            return response;
         }
 
         private static Map<String, CommandInfo> getExtraCommands() {
@@ -8,16 +8,25 @@ import org.openqa.selenium.remote.service.DriverService;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
 
 import static java.util.Collections.unmodifiableList;
 import static org.openqa.selenium.remote.Browser.CHROME;
 
 public class StealthyChromiumDriverService extends DriverService {
 
+    private static final Logger LOG = Logger.getLogger(StealthyChromiumDriverService.class.getName());
+
     /**
      * System property that defines the location of the chromedriver executable that will be used by
      * the {@link #createDefaultService() default service}.
@@ -64,6 +73,34 @@ public class StealthyChromiumDriverService extends DriverService {
     public static final String UNDETECTED_DRIVER_DISABLE_BUILD_CHECK =
             "webdriver.undetected.disableBuildCheck";
 
+    /**
+     * System property that defines how the {@link #createDefaultService() default service} detects
+     * that chromedriver is ready, one of the {@link Readiness} names.
+     */
+    public static final String UNDETECTED_DRIVER_READINESS_PROPERTY =
+            "webdriver.undetected.readiness";
+
+    /**
+     * Line chromedriver prints once it listens on its port.
+     */
+    private static final String STARTED_LINE = "started successfully";
+
+    /**
+     * How long to wait for the started line before checking the status endpoint once, in case the
+     * line is never printed, e.g. with {@code --silent}.
+     */
+    private static final Duration STATUS_PROBE_INTERVAL = Duration.ofMillis(250);
+
+    private final File executable;
+    private final Readiness readiness;
+
+    private volatile CountDownLatch started;
+    private volatile long startNanos;
+    private volatile long spawnedNanos;
+    private volatile long processSpawnNanos;
+    private volatile long timeToReadyNanos = -1;
+    private volatile Readiness readinessSource;
+
     /**
      * @param executable  The chromedriver executable.
      * @param port        Which port to start the ChromeDriver on.
@@ -76,7 +113,7 @@ public class StealthyChromiumDriverService extends DriverService {
             int port,
             List<String> args,
             Map<String, String> environment) throws IOException {
-        super(executable, port, DEFAULT_TIMEOUT, args, environment);
+        this(executable, port, DEFAULT_TIMEOUT, args, environment);
     }
 
     /**
@@ -93,7 +130,165 @@ public class StealthyChromiumDriverService extends DriverService {
             Duration timeout,
             List<String> args,
             Map<String, String> environment) throws IOException {
+        this(executable, port, timeout, args, environment, Readiness.LOG_LINE);
+    }
+
+    /**
+     * @param executable  The chromedriver executable.
+     * @param port        Which port to start the ChromeDriver on.
+     * @param timeout     Timeout waiting for driver server to start.
+     * @param args        The arguments to the launched server.
+     * @param environment The environment for the launched server.
+     * @param readiness   How to detect that the server is ready.
+     * @throws IOException If an I/O error occurs.
+     */
+    public StealthyChromiumDriverService(
+            File executable,
+            int port,
+            Duration timeout,
+            List<String> args,
+            Map<String, String> environment,
+            Readiness readiness) throws IOException {
         super(executable, port, timeout, args, environment);
+        this.executable = executable;
+        this.readiness = args.contains("--silent") ? Readiness.POLLING : readiness;
+    }
+
+    /**
+     * @return The chromedriver executable this service launches.
+     */
+    File getExecutable() {
+        return executable;
+    }
+
+    @Override
+    public synchronized void start() throws IOException {
+        if (isRunning()) {
+            return;
+        }
+        if (process != null) {
+            // Died since it was started, the superclass only starts a service without a process
+            process.destroy();
+            process = null;
+        }
+
+        started = new CountDownLatch(1);
+        timeToReadyNanos = -1;
+        readinessSource = null;
+        startNanos = System.nanoTime();
+        super.start();
+
+        // The superclass also returns once the process merely outlived the timeout
+        if (readinessSource == null) {
+            stop();
+            throw new WebDriverException("Timed out waiting for driver server to start.");
+        }
+    }
+
+    @Override
+    protected OutputStream getOutputStream() {
+        OutputStream out = super.getOutputStream();
+        if (readiness != Readiness.LOG_LINE) {
+            return out;
+        }
+        return new StartedLineOutputStream(out, started);
+    }
+
+    /**
+     * Waits for chromedriver to print that it started, which it does the moment it listens on its
+     * port. The status endpoint is still checked between waits, so a server that never prints the
+     * line is detected as quickly as by polling alone, and the timeout applies to both together.
+     */
+    @Override
+    protected void waitUntilAvailable() {
+        spawnedNanos = System.nanoTime();
+        processSpawnNanos = spawnedNanos - startNanos;
+        if (readiness == Readiness.LOG_LINE) {
+            long deadline = System.nanoTime() + getTimeout().toNanos();
+            try {
+                while (System.nanoTime() < deadline) {
+                    if (started.await(STATUS_PROBE_INTERVAL.toNanos(), TimeUnit.NANOSECONDS)) {
+                        markReady(Readiness.LOG_LINE);
+                        return;
+                    }
+                    if (isStatusAvailable()) {
+                        markReady(Readiness.POLLING);
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new WebDriverException("Interrupted while waiting for the driver server to start", e);
+            }
+            process.checkForError();
+            throw new WebDriverException("Timed out waiting for driver server to start.");
+        }
+
+        super.waitUntilAvailable();
+        markReady(Readiness.POLLING);
+    }
+
+    /**
+     * @return Time from starting the process to the server being ready during the last start, or
+     * {@code null} if it was not started yet.
+     */
+    public Duration getTimeToReady() {
+        long nanos = timeToReadyNanos;
+        return nanos < 0 ? null : Duration.ofNanos(nanos);
+    }
+
+    /**
+     * @return How readiness was detected during the last start, or {@code null} if it was not
+     * started yet.
+     */
+    public Readiness getReadinessSource() {
+        return readinessSource;
+    }
+
+    /**
+     * @return Value of {@link System#nanoTime()} when the service was last started.
+     */
+    long getStartNanos() {
+        return startNanos;
+    }
+
+    /**
+     * @return Time to launch the process during the last start.
+     */
+    long getProcessSpawnNanos() {
+        return processSpawnNanos;
+    }
+
+    /**
+     * @return Time from launching the process until it was ready during the last start, or -1 if
+     * it was not started yet.
+     */
+    long getReadinessNanos() {
+        long nanos = timeToReadyNanos;
+        return nanos < 0 ? -1 : nanos - processSpawnNanos;
+    }
+
+    private void markReady(Readiness source) {
+        long now = System.nanoTime();
+        timeToReadyNanos = now - startNanos;
+        readinessSource = source;
+        StartupMetrics.record(StartupListener.Phase.PROCESS_SPAWN, processSpawnNanos);
+        StartupMetrics.record(StartupListener.Phase.READINESS, now - spawnedNanos);
+    }
+
+    private boolean isStatusAvailable() {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(getUrl(), "/status").openConnection();
+            connection.setConnectTimeout(100);
+            connection.setReadTimeout(500);
+            try {
+                return connection.getResponseCode() == HttpURLConnection.HTTP_OK;
+            } finally {
+                connection.disconnect();
+            }
+        } catch (IOException e) {
+            return false;
+        }
     }
 
     /**
@@ -122,6 +317,73 @@ public class StealthyChromiumDriverService extends DriverService {
                 .build();
     }
 
+    /**
+     * How a starting service detects that chromedriver is ready to accept sessions.
+     */
+    public enum Readiness {
+        /**
+         * Watch the output of chromedriver for the line it prints once it listens on its port, and
+         * check the status endpoint only if the line does not show up.
+         */
+        LOG_LINE,
+        /**
+         * Poll the status endpoint until it answers, as {@link DriverService} does.
+         */
+        POLLING
+    }
+
+    /**
+     * Passes output on unchanged while looking for the started line in it.
+     */
+    private static class StartedLineOutputStream extends OutputStream {
+
+        private static final int MAX_LINE_LENGTH = 4096;
+
+        private final OutputStream out;
+        private final CountDownLatch started;
+        private final StringBuilder line = new StringBuilder();
+
+        private StartedLineOutputStream(OutputStream out, CountDownLatch started) {
+            this.out = out;
+            this.started = started;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            scan(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            for (int i = off; i < off + len && started.getCount() > 0; i++) {
+                scan(b[i]);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        private void scan(int b) {
+            if (started.getCount() == 0) {
+                return;
+            }
+
+            if (b == '\n') {
+                if (line.indexOf(STARTED_LINE) >= 0) {
+                    started.countDown();
+                }
+                line.setLength(0);
+            }
+            else if (line.length() < MAX_LINE_LENGTH) {
+                line.append((char) (b & 0xff));
+            }
+        }
+    }
+
     /**
      * Builder used to configure new {@link StealthyChromiumDriverService} instances.
      */
@@ -134,6 +396,7 @@ public class StealthyChromiumDriverService extends DriverService {
         private String whitelistedIps = System.getProperty(UNDETECTED_DRIVER_WHITELISTED_IPS_PROPERTY);
         private boolean disableBuildCheck = Boolean.getBoolean(UNDETECTED_DRIVER_DISABLE_BUILD_CHECK);
         private ChromeDriverLogLevel logLevel = null;
+        private Readiness readiness = getDefaultReadiness();
 
         @Override
         public int score(Capabilities capabilities) {
@@ -206,6 +469,38 @@ public class StealthyChromiumDriverService extends DriverService {
             return this;
         }
 
+        /**
+         * @return The configured port, 0 when a free port is picked on {@link #build()}.
+         */
+        int getConfiguredPort() {
+            return getPort();
+        }
+
+        /**
+         * Configures how the driver server is detected to be ready.
+         *
+         * @param readiness {@link Readiness} mode, {@link Readiness#LOG_LINE} by default.
+         * @return A self reference.
+         */
+        public Builder withReadiness(Readiness readiness) {
+            this.readiness = readiness;
+            return this;
+        }
+
+        private static Readiness getDefaultReadiness() {
+            String readiness = System.getProperty(UNDETECTED_DRIVER_READINESS_PROPERTY);
+            if (readiness == null) {
+                return Readiness.LOG_LINE;
+            }
+            try {
+                return Readiness.valueOf(readiness.trim().toUpperCase(Locale.ENGLISH));
+            } catch (IllegalArgumentException exception) {
+                LOG.warning("Unknown " + UNDETECTED_DRIVER_READINESS_PROPERTY + " " + readiness
+                        + ", using " + Readiness.LOG_LINE);
+                return Readiness.LOG_LINE;
+            }
+        }
+
         @Override
         protected File findDefaultExecutable() {
             return findExecutable(
@@ -265,7 +560,7 @@ public class StealthyChromiumDriverService extends DriverService {
                 List<String> args,
                 Map<String, String> environment) {
             try {
-                return new StealthyChromiumDriverService(exe, port, timeout, args, environment);
+                return new StealthyChromiumDriverService(exe, port, timeout, args, environment, readiness);
             } catch (IOException e) {
                 throw new WebDriverException(e);
             }
@@ -0,0 +1,600 @@
+package ca.menglish.undetected;
+
+import com.google.common.collect.ImmutableMap;
+import org.openqa.selenium.TimeoutException;
+import org.openqa.selenium.WebDriverException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pool of tabs inside one browser, leased to concurrent tasks so they share a single browser
+ * process instead of each launching their own.
+ *
+ * <p>Tabs are CDP targets driven through their own {@link CdpSession} over the driver's
+ * {@link CdpConnection}, never through {@code switchTo()}, so tasks on different tabs do not race
+ * over the driver's current window. Tabs are opened up front with every command pipelined, reset
+ * to {@code about:blank} between leases and replaced after {@code maxUses} leases. With isolated
+ * contexts every tab gets its own browser context, so tabs share no cookies or storage.
+ *
+ * <pre>
+ * try (TabPool tabs = driver.newTabPool(8)) {
+ *     urls.parallelStream().forEach(url -&gt; {
+ *         try (TabPool.Tab tab = tabs.lease()) {
+ *             tab.navigate(url);
+ *             titles.add((String) tab.evaluate("return document.title"));
+ *         }
+ *     });
+ *     System.out.println(tabs.getThroughput() + " leases/s, " + tabs.getBrowserMemoryBytes() + "B");
+ * }
+ * </pre>
+ */
+public class TabPool implements Closeable {
+
+    private static final Logger LOG = Logger.getLogger(TabPool.class.getName());
+
+    private static final Duration DEFAULT_TIMEOUT = Duration.ofSeconds(30);
+
+    private final CdpConnection connection;
+    private final int maxSize;
+    private final int maxUses;
+    private final boolean isolated;
+    private final Duration acquireTimeout;
+    private final Duration pageLoadTimeout;
+    private final boolean localBrowser;
+
+    private final ConcurrentLinkedDeque<PooledTab> idle = new ConcurrentLinkedDeque<>();
+    private final Set<PooledTab> open = ConcurrentHashMap.newKeySet();
+    private final Semaphore leases;
+    private volatile boolean closed;
+
+    private final long createdAt = System.nanoTime();
+    private final LatencyHistogram leaseWaitTimes = new LatencyHistogram();
+    private final LatencyHistogram leaseDurations = new LatencyHistogram();
+    private final LatencyHistogram openTimes = new LatencyHistogram();
+    private final AtomicLong completedLeases = new AtomicLong();
+    private final AtomicLong openedTabs = new AtomicLong();
+    private final AtomicLong discardedTabs = new AtomicLong();
+
+    private TabPool(Builder builder) {
+        this.connection = builder.driver.getCdpConnection();
+        this.maxSize = builder.size;
+        this.maxUses = builder.maxUses;
+        this.isolated = builder.isolated;
+        this.acquireTimeout = builder.acquireTimeout;
+        this.pageLoadTimeout = builder.pageLoadTimeout;
+        this.leases = new Semaphore(builder.size, true);
+        this.localBrowser = isLocalHost(connection.getWebSocketUrl().getHost());
+
+        List<CompletableFuture<PooledTab>> opening = new ArrayList<>();
+        for (int i = 0; i < builder.size; i++) {
+            opening.add(openTab());
+        }
+        try {
+            for (CompletableFuture<PooledTab> tab : opening) {
+                idle.addLast(await(tab, "Target.createTarget"));
+            }
+        } catch (RuntimeException exception) {
+            // Nobody can close the pool once the constructor failed, so close what did open,
+            // including tabs that finish opening later
+            closed = true;
+            idle.clear();
+            for (CompletableFuture<PooledTab> tab : opening) {
+                tab.thenAccept(this::closeTab);
+            }
+            throw exception;
+        }
+    }
+
+    /**
+     * Leases a tab, waiting up to the configured acquire timeout when every tab is leased. A tab
+     * that was replaced is opened on the calling thread.
+     *
+     * @return The tab, to be closed when the caller is done with it.
+     * @throws TimeoutException If no tab became available in time.
+     */
+    public Tab lease() {
+        if (closed) {
+            throw new IllegalStateException("Pool is closed");
+        }
+
+        long leaseStart = System.nanoTime();
+        try {
+            if (!leases.tryAcquire(acquireTimeout.toNanos(), TimeUnit.NANOSECONDS)) {
+                throw new TimeoutException("No tab became available within " + acquireTimeout);
+            }
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new WebDriverException("Interrupted while waiting for a tab", exception);
+        }
+
+        try {
+            PooledTab tab = idle.pollFirst();
+            if (tab == null) {
+                tab = await(openTab(), "Target.createTarget");
+            }
+            tab.uses++;
+            leaseWaitTimes.recordSince(leaseStart);
+            return new Tab(tab);
+        } catch (RuntimeException exception) {
+            leases.release();
+            throw exception;
+        }
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    public int getLeasedCount() {
+        return maxSize - leases.availablePermits();
+    }
+
+    /**
+     * @return Number of leases completed per second since the pool was created.
+     */
+    public double getThroughput() {
+        double seconds = (System.nanoTime() - createdAt) / 1e9;
+        return seconds == 0 ? 0 : completedLeases.get() / seconds;
+    }
+
+    public long getCompletedLeases() {
+        return completedLeases.get();
+    }
+
+    /**
+     * @return Time callers spent in {@link #lease()}, including waiting for a free tab.
+     */
+    public LatencyHistogram getLeaseWaitTimes() {
+        return leaseWaitTimes;
+    }
+
+    /**
+     * @return Time tabs were held by a task, from lease until close.
+     */
+    public LatencyHistogram getLeaseDurations() {
+        return leaseDurations;
+    }
+
+    /**
+     * @return Time it took to open and attach every tab.
+     */
+    public LatencyHistogram getOpenTimes() {
+        return openTimes;
+    }
+
+    public long getOpenedTabs() {
+        return openedTabs.get();
+    }
+
+    /**
+     * @return Number of tabs closed because they reached the maximum number of uses, failed to
+     * reset or were invalidated.
+     */
+    public long getDiscardedTabs() {
+        return discardedTabs.get();
+    }
+
+    /**
+     * Sums the resident memory of every process of the browser, read from {@code /proc}. Shared
+     * pages are counted once per process, so the sum overstates what the browser would free.
+     *
+     * @return Resident memory of the browser in bytes, or -1 when the browser runs on another host
+     * or {@code /proc} is not available, e.g. on a non Linux host.
+     */
+    @SuppressWarnings("unchecked")
+    public long getBrowserMemoryBytes() {
+        if (!localBrowser) {
+            // Its process ids mean nothing here
+            return -1;
+        }
+        Map<String, Object> result = await(connection.send("SystemInfo.getProcessInfo", Collections.emptyMap()), "SystemInfo.getProcessInfo");
+        List<Map<String, Object>> processes = (List<Map<String, Object>>) result.get("processInfo");
+        if (processes == null) {
+            return -1;
+        }
+
+        long total = -1;
+        for (Map<String, Object> process : processes) {
+            long rss = getResidentBytes(((Number) process.get("id")).longValue());
+            if (rss >= 0) {
+                total = Math.max(total, 0) + rss;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @return JavaScript heap in use by the documents of every open tab, in bytes.
+     */
+    @SuppressWarnings("unchecked")
+    public long getJsHeapBytes() {
+        Map<PooledTab, CompletableFuture<Map<String, Object>>> requests = new HashMap<>();
+        for (PooledTab tab : open) {
+            requests.put(tab, tab.session.send("Performance.getMetrics", Collections.emptyMap()));
+        }
+
+        long total = 0;
+        for (CompletableFuture<Map<String, Object>> request : requests.values()) {
+            try {
+                Map<String, Object> result = await(request, "Performance.getMetrics");
+                for (Map<String, Object> metric : (List<Map<String, Object>>) result.get("metrics")) {
+                    if ("JSHeapUsedSize".equals(metric.get("name"))) {
+                        total += ((Number) metric.get("value")).longValue();
+                    }
+                }
+            } catch (WebDriverException exception) {
+                LOG.log(Level.FINE, "Failed to read the metrics of a tab", exception);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Closes every idle tab. Leased tabs are closed when their lease is closed.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        PooledTab tab;
+        while ((tab = idle.pollFirst()) != null) {
+            closeTab(tab);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("TabPool(size=%d, leased=%d, completed=%d, throughput=%.2f/s, lease=%s)",
+                maxSize, getLeasedCount(), getCompletedLeases(), getThroughput(), leaseDurations);
+    }
+
+    private CompletableFuture<PooledTab> openTab() {
+        long start = System.nanoTime();
+        CompletableFuture<Map<String, Object>> context = isolated
+                ? connection.send("Target.createBrowserContext", ImmutableMap.of("disposeOnDetach", true))
+                : CompletableFuture.completedFuture(Collections.emptyMap());
+
+        return context.thenCompose(contextResult -> {
+            Map<String, Object> params = new HashMap<>();
+            params.put("url", "about:blank");
+            params.put("background", true);
+            Object browserContextId = contextResult.get("browserContextId");
+            if (browserContextId != null) {
+                params.put("browserContextId", browserContextId);
+            }
+            return connection.send("Target.createTarget", params).thenCompose(target -> {
+                String targetId = (String) target.get("targetId");
+                return connection.send("Target.attachToTarget", ImmutableMap.of("targetId", targetId, "flatten", true))
+                        .thenApply(attached -> new CdpSession(connection, targetId, (String) attached.get("sessionId")))
+                        .thenCompose(session -> {
+                            // Enabling is pipelined, the tab is usable once the last command was answered
+                            session.send("Page.enable", Collections.emptyMap());
+                            return session.send("Performance.enable", Collections.emptyMap()).thenApply(ignored -> session);
+                        })
+                        .whenComplete((session, error) -> {
+                            if (error != null) {
+                                closeTarget(targetId, null);
+                            }
+                        });
+            }).thenApply(session -> {
+                PooledTab tab = new PooledTab(session, (String) browserContextId);
+                open.add(tab);
+                openedTabs.incrementAndGet();
+                openTimes.recordSince(start);
+                return tab;
+            }).whenComplete((tab, error) -> {
+                if (error != null && browserContextId != null) {
+                    closeTarget(null, (String) browserContextId);
+                }
+            });
+        });
+    }
+
+    private void release(PooledTab tab, boolean invalid, long leasedAt) {
+        try {
+            leaseDurations.recordSince(leasedAt);
+            completedLeases.incrementAndGet();
+
+            if (closed) {
+                closeTab(tab);
+            }
+            else if (invalid || tab.uses >= maxUses || !reset(tab)) {
+                discardedTabs.incrementAndGet();
+                closeTab(tab);
+            }
+            else {
+                idle.addFirst(tab);
+            }
+        } finally {
+            leases.release();
+        }
+    }
+
+    private boolean reset(PooledTab tab) {
+        try {
+            tab.session.execute("Page.navigate", ImmutableMap.of("url", "about:blank"));
+            return true;
+        } catch (WebDriverException exception) {
+            LOG.log(Level.FINE, "Failed to reset a pooled tab", exception);
+            return false;
+        }
+    }
+
+    private void closeTab(PooledTab tab) {
+        open.remove(tab);
+        closeTarget(tab.session.getTargetId(), tab.browserContextId);
+    }
+
+    /**
+     * @param targetId         Target to close, or {@code null}.
+     * @param browserContextId Context to dispose after the target, or {@code null}.
+     */
+    private void closeTarget(String targetId, String browserContextId) {
+        if (connection.isClosed()) {
+            return;
+        }
+        if (targetId != null) {
+            connection.send("Target.closeTarget", ImmutableMap.of("targetId", targetId));
+        }
+        if (browserContextId != null) {
+            connection.send("Target.disposeBrowserContext", ImmutableMap.of("browserContextId", browserContextId));
+        }
+    }
+
+    /**
+     * @return Whether the host is this machine, so process ids the browser reports are local ones.
+     */
+    static boolean isLocalHost(String host) {
+        if (host == null) {
+            return false;
+        }
+        try {
+            for (InetAddress address : InetAddress.getAllByName(host)) {
+                if (address.isLoopbackAddress() || address.isAnyLocalAddress() || NetworkInterface.getByInetAddress(address) != null) {
+                    return true;
+                }
+            }
+        } catch (IOException exception) {
+            LOG.log(Level.FINE, "Unable to resolve " + host, exception);
+        }
+        return false;
+    }
+
+    private static long getResidentBytes(long pid) {
+        Path status = Paths.get("/proc", Long.toString(pid), "status");
+        try {
+            for (String line : Files.readAllLines(status)) {
+                if (line.startsWith("VmRSS:")) {
+                    // Reported as "VmRSS:   123456 kB"
+                    return Long.parseLong(line.substring("VmRSS:".length()).replace("kB", "").trim()) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException exception) {
+            LOG.log(Level.FINEST, "Unable to read the memory of process " + pid, exception);
+        }
+        return -1;
+    }
+
+    private static <T> T await(CompletableFuture<T> future, String method) {
+        try {
+            return future.get(DEFAULT_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException exception) {
+            if (exception.getCause() instanceof WebDriverException) {
+                throw (WebDriverException) exception.getCause();
+            }
+            throw new WebDriverException(method + " failed", exception.getCause());
+        } catch (java.util.concurrent.TimeoutException exception) {
+            throw new TimeoutException("Timed out waiting for " + method, exception);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new WebDriverException("Interrupted while waiting for " + method, exception);
+        }
+    }
+
+    private static class PooledTab {
+        private final CdpSession session;
+        private final String browserContextId;
+        private int uses;
+
+        private PooledTab(CdpSession session, String browserContextId) {
+            this.session = session;
+            this.browserContextId = browserContextId;
+        }
+    }
+
+    /**
+     * Exclusive use of one pooled tab until the lease is closed.
+     */
+    public class Tab implements AutoCloseable {
+
+        private final PooledTab tab;
+        private final long leasedAt = System.nanoTime();
+        private boolean invalid;
+        private boolean closed;
+
+        private Tab(PooledTab tab) {
+            this.tab = tab;
+        }
+
+        /**
+         * @return The session driving this tab, commands sent through it only affect this tab.
+         */
+        public CdpSession getSession() {
+            if (closed) {
+                throw new IllegalStateException("Lease is closed");
+            }
+            return tab.session;
+        }
+
+        public String getTargetId() {
+            return tab.session.getTargetId();
+        }
+
+        /**
+         * @return Number of leases this tab has served, including this one.
+         */
+        public int getUses() {
+            return tab.uses;
+        }
+
+        /**
+         * Navigates the tab and waits for the load event of the new page.
+         *
+         * @param url URL to load.
+         * @return Timing of the navigation.
+         * @throws TimeoutException If the page did not load within the configured page load timeout.
+         */
+        public NavigationTiming navigate(String url) {
+            return navigate(url, PageLoadCondition.load());
+        }
+
+        /**
+         * Navigates the tab and waits until the condition is met.
+         *
+         * @param url       URL to load.
+         * @param condition When the page counts as ready.
+         * @return Timing of the navigation.
+         * @throws TimeoutException If the condition was not met within the configured page load
+         *                          timeout.
+         */
+        public NavigationTiming navigate(String url, PageLoadCondition condition) {
+            return PageNavigator.navigate(getSession(), url, condition, pageLoadTimeout);
+        }
+
+        /**
+         * Runs a script in the tab's current document.
+         *
+         * @param script The script, written like a script passed to {@code executeScript}, its
+         *               result being returned by value.
+         * @return The return value of the script.
+         */
+        public Object evaluate(String script) {
+            Map<String, Object> result = getSession().execute("Runtime.evaluate", ImmutableMap.of(
+                    "expression", String.format("(function() {%n%s%n})()", script),
+                    "returnByValue", true,
+                    "awaitPromise", true));
+            return CommandBatch.getScriptResult(result);
+        }
+
+        /**
+         * Marks the tab as unfit for reuse, it is closed instead of reset when the lease is closed.
+         */
+        public void invalidate() {
+            invalid = true;
+        }
+
+        /**
+         * Resets the tab and returns it to the pool, or closes it when it should not be reused.
+         */
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            release(tab, invalid, leasedAt);
+        }
+    }
+
+    /**
+     * Builder used to configure new {@link TabPool} instances.
+     */
+    public static class Builder {
+
+        private final StealthyChromiumDriver driver;
+        private int size = 4;
+        private int maxUses = 100;
+        private boolean isolated;
+        private Duration acquireTimeout = Duration.ofMinutes(1);
+        private Duration pageLoadTimeout = Duration.ofSeconds(30);
+
+        /**
+         * @param driver Driver whose browser hosts the tabs.
+         */
+        public Builder(StealthyChromiumDriver driver) {
+            this.driver = driver;
+        }
+
+        /**
+         * Configures the number of tabs the pool opens.
+         *
+         * @param size Number of tabs that may be leased at the same time.
+         * @return A self reference.
+         */
+        public Builder withSize(int size) {
+            this.size = size;
+            return this;
+        }
+
+        /**
+         * Configures after how many leases a tab is closed and replaced, bounding the memory a
+         * long lived tab accumulates.
+         *
+         * @param maxUses Maximum number of leases per tab.
+         * @return A self reference.
+         */
+        public Builder withMaxUses(int maxUses) {
+            this.maxUses = maxUses;
+            return this;
+        }
+
+        /**
+         * Configures whether every tab gets its own browser context, with separate cookies, cache
+         * and storage.
+         *
+         * @param isolated {@code true} to isolate tabs from each other.
+         * @return A self reference.
+         */
+        public Builder withIsolatedContexts(boolean isolated) {
+            this.isolated = isolated;
+            return this;
+        }
+
+        /**
+         * Configures how long {@link #lease()} waits for a tab when every tab is leased.
+         *
+         * @param acquireTimeout Maximum wait for a tab.
+         * @return A self reference.
+         */
+        public Builder withAcquireTimeout(Duration acquireTimeout) {
+            this.acquireTimeout = acquireTimeout;
+            return this;
+        }
+
+        /**
+         * Configures how long {@link Tab#navigate(String)} waits for the page to load.
+         *
+         * @param pageLoadTimeout Maximum wait for the load event.
+         * @return A self reference.
+         */
+        public Builder withPageLoadTimeout(Duration pageLoadTimeout) {
+            this.pageLoadTimeout = pageLoadTimeout;
+            return this;
+        }
+
+        public TabPool build() {
+            return new TabPool(this);
+        }
+    }
+}
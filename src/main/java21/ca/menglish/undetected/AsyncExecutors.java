@@ -0,0 +1,22 @@
+package ca.menglish.undetected;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs every blocking driver call for {@link AsyncDriver} on its own virtual thread, so waiting on
+ * the browser parks the virtual thread instead of holding a platform thread and its stack.
+ */
+final class AsyncExecutors {
+
+    private AsyncExecutors() {
+    }
+
+    static ExecutorService newExecutor(String name) {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 0).factory());
+    }
+
+    static boolean isVirtual() {
+        return true;
+    }
+}
@@ -0,0 +1,252 @@
+package ca.menglish.undetected;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DownloadEngineTest {
+
+    private static final int SEGMENT_SIZE = 64 * 1024;
+    private static final int SEGMENTS = 16;
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d+)");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final byte[] content = new byte[SEGMENTS * SEGMENT_SIZE];
+
+    private HttpServer server;
+    private volatile boolean acceptRanges = true;
+    private volatile String checksum;
+    /**
+     * Ranges starting at or after this offset fail with a server error.
+     */
+    private volatile long failRangesFrom = Long.MAX_VALUE;
+    private final AtomicInteger rangesToDrop = new AtomicInteger();
+    private final AtomicInteger rangeRequests = new AtomicInteger();
+    private final AtomicInteger wholeRequests = new AtomicInteger();
+    private final AtomicInteger missingRequests = new AtomicInteger();
+
+    @Before
+    public void startServer() throws IOException {
+        new Random(7).nextBytes(content);
+        checksum = DownloadEngine.sha256(write(folder.newFile().toPath(), content));
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    public void downloadsInRanges() throws Exception {
+        Path target = newEngine(4).download(uri("/driver.zip"), folder.getRoot().toPath().resolve("driver.zip"), null);
+
+        assertArrayEquals(content, Files.readAllBytes(target));
+        assertEquals(SEGMENTS, rangeRequests.get());
+        assertEquals(0, wholeRequests.get());
+        assertFalse(Files.exists(target.resolveSibling("driver.zip.part")));
+        assertFalse(Files.exists(target.resolveSibling("driver.zip.part.progress")));
+    }
+
+    @Test
+    public void fallsBackToWholeFileWithoutRangeSupport() throws Exception {
+        acceptRanges = false;
+        Path target = newEngine(4).download(uri("/driver.zip"), folder.getRoot().toPath().resolve("driver.zip"), null);
+
+        assertArrayEquals(content, Files.readAllBytes(target));
+        assertEquals(0, rangeRequests.get());
+        assertEquals(1, wholeRequests.get());
+    }
+
+    @Test
+    public void resumesRangeAfterDroppedConnection() throws Exception {
+        rangesToDrop.set(3);
+        Path target = newEngine(4).download(uri("/driver.zip"), folder.getRoot().toPath().resolve("driver.zip"), null);
+
+        assertArrayEquals(content, Files.readAllBytes(target));
+        assertEquals(SEGMENTS + 3, rangeRequests.get());
+    }
+
+    @Test
+    public void resumesCompletedSegmentsOnNextCall() throws Exception {
+        Path target = folder.getRoot().toPath().resolve("driver.zip");
+        failRangesFrom = content.length / 2;
+        try {
+            newEngine(1).download(uri("/driver.zip"), target, null);
+            fail("Download should fail while the server fails ranges");
+        } catch (IOException expected) {
+            // The first half of the segments completed
+        }
+        assertTrue(Files.exists(target.resolveSibling("driver.zip.part")));
+        assertTrue(Files.exists(target.resolveSibling("driver.zip.part.progress")));
+
+        failRangesFrom = Long.MAX_VALUE;
+        rangeRequests.set(0);
+        newEngine(1).download(uri("/driver.zip"), target, null);
+
+        assertArrayEquals(content, Files.readAllBytes(target));
+        assertEquals(SEGMENTS / 2, rangeRequests.get());
+    }
+
+    @Test
+    public void rejectsChecksumMismatch() throws Exception {
+        Path target = folder.getRoot().toPath().resolve("driver.zip");
+        try {
+            newEngine(4).download(uri("/driver.zip"), target, "00" + checksum.substring(2));
+            fail("Download should fail on a checksum mismatch");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().contains("Checksum mismatch"));
+        }
+        assertFalse(Files.exists(target));
+        assertFalse(Files.exists(target.resolveSibling("driver.zip.part")));
+        assertFalse(Files.exists(target.resolveSibling("driver.zip.part.progress")));
+    }
+
+    @Test
+    public void verifiesAgainstChecksumSidecar() throws Exception {
+        DownloadEngine engine = new DownloadEngine.Builder()
+                .withSegmentSize(SEGMENT_SIZE)
+                .withChecksumSidecar(true)
+                .build();
+        Path target = folder.getRoot().toPath().resolve("driver.zip");
+        engine.download(uri("/driver.zip"), target, null);
+        assertArrayEquals(content, Files.readAllBytes(target));
+
+        checksum = checksum.replace(checksum.charAt(0), checksum.charAt(0) == 'a' ? 'b' : 'a');
+        try {
+            engine.download(uri("/driver.zip"), target, null);
+            fail("Download should fail when the sidecar does not match");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().contains("Checksum mismatch"));
+        }
+    }
+
+    @Test
+    public void failsFastOnClientError() throws Exception {
+        DownloadEngine engine = new DownloadEngine.Builder()
+                .withRetries(3, Duration.ofSeconds(10))
+                .build();
+        long start = System.nanoTime();
+        try {
+            engine.download(uri("/missing.zip"), folder.getRoot().toPath().resolve("missing.zip"), null);
+            fail("Download of a missing file should fail");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().contains("404"));
+        }
+
+        assertTrue(System.nanoTime() - start < Duration.ofSeconds(5).toNanos());
+        // The HEAD request and a single GET
+        assertEquals(2, missingRequests.get());
+    }
+
+    private DownloadEngine newEngine(int parallelism) {
+        return new DownloadEngine.Builder()
+                .withParallelism(parallelism)
+                .withSegmentSize(SEGMENT_SIZE)
+                .withRetries(parallelism == 1 ? 0 : 3, Duration.ofMillis(1))
+                .build();
+    }
+
+    private URI uri(String path) {
+        return URI.create("http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + path);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            if (path.equals("/driver.zip.sha256")) {
+                send(exchange, 200, (checksum + "  driver.zip\n").getBytes(StandardCharsets.US_ASCII));
+            }
+            else if (!path.equals("/driver.zip")) {
+                missingRequests.incrementAndGet();
+                exchange.sendResponseHeaders(404, -1);
+            }
+            else if (exchange.getRequestMethod().equals("HEAD")) {
+                if (acceptRanges) {
+                    exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+                }
+                exchange.getResponseHeaders().set("Content-Length", Integer.toString(content.length));
+                exchange.getResponseHeaders().set("ETag", "\"v1\"");
+                exchange.sendResponseHeaders(200, -1);
+            }
+            else {
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                if (acceptRanges && range != null) {
+                    sendRange(exchange, range);
+                }
+                else {
+                    wholeRequests.incrementAndGet();
+                    send(exchange, 200, content);
+                }
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void sendRange(HttpExchange exchange, String range) throws IOException {
+        rangeRequests.incrementAndGet();
+        Matcher matcher = RANGE.matcher(range);
+        if (!matcher.matches()) {
+            exchange.sendResponseHeaders(416, -1);
+            return;
+        }
+
+        int start = Integer.parseInt(matcher.group(1));
+        int end = Integer.parseInt(matcher.group(2));
+        if (start >= failRangesFrom) {
+            exchange.sendResponseHeaders(503, -1);
+            return;
+        }
+
+        int length = end - start + 1;
+        exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + content.length);
+        exchange.sendResponseHeaders(206, length);
+        OutputStream body = exchange.getResponseBody();
+        if (rangesToDrop.getAndUpdate(count -> Math.max(0, count - 1)) > 0) {
+            // Half the range, closing the exchange short of its length drops the connection
+            body.write(content, start, length / 2);
+            body.flush();
+            return;
+        }
+        body.write(content, start, length);
+    }
+
+    private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    private static Path write(Path path, byte[] bytes) throws IOException {
+        return Files.write(path, bytes);
+    }
+}
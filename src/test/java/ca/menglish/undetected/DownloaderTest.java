@@ -0,0 +1,86 @@
+package ca.menglish.undetected;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DownloaderTest {
+
+    private static final String REPLACEMENT = ExecutablePatcher.getReplacementCdc();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void extractionModesProduceTheSamePatchedExecutable() throws Exception {
+        byte[] executable = new byte[512 * 1024];
+        new Random(3).nextBytes(executable);
+        byte[] variable = ("cdc_" + "abcdefghijklmnopqrstuv").getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(variable, 0, executable, 1000, variable.length);
+        System.arraycopy(variable, 0, executable, 300_000, variable.length);
+        String downloadUrl = writeArchive(executable).toUri().toString();
+
+        Path downloads = folder.newFolder("downloads").toPath();
+        DownloadEngine engine = new DownloadEngine.Builder().build();
+        Downloader.PipelineResult streaming = Downloader.downloadAndPatchChromedriver(
+                downloadUrl, REPLACEMENT, Downloader.ExtractionMode.STREAMING, engine, downloads);
+        Downloader.PipelineResult randomAccess = Downloader.downloadAndPatchChromedriver(
+                downloadUrl, REPLACEMENT, Downloader.ExtractionMode.RANDOM_ACCESS, engine, downloads);
+
+        byte[] patched = Files.readAllBytes(randomAccess.getChromedriver().toPath());
+        assertArrayEquals(patched, Files.readAllBytes(streaming.getChromedriver().toPath()));
+        assertEquals(2, randomAccess.getPatchResult().getReplacements().size());
+        assertEquals(REPLACEMENT, new String(patched, 1000, REPLACEMENT.length(), StandardCharsets.US_ASCII));
+        assertTrue(streaming.getInflateNanos() >= 0);
+
+        // Neither the archive nor its lock file is left behind
+        try (Stream<Path> files = Files.list(downloads)) {
+            assertEquals(0, files.count());
+        }
+        Files.delete(streaming.getChromedriver().toPath());
+        Files.delete(randomAccess.getChromedriver().toPath());
+    }
+
+    @Test
+    public void archiveNameIsStablePerUrl() {
+        String url = Downloader.getDownloadUrl("96.0.4664.45", Downloader.DriverType.LINUX);
+        String otherVersion = Downloader.getDownloadUrl("97.0.4692.71", Downloader.DriverType.LINUX);
+
+        assertEquals(Downloader.getArchiveName(url), Downloader.getArchiveName(url));
+        assertTrue(Downloader.getArchiveName(url).endsWith("-chromedriver_linux64.zip"));
+        assertNotEquals(Downloader.getArchiveName(url), Downloader.getArchiveName(otherVersion));
+    }
+
+    /**
+     * Writes an archive laid out like the newer ones, with license files whose names also start
+     * with chromedriver before the executable.
+     */
+    private Path writeArchive(byte[] executable) throws IOException {
+        Path archive = folder.newFile("chromedriver_linux64.zip").toPath();
+        try (OutputStream file = Files.newOutputStream(archive);
+             ZipOutputStream zip = new ZipOutputStream(file)) {
+            zip.putNextEntry(new ZipEntry("chromedriver-linux64/LICENSE.chromedriver"));
+            zip.write(new byte[64 * 1024]);
+            zip.closeEntry();
+            zip.putNextEntry(new ZipEntry("chromedriver-linux64/chromedriver"));
+            zip.write(executable);
+            zip.closeEntry();
+        }
+        return archive;
+    }
+}
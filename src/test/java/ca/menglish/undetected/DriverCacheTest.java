@@ -0,0 +1,138 @@
+package ca.menglish.undetected;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DriverCacheTest {
+
+    private static final int DRIVER_SIZE = 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void evictsLeastRecentlyUsedBeyondMaxEntries() throws Exception {
+        Path directory = folder.newFolder("cache").toPath();
+        DriverCache cache = new DriverCache(directory, 2, Long.MAX_VALUE);
+        DriverCache.CacheKey first = key("96.0.4664.45");
+        DriverCache.CacheKey second = key("97.0.4692.71");
+        DriverCache.CacheKey third = key("98.0.4758.48");
+
+        putAt(cache, directory, first, 1);
+        putAt(cache, directory, second, 2);
+        // Using the first entry makes the second one the least recently used
+        assertTrue(cache.get(first).isPresent());
+        cache.put(third, newDriver());
+
+        assertTrue(cache.get(first).isPresent());
+        assertFalse(cache.get(second).isPresent());
+        assertTrue(cache.get(third).isPresent());
+        assertEquals(0, countLockFiles(directory));
+    }
+
+    @Test
+    public void evictsBeyondMaxBytes() throws Exception {
+        Path directory = folder.newFolder("cache").toPath();
+        DriverCache cache = new DriverCache(directory, Integer.MAX_VALUE, DRIVER_SIZE * 5L / 2);
+        DriverCache.CacheKey first = key("96.0.4664.45");
+        DriverCache.CacheKey second = key("97.0.4692.71");
+        DriverCache.CacheKey third = key("98.0.4758.48");
+
+        putAt(cache, directory, first, 1);
+        putAt(cache, directory, second, 2);
+        cache.put(third, newDriver());
+
+        assertFalse(cache.get(first).isPresent());
+        assertTrue(cache.get(second).isPresent());
+        assertTrue(cache.get(third).isPresent());
+    }
+
+    @Test
+    public void keepsEntryWhoseKeyIsLocked() throws Exception {
+        Path directory = folder.newFolder("cache").toPath();
+        DriverCache cache = new DriverCache(directory, 1, Long.MAX_VALUE);
+        DriverCache.CacheKey locked = key("96.0.4664.45");
+        putAt(cache, directory, locked, 1);
+
+        CountDownLatch acquired = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> holder = executor.submit(() -> {
+                LockFile lock = LockFile.acquire(directory.resolve(locked.getDigest() + ".lock"));
+                try {
+                    acquired.countDown();
+                    release.await();
+                } finally {
+                    lock.delete();
+                }
+                return null;
+            });
+            assertTrue(acquired.await(10, TimeUnit.SECONDS));
+
+            cache.put(key("97.0.4692.71"), newDriver());
+            // Checked without get(), which would make it the most recently used
+            assertTrue(Files.isDirectory(directory.resolve(locked.getDigest())));
+
+            release.countDown();
+            holder.get(10, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        cache.evict();
+        assertFalse(cache.get(locked).isPresent());
+        assertEquals(0, countLockFiles(directory));
+    }
+
+    @Test
+    public void removesLockFilesLeftBehind() throws Exception {
+        Path directory = folder.newFolder("cache").toPath();
+        DriverCache cache = new DriverCache(directory, 2, Long.MAX_VALUE);
+        Files.createFile(directory.resolve(key("96.0.4664.45").getDigest() + ".lock"));
+        Files.createFile(directory.resolve("unrelated.lock"));
+
+        cache.evict();
+
+        assertEquals(0, countLockFiles(directory));
+    }
+
+    private void putAt(DriverCache cache, Path directory, DriverCache.CacheKey key, long seconds) throws IOException {
+        cache.put(key, newDriver());
+        Files.setLastModifiedTime(directory.resolve(key.getDigest()), FileTime.from(seconds, TimeUnit.SECONDS));
+    }
+
+    private File newDriver() throws IOException {
+        File driver = folder.newFile();
+        Files.write(driver.toPath(), new byte[DRIVER_SIZE]);
+        return driver;
+    }
+
+    private static DriverCache.CacheKey key(String driverVersion) {
+        return new DriverCache.CacheKey(
+                driverVersion, Downloader.DriverType.LINUX, ExecutablePatcher.getReplacementCdc(), "test");
+    }
+
+    private static long countLockFiles(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(".lock")).count();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package ca.menglish.undetected;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class ExecutablePatcherTest {
+
+    private static final int MB = 1024 * 1024;
+    /**
+     * Four chunks of exactly one megabyte with a parallelism of four.
+     */
+    private static final int FILE_SIZE = 4 * MB;
+    private static final String SUFFIX = "abcdefghijklmnopqrstuv";
+    private static final String REPLACEMENT = ExecutablePatcher.getReplacementCdc();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void patchesSignaturesAcrossChunkBoundaries() throws IOException {
+        byte[] original = newExecutable();
+        File file = write("heap-parallel", original);
+
+        ExecutablePatcher.PatchResult result = ExecutablePatcher.patch(file, REPLACEMENT, ExecutablePatcher.PatchMode.HEAP, 4);
+
+        assertEquals(3, result.getReplacements().size());
+        assertEquals(5, result.getHitCount(ExecutablePatcher.CDC_SIGNATURE));
+        assertEquals(1, result.getHitCount("cdc-document-key"));
+        assertEquals(1, result.getHitCount("webdriver-marker"));
+
+        byte[] patched = Files.readAllBytes(file.toPath());
+        assertText(patched, MB - 20, REPLACEMENT);
+        assertText(patched, 2 * MB + 101, REPLACEMENT);
+        assertText(patched, 3 * MB - 2, REPLACEMENT);
+        assertText(patched, MB + MB / 2, "cdc_ab!!");
+        assertText(patched, FILE_SIZE - 10, "cdc_" + SUFFIX.substring(0, 6));
+    }
+
+    @Test
+    public void heapMappedAndParallelModesProduceTheSameOutput() throws IOException {
+        byte[] original = newExecutable();
+        byte[] expected = patch(original, ExecutablePatcher.PatchMode.HEAP, 1);
+
+        assertArrayEquals(expected, patch(original, ExecutablePatcher.PatchMode.HEAP, 4));
+        assertArrayEquals(expected, patch(original, ExecutablePatcher.PatchMode.MAPPED, 1));
+        assertArrayEquals(expected, patch(original, ExecutablePatcher.PatchMode.MAPPED, 4));
+        assertArrayEquals(expected, patch(original, ExecutablePatcher.PatchMode.MAPPED, 3));
+        assertFalse(Arrays.equals(original, expected));
+    }
+
+    @Test
+    public void leavesFileWithoutSignaturesUntouched() throws IOException {
+        byte[] original = new byte[2 * MB];
+        File file = write("clean", original);
+        long modified = file.lastModified();
+
+        ExecutablePatcher.PatchResult result = ExecutablePatcher.patch(file, REPLACEMENT, ExecutablePatcher.PatchMode.HEAP, 2);
+
+        assertFalse(result.isPatched());
+        assertEquals(modified, file.lastModified());
+        assertArrayEquals(original, Files.readAllBytes(file.toPath()));
+    }
+
+    private byte[] patch(byte[] original, ExecutablePatcher.PatchMode mode, int parallelism) throws IOException {
+        File file = write(mode + "-" + parallelism, original);
+        ExecutablePatcher.patch(file, REPLACEMENT, mode, parallelism);
+        return Files.readAllBytes(file.toPath());
+    }
+
+    /**
+     * Places signatures so that they straddle the boundaries of one megabyte chunks in every way:
+     * the pattern in one chunk and its suffix in the next, the pattern itself split, and one
+     * signature ending where another starts.
+     */
+    private static byte[] newExecutable() {
+        byte[] bytes = new byte[FILE_SIZE];
+        // Only the pattern lies before the boundary, the identifier suffix after it
+        put(bytes, MB - 20, "cdc_" + SUFFIX);
+        // Not followed by identifier characters, counted but never replaced
+        put(bytes, MB + MB / 2, "cdc_ab!!");
+        put(bytes, 2 * MB - 5, "webdriver");
+        // Also a hit of the cdc_ variable one byte later
+        put(bytes, 2 * MB + 100, "$cdc_" + SUFFIX);
+        // The pattern itself is split by the boundary
+        put(bytes, 3 * MB - 2, "cdc_" + SUFFIX);
+        // Too close to the end of the file for the replacement to fit
+        put(bytes, FILE_SIZE - 10, "cdc_" + SUFFIX.substring(0, 6));
+        return bytes;
+    }
+
+    private static void put(byte[] bytes, int offset, String text) {
+        byte[] textBytes = text.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(textBytes, 0, bytes, offset, textBytes.length);
+    }
+
+    private static void assertText(byte[] bytes, int offset, String expected) {
+        assertEquals(expected, new String(bytes, offset, expected.length(), StandardCharsets.US_ASCII));
+    }
+
+    private File write(String name, byte[] bytes) throws IOException {
+        File file = folder.newFile(name);
+        Files.write(file.toPath(), bytes);
+        return file;
+    }
+}
@@ -0,0 +1,147 @@
+package ca.menglish.undetected;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openqa.selenium.TimeoutException;
+import org.openqa.selenium.chrome.ChromeOptions;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class JobSchedulerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SharedDriverService shared;
+    private SessionPool pool;
+
+    @Before
+    public void startPool() throws Exception {
+        StealthyChromiumDriverService.Builder builder = new StealthyChromiumDriverService.Builder()
+                .usingDriverExecutable(StubChromedriver.writeExecutable(folder.newFolder()))
+                .usingAnyFreePort();
+        builder.withTimeout(Duration.ofSeconds(30));
+        shared = new SharedDriverService(builder, Duration.ofMinutes(1));
+        pool = new SessionPool.Builder()
+                .withDriverFactory(() -> new StealthyChromiumDriver(shared, new ChromeOptions()))
+                .withMinIdle(0)
+                .build();
+    }
+
+    @After
+    public void stopPool() {
+        pool.close();
+        shared.close();
+    }
+
+    @Test
+    public void servesSubmittersInTurn() throws Exception {
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        try (JobScheduler scheduler = newBuilder().withConcurrency(1).build()) {
+            CompletableFuture<?> blocker = scheduler.submit("blocker", driver -> {
+                blocked.countDown();
+                return release.await(10, TimeUnit.SECONDS);
+            });
+            assertTrue(blocked.await(10, TimeUnit.SECONDS));
+
+            List<CompletableFuture<?>> results = new ArrayList<>();
+            for (String name : Arrays.asList("a1", "a2", "a3", "b1", "c1")) {
+                results.add(scheduler.submit(name.substring(0, 1), driver -> order.add(name)));
+            }
+            assertEquals(5, scheduler.getQueueDepth());
+            assertEquals(3, (int) scheduler.getQueueDepthBySubmitter().get("a"));
+
+            release.countDown();
+            blocker.get(10, TimeUnit.SECONDS);
+            for (CompletableFuture<?> result : results) {
+                result.get(10, TimeUnit.SECONDS);
+            }
+        }
+
+        assertEquals(Arrays.asList("a1", "b1", "c1", "a2", "a3"), order);
+    }
+
+    @Test
+    public void rejectsWhenQueueStaysFull() throws Exception {
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Duration submitTimeout = Duration.ofMillis(300);
+        try (JobScheduler scheduler = newBuilder()
+                .withConcurrency(1)
+                .withQueueCapacity(1)
+                .withSubmitTimeout(submitTimeout)
+                .build()) {
+            scheduler.submit(driver -> {
+                blocked.countDown();
+                return release.await(10, TimeUnit.SECONDS);
+            });
+            assertTrue(blocked.await(10, TimeUnit.SECONDS));
+            CompletableFuture<Boolean> queued = scheduler.submit(driver -> true);
+
+            long start = System.nanoTime();
+            try {
+                scheduler.submit(driver -> true);
+                fail("The queue is full");
+            } catch (RejectedExecutionException expected) {
+                assertTrue(System.nanoTime() - start >= submitTimeout.toNanos());
+            }
+
+            // Cancelling the queued task makes room right away
+            queued.cancel(false);
+            assertEquals(0, scheduler.getQueueDepth());
+            CompletableFuture<Boolean> next = scheduler.submit(driver -> true);
+
+            release.countDown();
+            assertTrue(next.get(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void timeoutDoesNotInterruptNextTask() throws Exception {
+        try (JobScheduler scheduler = newBuilder().withConcurrency(1).build()) {
+            // Leaves a session idle, so the timeout hits the slow task rather than the lease
+            scheduler.submit(driver -> true).get(30, TimeUnit.SECONDS);
+
+            CompletableFuture<Boolean> slow = scheduler.submit("default", Duration.ofMillis(200), driver -> {
+                Thread.sleep(10_000);
+                return true;
+            });
+            try {
+                slow.get(10, TimeUnit.SECONDS);
+                fail("The task runs longer than its timeout");
+            } catch (ExecutionException expected) {
+                assertTrue(expected.getCause() instanceof TimeoutException);
+            }
+
+            CompletableFuture<Boolean> next = scheduler.submit(driver -> {
+                Thread.sleep(200);
+                return Thread.currentThread().isInterrupted();
+            });
+            assertFalse(next.get(10, TimeUnit.SECONDS));
+            assertEquals(1, scheduler.getTimedOutTasks());
+        }
+    }
+
+    private JobScheduler.Builder newBuilder() {
+        return new JobScheduler.Builder().withSessionPool(pool);
+    }
+}
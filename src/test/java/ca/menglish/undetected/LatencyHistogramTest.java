@@ -0,0 +1,124 @@
+package ca.menglish.undetected;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void smallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 64; value++) {
+            histogram.record(value);
+        }
+
+        for (int value = 1; value <= 64; value++) {
+            assertEquals(value, histogram.getPercentileNanos(value * 100.0 / 64));
+        }
+    }
+
+    @Test
+    public void bucketValuesStayWithinPrecision() {
+        Random random = new Random(11);
+        List<Long> values = new ArrayList<>();
+        for (int exponent = 5; exponent < 63; exponent++) {
+            long lowest = 1L << exponent;
+            values.add(lowest);
+            values.add(lowest - 1);
+            values.add(lowest + (long) (random.nextDouble() * lowest));
+        }
+        values.add(Long.MAX_VALUE - 1);
+
+        for (long value : values) {
+            // The larger value keeps the percentile from being capped at the maximum
+            LatencyHistogram histogram = new LatencyHistogram();
+            histogram.record(value);
+            histogram.record(Long.MAX_VALUE);
+
+            long bucketValue = histogram.getPercentileNanos(50);
+            assertTrue(value + " read back as " + bucketValue, Math.abs(bucketValue - value) <= value / 64);
+        }
+    }
+
+    @Test
+    public void percentilesOfUniformValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long millis = 1; millis <= 1000; millis++) {
+            histogram.record(millis * 1_000_000);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500.5e6, histogram.getMeanNanos(), 1);
+        assertEquals(1000_000_000, histogram.getMaxNanos());
+        assertEquals(500e6, histogram.getPercentileNanos(50), 500e6 / 32);
+        assertEquals(990e6, histogram.getPercentileNanos(99), 990e6 / 32);
+        assertEquals(1000e6, histogram.getPercentileNanos(100), 1000e6 / 32);
+        assertTrue(histogram.getPercentileNanos(100) <= histogram.getMaxNanos());
+    }
+
+    @Test
+    public void negativeValuesCountAsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.getTotalNanos());
+        assertEquals(0, histogram.getPercentileNanos(100));
+    }
+
+    @Test
+    public void addAndReset() {
+        LatencyHistogram first = new LatencyHistogram();
+        LatencyHistogram second = new LatencyHistogram();
+        first.record(10);
+        second.record(1_000_000);
+        second.record(2_000_000);
+
+        first.add(second);
+        assertEquals(3, first.getCount());
+        assertEquals(3_000_010, first.getTotalNanos());
+        assertEquals(2_000_000, first.getMaxNanos());
+        assertEquals(10, first.getPercentileNanos(1));
+
+        first.reset();
+        assertEquals(0, first.getCount());
+        assertEquals(0, first.getMaxNanos());
+        assertEquals(0, first.getPercentileNanos(50));
+    }
+
+    @Test
+    public void concurrentRecordingLosesNothing() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        int threads = 4;
+        int perThread = 100_000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int thread = 0; thread < threads; thread++) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 1; i <= perThread; i++) {
+                        histogram.record(i);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals((long) threads * perThread, histogram.getCount());
+        assertEquals(threads * (long) perThread * (perThread + 1) / 2, histogram.getTotalNanos());
+        assertEquals(perThread, histogram.getMaxNanos());
+    }
+}
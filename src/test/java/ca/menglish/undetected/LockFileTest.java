@@ -0,0 +1,96 @@
+package ca.menglish.undetected;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LockFileTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void tryAcquireOnOwnLockKeepsItHeldAcrossProcesses() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("entry.lock");
+        LockFile lock = LockFile.acquire(path);
+        try {
+            assertNull(LockFile.tryAcquire(path));
+            assertFalse(isLockableByOtherProcess(path));
+        } finally {
+            lock.close();
+        }
+        assertTrue(isLockableByOtherProcess(path));
+    }
+
+    @Test
+    public void acquireOnOwnLockFails() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("entry.lock");
+        LockFile lock = LockFile.acquire(path);
+        try {
+            LockFile.acquire(path);
+            fail("Acquiring a lock the thread holds should fail");
+        } catch (IllegalStateException expected) {
+            assertFalse(isLockableByOtherProcess(path));
+        } finally {
+            lock.close();
+        }
+    }
+
+    @Test
+    public void tryAcquireFromOtherThreadWaitsForRelease() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("entry.lock");
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            LockFile lock = LockFile.acquire(path);
+            assertNull(executor.submit(() -> LockFile.tryAcquire(path)).get());
+            lock.close();
+
+            LockFile other = executor.submit(() -> LockFile.tryAcquire(path)).get();
+            assertNotNull(other);
+            executor.submit(() -> {
+                other.delete();
+                return null;
+            }).get();
+            assertFalse(Files.exists(path));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static boolean isLockableByOtherProcess(Path path) throws IOException, InterruptedException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                LockFileTest.class.getName(), path.toString())
+                .inheritIO()
+                .start();
+        int exitCode = process.waitFor();
+        assertTrue("Unexpected exit code " + exitCode, exitCode == 0 || exitCode == 1);
+        return exitCode == 0;
+    }
+
+    /**
+     * Exits with 0 if the file given as the only argument can be locked, 1 otherwise.
+     */
+    public static void main(String[] args) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(args[0]), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileLock lock = channel.tryLock()) {
+            System.exit(lock == null ? 1 : 0);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package ca.menglish.undetected;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PageNavigatorTest {
+
+    private static final String TARGET_ID = "TARGET";
+    private static final Duration QUIET_PERIOD = Duration.ofMillis(100);
+
+    @Test
+    public void completesOnLifecycleEventOfNewDocument() {
+        PageNavigator navigator = newNavigator(PageLoadCondition.load());
+        // Events of the previous document and of child frames do not count
+        navigator.onLifecycleEvent(lifecycle(TARGET_ID, "OLD", "load"));
+        navigator.onLifecycleEvent(lifecycle("CHILD", "NEW", "load"));
+        // Events can arrive before Page.navigate answers with the loader id
+        navigator.onLifecycleEvent(lifecycle(TARGET_ID, "NEW", "DOMContentLoaded"));
+        navigator.onNavigationStarted("NEW");
+        assertFalse(navigator.getReady().isDone());
+
+        navigator.onLifecycleEvent(lifecycle(TARGET_ID, "NEW", "load"));
+        assertTrue(navigator.getReady().isDone());
+    }
+
+    @Test
+    public void completesLifecycleEventSeenBeforeNavigationAnswered() {
+        PageNavigator navigator = newNavigator(PageLoadCondition.domContentLoaded());
+        navigator.onLifecycleEvent(lifecycle(TARGET_ID, "NEW", "DOMContentLoaded"));
+        assertFalse(navigator.getReady().isDone());
+
+        navigator.onNavigationStarted("NEW");
+        assertTrue(navigator.getReady().isDone());
+    }
+
+    @Test
+    public void sameDocumentNavigationCompletesAtOnce() {
+        PageNavigator navigator = newNavigator(PageLoadCondition.load());
+        navigator.onNavigationStarted(null);
+        assertTrue(navigator.getReady().isDone());
+    }
+
+    @Test
+    public void redirectsCountAsOneRequest() throws Exception {
+        PageNavigator navigator = newNavigator(PageLoadCondition.networkIdle(QUIET_PERIOD));
+        navigator.onRequestStarted(request("Network.requestWillBeSent", "1"));
+        navigator.onRequestStarted(request("Network.requestWillBeSent", "1"));
+        navigator.onRequestStarted(request("Network.requestWillBeSent", "2"));
+        assertEquals(2, navigator.getRequests());
+
+        commit(navigator);
+        navigator.onRequestFinished(request("Network.loadingFinished", "1"));
+        navigator.onRequestFinished(request("Network.loadingFailed", "2"));
+        navigator.getReady().get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void idleTimerWaitsForCommit() throws Exception {
+        PageNavigator navigator = newNavigator(PageLoadCondition.networkIdle(QUIET_PERIOD));
+        navigator.onRequestStarted(request("Network.requestWillBeSent", "1"));
+        navigator.onRequestFinished(request("Network.loadingFinished", "1"));
+        Thread.sleep(QUIET_PERIOD.toMillis() * 3);
+        assertFalse(navigator.getReady().isDone());
+
+        long committedAt = System.nanoTime();
+        commit(navigator);
+        navigator.getReady().get(5, TimeUnit.SECONDS);
+        assertTrue(System.nanoTime() - committedAt >= QUIET_PERIOD.toNanos());
+    }
+
+    @Test
+    public void newRequestCancelsPendingIdleTimer() throws Exception {
+        PageNavigator navigator = newNavigator(PageLoadCondition.networkIdle(QUIET_PERIOD));
+        navigator.onRequestStarted(request("Network.requestWillBeSent", "1"));
+        commit(navigator);
+        navigator.onRequestFinished(request("Network.loadingFinished", "1"));
+
+        // Starts and finishes within the quiet period of the first timer, which must not fire
+        Thread.sleep(QUIET_PERIOD.toMillis() / 2);
+        navigator.onRequestStarted(request("Network.requestWillBeSent", "2"));
+        Thread.sleep(QUIET_PERIOD.toMillis() * 2);
+        assertFalse(navigator.getReady().isDone());
+
+        long finishedAt = System.nanoTime();
+        navigator.onRequestFinished(request("Network.loadingFinished", "2"));
+        navigator.getReady().get(5, TimeUnit.SECONDS);
+        assertTrue(System.nanoTime() - finishedAt >= QUIET_PERIOD.toNanos());
+    }
+
+    @Test
+    public void toleratesMaxInflightRequests() throws Exception {
+        PageNavigator navigator = newNavigator(PageLoadCondition.networkIdle(QUIET_PERIOD, 1));
+        navigator.onRequestStarted(request("Network.requestWillBeSent", "poll"));
+        navigator.onRequestStarted(request("Network.requestWillBeSent", "image"));
+        commit(navigator);
+        Thread.sleep(QUIET_PERIOD.toMillis() * 3);
+        assertFalse(navigator.getReady().isDone());
+
+        navigator.onRequestFinished(request("Network.loadingFinished", "image"));
+        navigator.getReady().get(5, TimeUnit.SECONDS);
+    }
+
+    private static PageNavigator newNavigator(PageLoadCondition condition) {
+        return new PageNavigator(new CdpSession(null, TARGET_ID, "SESSION"), "https://example.com", condition);
+    }
+
+    /**
+     * Commits the navigation the way the browser does, with the first lifecycle event of the new
+     * document.
+     */
+    private static void commit(PageNavigator navigator) {
+        navigator.onNavigationStarted("NEW");
+        navigator.onLifecycleEvent(lifecycle(TARGET_ID, "NEW", "init"));
+    }
+
+    private static CdpConnection.Event lifecycle(String frameId, String loaderId, String name) {
+        return new CdpConnection.Event("Page.lifecycleEvent",
+                ImmutableMap.of("frameId", frameId, "loaderId", loaderId, "name", name), "SESSION");
+    }
+
+    private static CdpConnection.Event request(String method, String requestId) {
+        return new CdpConnection.Event(method, ImmutableMap.of("requestId", requestId), "SESSION");
+    }
+}
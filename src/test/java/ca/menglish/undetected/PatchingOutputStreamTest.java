@@ -0,0 +1,106 @@
+package ca.menglish.undetected;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PatchingOutputStreamTest {
+
+    private static final String REPLACEMENT = ExecutablePatcher.getReplacementCdc();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void smallWritesMatchPatchingTheCompleteFile() throws IOException {
+        byte[] input = newInput(new Random(42), 600 * 1024);
+        for (int maxWrite : new int[]{1, 3, 7, 4096}) {
+            ExecutablePatcher.PatchResult result = assertSameAsExecutablePatcher(input, new Random(maxWrite), maxWrite);
+            assertTrue(result.getReplacements().size() > 10);
+        }
+    }
+
+    @Test
+    public void signatureAtTheEndOfTheStreamIsCountedButNotReplaced() throws IOException {
+        byte[] input = "padding cdc_abc".getBytes(StandardCharsets.US_ASCII);
+        ExecutablePatcher.PatchResult result = assertSameAsExecutablePatcher(input, new Random(1), 2);
+
+        assertEquals(1, result.getHitCount(ExecutablePatcher.CDC_SIGNATURE));
+        assertTrue(result.getReplacements().isEmpty());
+    }
+
+    @Test
+    public void overlappingSignaturesAreReplacedOnce() throws IOException {
+        byte[] input = "..cdc_cdc_abcdefghijklmnopqrstuvwxyz0123456789..".getBytes(StandardCharsets.US_ASCII);
+        ExecutablePatcher.PatchResult result = assertSameAsExecutablePatcher(input, new Random(2), 3);
+
+        assertEquals(2, result.getHitCount(ExecutablePatcher.CDC_SIGNATURE));
+        assertEquals(1, result.getReplacements().size());
+    }
+
+    /**
+     * Writes the input in random chunks of at most {@code maxWrite} bytes and compares the output,
+     * hit counts and replacements with patching the whole file at once.
+     */
+    private ExecutablePatcher.PatchResult assertSameAsExecutablePatcher(byte[] input, Random random, int maxWrite) throws IOException {
+        File file = folder.newFile();
+        Files.write(file.toPath(), input);
+        ExecutablePatcher.PatchResult expected = ExecutablePatcher.patch(file, REPLACEMENT, ExecutablePatcher.PatchMode.HEAP);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PatchingOutputStream patchingStream = new PatchingOutputStream(out, ExecutablePatcher.getSignatures(REPLACEMENT));
+        for (int offset = 0; offset < input.length; ) {
+            int length = Math.min(input.length - offset, 1 + random.nextInt(maxWrite));
+            patchingStream.write(input, offset, length);
+            offset += length;
+        }
+        patchingStream.close();
+        ExecutablePatcher.PatchResult actual = patchingStream.getResult();
+
+        assertArrayEquals("Output with writes of at most " + maxWrite + " bytes", Files.readAllBytes(file.toPath()), out.toByteArray());
+        assertEquals(expected.getHitCounts(), actual.getHitCounts());
+        assertEquals(offsets(expected.getReplacements()), offsets(actual.getReplacements()));
+        assertEquals(input.length, actual.getBytesScanned());
+        return actual;
+    }
+
+    /**
+     * Random bytes interspersed with every kind of signature, including ones that cannot be
+     * replaced, so that with small writes they span write boundaries in every position.
+     */
+    private static byte[] newInput(Random random, int size) {
+        String[] fragments = {
+                "cdc_abcdefghijklmnopqrstuv",
+                "$cdc_asdjflasdfkhjasdfla_Z",
+                "cdc_short!",
+                "webdriver",
+                "__webdriver_script_fn",
+                "cdc_cdc_0123456789012345678901",
+                "$wdc_",
+        };
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        for (int offset = random.nextInt(1000); offset < size - 64; offset += 500 + random.nextInt(5000)) {
+            byte[] fragment = fragments[random.nextInt(fragments.length)].getBytes(StandardCharsets.US_ASCII);
+            System.arraycopy(fragment, 0, bytes, offset, fragment.length);
+        }
+        return bytes;
+    }
+
+    private static List<Long> offsets(List<ExecutablePatcher.Match> matches) {
+        return matches.stream().map(ExecutablePatcher.Match::getOffset).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,26 @@
+package ca.menglish.undetected;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class SessionPoolTest {
+
+    @Test
+    public void originOfWebPages() {
+        assertEquals("https://example.com", SessionPool.getOrigin("https://Example.com/path?query#fragment"));
+        assertEquals("http://localhost:8080", SessionPool.getOrigin("http://user@localhost:8080/"));
+        assertEquals("https://example.com", SessionPool.getOrigin("HTTPS://example.com:443"));
+        assertEquals("https://example.com:8443", SessionPool.getOrigin("https://example.com:8443/"));
+    }
+
+    @Test
+    public void noOriginForOtherPages() {
+        assertNull(SessionPool.getOrigin("about:blank"));
+        assertNull(SessionPool.getOrigin("data:text/html,<p>"));
+        assertNull(SessionPool.getOrigin("chrome://version"));
+        assertNull(SessionPool.getOrigin("not a url"));
+        assertNull(SessionPool.getOrigin(null));
+    }
+}
@@ -0,0 +1,56 @@
+package ca.menglish.undetected;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openqa.selenium.chrome.ChromeOptions;
+import org.openqa.selenium.net.PortProber;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.time.Duration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SharedDriverServiceTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void quitReleasesReferenceAndLastOneStopsProcess() throws Exception {
+        int port = PortProber.findFreePort();
+        StealthyChromiumDriverService.Builder builder = new StealthyChromiumDriverService.Builder()
+                .usingDriverExecutable(StubChromedriver.writeExecutable(folder.newFolder()))
+                .usingPort(port);
+        builder.withTimeout(Duration.ofSeconds(30));
+
+        try (SharedDriverService shared = new SharedDriverService(builder, Duration.ZERO)) {
+            StealthyChromiumDriver first = new StealthyChromiumDriver(shared, new ChromeOptions());
+            StealthyChromiumDriver second = new StealthyChromiumDriver(shared, new ChromeOptions());
+            assertEquals(2, shared.getReferenceCount());
+
+            first.quit();
+            assertEquals(1, shared.getReferenceCount());
+            assertTrue(shared.isRunning());
+            assertTrue(isListening(port));
+
+            second.quit();
+            assertEquals(0, shared.getReferenceCount());
+            assertFalse(shared.isRunning());
+            assertFalse(isListening(port));
+        }
+    }
+
+    private static boolean isListening(int port) {
+        try {
+            new Socket(InetAddress.getLoopbackAddress(), port).close();
+            return true;
+        } catch (IOException exception) {
+            return false;
+        }
+    }
+}
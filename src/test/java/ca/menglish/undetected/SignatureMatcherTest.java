@@ -0,0 +1,193 @@
+package ca.menglish.undetected;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SignatureMatcherTest {
+
+    @Test
+    public void signatureRejectsEmptyPatternAndShortReplacement() {
+        try {
+            Signature.report("empty", "");
+            fail("An empty pattern should be rejected");
+        } catch (IllegalArgumentException expected) {
+            // Would match everywhere
+        }
+        try {
+            Signature.replace("short", "cdc_", "cd");
+            fail("A replacement shorter than the pattern should be rejected");
+        } catch (IllegalArgumentException expected) {
+            // Would leave part of the match in place
+        }
+    }
+
+    @Test
+    public void signatureOnlyReplacesIdentifiers() {
+        Signature signature = Signature.replace("cdc", "cdc_", "abc_defg");
+        assertTrue(signature.isReplacing());
+        assertEquals(8, signature.getSpan());
+        assertEquals(4, Signature.report("cdc", "cdc_").getSpan());
+
+        assertTrue(signature.canReplaceAt(ascii("xxcdc_a$Z9yy"), 2));
+        assertFalse(signature.canReplaceAt(ascii("xxcdc_a\0Z9yy"), 2));
+        assertFalse(Signature.report("cdc", "cdc_").canReplaceAt(ascii("cdc_abcd"), 0));
+    }
+
+    @Test
+    public void boyerMooreFindsEveryOccurrence() {
+        Random random = new Random(5);
+        for (int round = 0; round < 200; round++) {
+            // A small alphabet makes partial and overlapping matches common
+            byte[] data = randomBytes(random, 2000, 3);
+            byte[] pattern = randomBytes(random, 1 + random.nextInt(6), 3);
+
+            List<String> matches = new ArrayList<>();
+            new BoyerMooreMatcher(pattern).scan(ByteBuffer.wrap(data), 0, data.length,
+                    (index, offset) -> matches.add(index + "@" + offset));
+            Collections.sort(matches);
+            assertEquals(naiveMatches(data, Collections.singletonList(pattern), 0, data.length), matches);
+        }
+    }
+
+    @Test
+    public void boyerMooreHandlesHighBytesAndBounds() {
+        byte[] pattern = {(byte) 0xFF, (byte) 0x80, 0x00};
+        byte[] data = {0x00, (byte) 0xFF, (byte) 0x80, 0x00, (byte) 0xFF, (byte) 0x80, 0x00, (byte) 0xFF, (byte) 0x80};
+        BoyerMooreMatcher matcher = new BoyerMooreMatcher(pattern);
+
+        assertEquals(1, matcher.indexOf(ByteBuffer.wrap(data), 0, data.length));
+        assertEquals(4, matcher.indexOf(ByteBuffer.wrap(data), 2, data.length));
+        // Matches reaching past the end of the range are not reported
+        assertEquals(-1, matcher.indexOf(ByteBuffer.wrap(data), 2, 6));
+        assertEquals(-1, matcher.indexOf(ByteBuffer.wrap(data), 5, data.length));
+    }
+
+    @Test
+    public void overlappingMatchesAreReported() {
+        ByteBuffer data = ascii("aaaaa");
+        List<Integer> offsets = new ArrayList<>();
+        new BoyerMooreMatcher("aaa".getBytes(StandardCharsets.US_ASCII)).scan(data, 0, 5, (index, offset) -> offsets.add(offset));
+        assertEquals(Arrays.asList(0, 1, 2), offsets);
+
+        offsets.clear();
+        new AhoCorasickMatcher(Arrays.asList(Signature.report("a", "aaa"), Signature.report("b", "b")))
+                .scan(data, 0, 5, (index, offset) -> offsets.add(offset));
+        assertEquals(Arrays.asList(0, 1, 2), offsets);
+    }
+
+    @Test
+    public void ahoCorasickFindsEveryOccurrenceOfEverySignature() {
+        Random random = new Random(9);
+        for (int round = 0; round < 200; round++) {
+            byte[] data = randomBytes(random, 2000, 3);
+            List<Signature> signatures = new ArrayList<>();
+            List<byte[]> patterns = new ArrayList<>();
+            for (int i = 0; i < 2 + random.nextInt(4); i++) {
+                byte[] pattern = randomBytes(random, 1 + random.nextInt(5), 3);
+                patterns.add(pattern);
+                signatures.add(Signature.report("s" + i, new String(pattern, StandardCharsets.ISO_8859_1)));
+            }
+            // Latin-1 keeps every pattern byte as it is
+            patterns.replaceAll(pattern -> new String(pattern, StandardCharsets.ISO_8859_1).getBytes(StandardCharsets.UTF_8));
+
+            List<String> matches = new ArrayList<>();
+            new AhoCorasickMatcher(signatures).scan(ByteBuffer.wrap(data), 0, data.length,
+                    (index, offset) -> matches.add(index + "@" + offset));
+            Collections.sort(matches);
+            assertEquals(naiveMatches(data, patterns, 0, data.length), matches);
+        }
+    }
+
+    @Test
+    public void ahoCorasickFindsPatternsThatEndOtherPatterns() {
+        List<Signature> signatures = Arrays.asList(
+                Signature.report("cdc", "cdc_"),
+                Signature.report("dollarCdc", "$cdc_"),
+                Signature.report("webdriver", "webdriver"));
+        List<String> matches = new ArrayList<>();
+        new AhoCorasickMatcher(signatures).scan(ascii("x$cdc_webdriver"), 0, 15,
+                (index, offset) -> matches.add(signatures.get(index) + "@" + offset));
+        Collections.sort(matches);
+
+        assertEquals(Arrays.asList("cdc@2", "dollarCdc@1", "webdriver@6"), matches);
+    }
+
+    @Test
+    public void ahoCorasickCarriesStateAcrossBuffers() {
+        Random random = new Random(13);
+        byte[] data = randomBytes(random, 5000, 4);
+        List<Signature> signatures = Arrays.asList(
+                Signature.report("first", "abcd"),
+                Signature.report("second", "dcb"),
+                Signature.report("third", "aaaaaa"));
+        AhoCorasickMatcher matcher = new AhoCorasickMatcher(signatures);
+
+        List<String> whole = new ArrayList<>();
+        matcher.scan(ByteBuffer.wrap(data), 0, data.length, (index, offset) -> whole.add(index + "@" + offset));
+
+        List<String> split = new ArrayList<>();
+        int state = 0;
+        for (int from = 0; from < data.length; from += 7) {
+            state = matcher.scan(ByteBuffer.wrap(data), from, Math.min(data.length, from + 7), state,
+                    (index, offset) -> split.add(index + "@" + offset));
+        }
+
+        assertFalse(whole.isEmpty());
+        assertEquals(whole, split);
+    }
+
+    @Test
+    public void compilePicksMatcherBySignatureCount() {
+        Signature cdc = Signature.report("cdc", "cdc_");
+        Signature webdriver = Signature.report("webdriver", "webdriver");
+
+        assertTrue(SignatureMatcher.compile(Collections.singletonList(cdc)) instanceof BoyerMooreMatcher);
+        SignatureMatcher matcher = SignatureMatcher.compile(Arrays.asList(cdc, webdriver));
+        assertTrue(matcher instanceof AhoCorasickMatcher);
+        assertEquals(9, matcher.getMaxPatternLength());
+    }
+
+    /**
+     * @param alphabet Number of distinct byte values, starting at {@code a}.
+     */
+    private static byte[] randomBytes(Random random, int length, int alphabet) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) ('a' + random.nextInt(alphabet));
+        }
+        return bytes;
+    }
+
+    /**
+     * @return Every match as {@code index@offset}, sorted.
+     */
+    private static List<String> naiveMatches(byte[] data, List<byte[]> patterns, int from, int to) {
+        List<String> matches = new ArrayList<>();
+        for (int index = 0; index < patterns.size(); index++) {
+            byte[] pattern = patterns.get(index);
+            for (int offset = from; offset + pattern.length <= to; offset++) {
+                if (Arrays.equals(pattern, Arrays.copyOfRange(data, offset, offset + pattern.length))) {
+                    matches.add(index + "@" + offset);
+                }
+            }
+        }
+        Collections.sort(matches);
+        return matches;
+    }
+
+    private static ByteBuffer ascii(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.ISO_8859_1));
+    }
+}
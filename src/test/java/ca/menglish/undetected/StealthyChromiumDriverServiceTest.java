@@ -0,0 +1,72 @@
+package ca.menglish.undetected;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openqa.selenium.WebDriverException;
+
+import java.net.HttpURLConnection;
+import java.time.Duration;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StealthyChromiumDriverServiceTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void restartsAfterProcessDied() throws Exception {
+        StealthyChromiumDriverService service = newBuilder().build();
+        try {
+            service.start();
+            assertNotNull(service.getReadinessSource());
+
+            HttpURLConnection shutdown = (HttpURLConnection) service.getUrl().toURI().resolve("/shutdown").toURL().openConnection();
+            assertEquals(200, shutdown.getResponseCode());
+            long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+            while (service.isRunning() && System.nanoTime() < deadline) {
+                Thread.sleep(50);
+            }
+            assertFalse(service.isRunning());
+
+            service.start();
+            assertTrue(service.isRunning());
+        } finally {
+            service.stop();
+        }
+    }
+
+    @Test
+    public void timesOutAfterStartTimeout() throws Exception {
+        Duration timeout = Duration.ofSeconds(1);
+        StealthyChromiumDriverService.Builder builder = newBuilder()
+                .withEnvironment(Collections.singletonMap(StubChromedriver.HANG_ENVIRONMENT, "true"));
+        builder.withTimeout(timeout);
+        StealthyChromiumDriverService service = builder.build();
+
+        long start = System.nanoTime();
+        try {
+            service.start();
+            fail("A server that never listens should time out");
+        } catch (WebDriverException expected) {
+            assertTrue(expected.getMessage().contains("Timed out"));
+        } finally {
+            service.stop();
+        }
+
+        // Not a second wait for the status endpoint after the started line did not show up
+        assertTrue(System.nanoTime() - start < timeout.toNanos() * 9 / 5);
+    }
+
+    private StealthyChromiumDriverService.Builder newBuilder() throws Exception {
+        return new StealthyChromiumDriverService.Builder()
+                .usingDriverExecutable(StubChromedriver.writeExecutable(folder.newFolder()))
+                .usingAnyFreePort();
+    }
+}
@@ -0,0 +1,58 @@
+package ca.menglish.undetected;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openqa.selenium.SessionNotCreatedException;
+import org.openqa.selenium.chrome.ChromeOptions;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StealthyChromiumDriverTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void rejectedSessionStopsServiceAndDeletesProfileCopy() throws Exception {
+        StealthyChromiumDriverService service = new StealthyChromiumDriverService.Builder()
+                .usingDriverExecutable(StubChromedriver.writeExecutable(folder.newFolder()))
+                .usingAnyFreePort()
+                .withEnvironment(Collections.singletonMap(StubChromedriver.REJECT_SESSIONS_ENVIRONMENT, "true"))
+                .build();
+        Path template = folder.newFolder("template").toPath();
+        Files.write(template.resolve("Local State"), new byte[]{'{', '}'});
+        ChromeOptions options = new ProfileTemplate(template).applyTo(new ChromeOptions());
+        Path copy = getUserDataDir(options);
+        assertTrue(Files.isDirectory(copy));
+
+        try {
+            new StealthyChromiumDriver(service, options);
+            fail("The stub rejects every session");
+        } catch (SessionNotCreatedException expected) {
+            // The constructor quit the driver
+        }
+
+        assertFalse(service.isRunning());
+        assertFalse(Files.exists(copy));
+    }
+
+    private static Path getUserDataDir(ChromeOptions options) {
+        Map<?, ?> chromeOptions = (Map<?, ?>) options.asMap().get(ChromeOptions.CAPABILITY);
+        for (Object argument : (List<?>) chromeOptions.get("args")) {
+            if (argument.toString().startsWith(ProfileTemplate.USER_DATA_DIR_ARGUMENT)) {
+                return Paths.get(argument.toString().substring(ProfileTemplate.USER_DATA_DIR_ARGUMENT.length()));
+            }
+        }
+        throw new AssertionError("No user data directory in " + options);
+    }
+}
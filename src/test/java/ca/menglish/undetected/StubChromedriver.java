@@ -0,0 +1,127 @@
+package ca.menglish.undetected;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.UUID;
+
+/**
+ * Stands in for chromedriver: answers the requests a driver sends to create and delete sessions,
+ * lets every other session command succeed on a single blank window, and prints the line
+ * chromedriver prints once it listens. With the {@link #HANG_ENVIRONMENT} variable set it neither
+ * listens nor prints anything, with {@link #REJECT_SESSIONS_ENVIRONMENT} set it fails every new
+ * session.
+ */
+public class StubChromedriver {
+
+    static final String HANG_ENVIRONMENT = "STUB_CHROMEDRIVER_HANG";
+    static final String REJECT_SESSIONS_ENVIRONMENT = "STUB_CHROMEDRIVER_REJECT_SESSIONS";
+
+    private static final String WINDOW_HANDLE = "CDwindow-stub";
+
+    /**
+     * Writes a script that runs the stub on this JVM's class path, so a service launches it like
+     * any chromedriver executable.
+     *
+     * @param directory Where to write the script.
+     * @return The executable script.
+     */
+    static File writeExecutable(File directory) throws IOException {
+        File script = new File(directory, "chromedriver");
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        Files.write(script.toPath(), String.join("\n",
+                "#!/bin/sh",
+                "exec '" + java + "' -cp '" + System.getProperty("java.class.path") + "' '"
+                        + StubChromedriver.class.getName() + "' \"$@\"",
+                "").getBytes(StandardCharsets.UTF_8));
+        if (!script.setExecutable(true)) {
+            throw new IOException("Failed to make " + script + " executable");
+        }
+        return script;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (System.getenv(HANG_ENVIRONMENT) != null) {
+            Thread.sleep(Long.MAX_VALUE);
+        }
+
+        int port = 0;
+        for (String arg : args) {
+            if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(arg.substring("--port=".length()));
+            }
+        }
+        if (port == 0) {
+            throw new IllegalArgumentException("No port given");
+        }
+
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/", StubChromedriver::handle);
+        server.start();
+        System.out.println("ChromeDriver was started successfully.");
+    }
+
+    private static void handle(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            String method = exchange.getRequestMethod();
+            if (path.equals("/status")) {
+                send(exchange, "{\"value\":{\"ready\":true,\"message\":\"ready\"}}");
+            }
+            else if (path.equals("/shutdown")) {
+                send(exchange, "{\"value\":null}");
+                exchange.close();
+                System.exit(0);
+            }
+            else if (path.equals("/session") && method.equals("POST") && System.getenv(REJECT_SESSIONS_ENVIRONMENT) != null) {
+                send(exchange, 500, "{\"value\":{\"error\":\"session not created\",\"message\":\"Rejected by the stub\",\"stacktrace\":\"\"}}");
+            }
+            else if (path.equals("/session") && method.equals("POST")) {
+                send(exchange, "{\"value\":{\"sessionId\":\"" + UUID.randomUUID().toString().replace("-", "")
+                        + "\",\"capabilities\":{\"browserName\":\"chrome\",\"browserVersion\":\"96.0.4664.45\"}}}");
+            }
+            else if (path.matches("/session/[^/]+") && method.equals("DELETE")) {
+                send(exchange, "{\"value\":null}");
+            }
+            else if (path.endsWith("/window") && method.equals("GET")) {
+                send(exchange, "{\"value\":\"" + WINDOW_HANDLE + "\"}");
+            }
+            else if (path.endsWith("/window/handles")) {
+                send(exchange, "{\"value\":[\"" + WINDOW_HANDLE + "\"]}");
+            }
+            else if (path.endsWith("/url") && method.equals("GET")) {
+                send(exchange, "{\"value\":\"about:blank\"}");
+            }
+            else if (path.endsWith("/goog/cdp/execute")) {
+                send(exchange, "{\"value\":{}}");
+            }
+            else if (path.startsWith("/session/")) {
+                // Navigation, switching windows, scripts and the like succeed without an effect
+                send(exchange, "{\"value\":null}");
+            }
+            else {
+                exchange.sendResponseHeaders(404, -1);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void send(HttpExchange exchange, String json) throws IOException {
+        send(exchange, 200, json);
+    }
+
+    private static void send(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+    }
+}
@@ -0,0 +1,23 @@
+package ca.menglish.undetected;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TabPoolTest {
+
+    @Test
+    public void loopbackHostsAreLocal() {
+        assertTrue(TabPool.isLocalHost("localhost"));
+        assertTrue(TabPool.isLocalHost("127.0.0.1"));
+        assertTrue(TabPool.isLocalHost("[::1]"));
+    }
+
+    @Test
+    public void otherHostsAreNotLocal() {
+        // Reserved for documentation, never assigned to an interface
+        assertFalse(TabPool.isLocalHost("192.0.2.1"));
+        assertFalse(TabPool.isLocalHost(null));
+    }
+}